@@ -0,0 +1,49 @@
+/*
+ * @(#)Gif89Put.java   1.99.1 08/12/08
+ */
+
+/*+--------------------------------------------------------------------+*/
+/*| NOTE:                                                              |*/
+/*|   This file is part of the public-domain GIF encoder released by   |*/
+/*|   J. M. G. Elliott (tep@jmge.net), which is available from         |*/
+/*|   http://jmge.net/java/gifenc/.  It was moved out of               |*/
+/*|   MediaTools.java so that Gif89Writer can share it with the        |*/
+/*|   encoder there.                                                   |*/
+/*+--------------------------------------------------------------------+*/
+
+package acm.util;
+
+import java.io.*;
+
+/*----------------------------------------------------------------------*/
+/* Gif89Put                                                             */
+/*----------------------------------------------------------------------*/
+
+/**
+ * Just a couple of trivial output routines used by other classes in the
+ * package.  Normally this kind of stuff would be in a separate IO package, but
+ * I wanted the present package to be self-contained for ease of distribution
+ * and use by others.
+ */
+final class Gif89Put {
+
+/**
+ * Write just the low bytes of a String.  (This sucks, but the concept of an
+ *  encoding seems inapplicable to a binary file ID string.  I would think
+ *  flexibility is just what we don't want - but then again, maybe I'm slow.)
+ */
+	static void ascii(String s, OutputStream os) throws IOException {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; ++i)
+			bytes[i] = (byte) s.charAt(i);  /* discard the high byte      */
+		os.write(bytes);
+	}
+
+/**
+ * Write a 16-bit integer in little endian byte order.
+ */
+	static void leShort(int i16, OutputStream os) throws IOException {
+		os.write(i16 & 0xff);
+		os.write(i16 >> 8 & 0xff);
+	}
+}
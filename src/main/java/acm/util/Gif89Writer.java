@@ -0,0 +1,277 @@
+/*
+ * @(#)Gif89Writer.java   1.99.1 08/12/08
+ */
+
+// ************************************************************************
+// * Copyright (c) 2008 by the Association for Computing Machinery        *
+// *                                                                      *
+// * The Java Task Force seeks to impose few restrictions on the use of   *
+// * these packages so that users have as much freedom as possible to     *
+// * use this software in constructive ways and can make the benefits of  *
+// * that work available to others.  In view of the legal complexities    *
+// * of software development, however, it is essential for the ACM to     *
+// * maintain its copyright to guard against attempts by others to        *
+// * claim ownership rights.  The full text of the JTF Software License   *
+// * is available at the following URL:                                   *
+// *                                                                      *
+// *          http://www.acm.org/jtf/jtf-software-license.pdf             *
+// *                                                                      *
+// ************************************************************************
+
+// REVISION HISTORY
+//
+// Class introduced to write long animations without holding their frames
+
+package acm.util;
+
+import java.io.*;
+
+/* Class: Gif89Writer */
+/**
+ * This class writes an animated GIF file one frame at a time.  Unlike the
+ * <code>Gif89Encoder</code> that <code>MediaTools</code> uses to save
+ * images, which keeps every frame in memory until the whole file is
+ * encoded, a <code>Gif89Writer</code> encodes each frame as soon as it is
+ * added, so the length of an animation is limited only by the disk.
+ *
+ * <p>A frame may cover any rectangle of the logical screen, and pixels in
+ * a frame whose alpha value is less than 0x80 are transparent, which
+ * leaves the pixels of the earlier frames showing through.  An animation
+ * in which each frame holds just the pixels that changed is therefore
+ * much smaller than one made of whole images.
+ *
+ * <p>The global color table is built as colors appear, since the frames
+ * are not known in advance, and is written into its place in the file
+ * when the writer is closed.  The table holds 255 colors in addition to
+ * the one reserved for transparency; any further colors are drawn in the
+ * closest color already in the table.
+ */
+public class Gif89Writer {
+
+/* Constant: DISPOSE_NONE */
+/**
+ * Leaves the pixels of a frame in place when the next frame is drawn.
+ */
+	public static final int DISPOSE_NONE = Gif89Frame.DM_LEAVE;
+
+/* Constant: DISPOSE_BACKGROUND */
+/**
+ * Clears the area of a frame to the background before the next frame is
+ * drawn.
+ */
+	public static final int DISPOSE_BACKGROUND = Gif89Frame.DM_BGCOLOR;
+
+/* Constant: DISPOSE_PREVIOUS */
+/**
+ * Restores the area of a frame to what it was before the frame was drawn.
+ */
+	public static final int DISPOSE_PREVIOUS = Gif89Frame.DM_REVERT;
+
+/* Constructor: Gif89Writer(file, width, height) */
+/**
+ * Creates a writer for an animation of the specified size, which is
+ * written to the specified file.
+ *
+ * @usage Gif89Writer writer = new Gif89Writer(file, width, height);
+ * @param file The file to which the animation is written
+ * @param width The width of the logical screen
+ * @param height The height of the logical screen
+ */
+	public Gif89Writer(File file, int width, int height) {
+		this.file = file;
+		this.width = width;
+		this.height = height;
+		palette = new int[PALETTE_SIZE];
+		colorMap = new ReverseColorMap();
+		colorCount = 1;
+		loopCount = 0;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(file));
+		} catch (IOException ex) {
+			throw new ErrorException("Gif89Writer: " + ex.getMessage());
+		}
+	}
+
+/* Method: setLoopCount(count) */
+/**
+ * Sets the number of times the animation plays, where 0, which is the
+ * default, plays it forever.  This method must be called before the first
+ * frame is added.
+ *
+ * @usage writer.setLoopCount(count);
+ * @param count The number of times to play the animation
+ */
+	public void setLoopCount(int count) {
+		if (headerWritten) throw new ErrorException("setLoopCount: Frames already written");
+		loopCount = count;
+	}
+
+/* Method: getFrameCount() */
+/**
+ * Returns the number of frames written so far.
+ *
+ * @usage int n = writer.getFrameCount();
+ * @return The number of frames written
+ */
+	public int getFrameCount() {
+		return frameCount;
+	}
+
+/* Method: addFrame(pixels, x, y, width, height, delay, disposal) */
+/**
+ * Encodes a frame and writes it to the file.
+ *
+ * @usage writer.addFrame(pixels, x, y, width, height, delay, disposal);
+ * @param pixels The ARGB pixels of the frame in row-major order
+ * @param x The x coordinate of the frame on the logical screen
+ * @param y The y coordinate of the frame on the logical screen
+ * @param width The width of the frame
+ * @param height The height of the frame
+ * @param delay The time the frame is shown, in hundredths of a second
+ * @param disposal One of the <code>DISPOSE_</code> constants
+ */
+	public void addFrame(int[] pixels, int x, int y, int width, int height, int delay,
+	                     int disposal) {
+		if (out == null) throw new ErrorException("addFrame: Writer is closed");
+		if (x < 0 || y < 0 || x + width > this.width || y + height > this.height) {
+			throw new ErrorException("addFrame: Frame lies outside the screen");
+		}
+		int n = width * height;
+		if (indexBuffer == null || indexBuffer.length < n) indexBuffer = new byte[n];
+		for (int i = 0; i < n; i++) {
+			int argb = pixels[i];
+			indexBuffer[i] = ((argb >>> 24) < 0x80) ? 0 : (byte) getColorIndex(argb & 0xFFFFFF);
+		}
+		IndexGif89Frame frame = new IndexGif89Frame(width, height, indexBuffer);
+		frame.setPosition(new java.awt.Point(x, y));
+		frame.setDelay(delay);
+		frame.setDisposalMode(disposal);
+		try {
+			if (!headerWritten) writeHeader();
+			frame.encode(out, true, COLOR_DEPTH, TRANSPARENT_INDEX);
+		} catch (IOException ex) {
+			throw new ErrorException("addFrame: " + ex.getMessage());
+		}
+		frameCount++;
+	}
+
+/* Method: close() */
+/**
+ * Finishes the file and fills in its color table.  The writer cannot be
+ * used after it is closed.
+ *
+ * @usage writer.close();
+ */
+	public void close() {
+		if (out == null) return;
+		try {
+			if (!headerWritten) writeHeader();
+			out.write(';');
+			out.close();
+			out = null;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				byte[] table = new byte[3 * PALETTE_SIZE];
+				for (int i = 0; i < PALETTE_SIZE; i++) {
+					table[3 * i] = (byte) (palette[i] >> 16);
+					table[3 * i + 1] = (byte) (palette[i] >> 8);
+					table[3 * i + 2] = (byte) palette[i];
+				}
+				raf.seek(COLOR_TABLE_OFFSET);
+				raf.write(table);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ex) {
+			throw new ErrorException("close: " + ex.getMessage());
+		}
+	}
+
+/* Private method: getColorIndex(rgb) */
+/**
+ * Returns the index of the specified color in the color table, adding it
+ * if there is room or using the closest color if not.
+ */
+	private int getColorIndex(int rgb) {
+		if (rgb == lastRGB) return lastIndex;
+		int index = colorMap.getPaletteIndex(rgb);
+		if (index == -1) {
+			if (colorCount < PALETTE_SIZE) {
+				index = colorCount++;
+				palette[index] = rgb;
+				colorMap.put(rgb, index);
+			} else {
+				index = closestColor(rgb);
+				if (extraColors < MAX_EXTRA_COLORS) {
+					colorMap.put(rgb, index);
+					extraColors++;
+				}
+			}
+		}
+		lastRGB = rgb;
+		lastIndex = index;
+		return index;
+	}
+
+	private int closestColor(int rgb) {
+		int best = 1;
+		int bestDistance = Integer.MAX_VALUE;
+		for (int i = 1; i < PALETTE_SIZE; i++) {
+			int dr = (rgb >> 16 & 0xFF) - (palette[i] >> 16 & 0xFF);
+			int dg = (rgb >> 8 & 0xFF) - (palette[i] >> 8 & 0xFF);
+			int db = (rgb & 0xFF) - (palette[i] & 0xFF);
+			int distance = dr * dr + dg * dg + db * db;
+			if (distance < bestDistance) {
+				best = i;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+
+/* Private method: writeHeader() */
+/**
+ * Writes the GIF header, the logical screen descriptor, a placeholder for
+ * the color table, and the extension that makes the animation loop.
+ */
+	private void writeHeader() throws IOException {
+		Gif89Put.ascii("GIF89a", out);
+		Gif89Put.leShort(width, out);
+		Gif89Put.leShort(height, out);
+		out.write(0xf0 | (COLOR_DEPTH - 1));
+		out.write(TRANSPARENT_INDEX);
+		out.write(0);
+		out.write(new byte[3 * PALETTE_SIZE]);
+		if (loopCount != 1) {
+			out.write('!');
+			out.write(0xff);
+			out.write(11);
+			Gif89Put.ascii("NETSCAPE2.0", out);
+			out.write(3);
+			out.write(1);
+			Gif89Put.leShort(loopCount > 1 ? loopCount - 1 : 0, out);
+			out.write(0);
+		}
+		headerWritten = true;
+	}
+
+/* Private constants */
+	private static final int COLOR_DEPTH = 8;
+	private static final int PALETTE_SIZE = 1 << COLOR_DEPTH;
+	private static final int TRANSPARENT_INDEX = 0;
+	private static final int COLOR_TABLE_OFFSET = 13;
+	private static final int MAX_EXTRA_COLORS = 512;
+
+/* Private instance variables */
+	private File file;
+	private OutputStream out;
+	private int width, height;
+	private int loopCount;
+	private boolean headerWritten;
+	private int frameCount;
+	private int[] palette;
+	private int colorCount, extraColors;
+	private ReverseColorMap colorMap;
+	private int lastRGB = -1, lastIndex;
+	private byte[] indexBuffer;
+}
@@ -93,7 +93,8 @@ public class Karel implements Runnable {
     public void move() {
         checkWorld("move");
         if (world.checkWall(x, y, dir)) throw new ErrorException("Karel is blocked");
-        setLocation(KarelWorld.adjacentPoint(x, y, dir));
+        setLocation(KarelWorld.adjacentX(x, dir), KarelWorld.adjacentY(y, dir));
+        world.recordAction(this, KarelTraceRecorder.MOVE);
         world.trace();
     }
 
@@ -103,6 +104,7 @@ public class Karel implements Runnable {
     public void turnLeft() {
         checkWorld("turnLeft");
         setDirection(KarelWorld.leftFrom(dir));
+        world.recordAction(this, KarelTraceRecorder.TURN_LEFT);
         world.trace();
     }
 
@@ -116,6 +118,7 @@ public class Karel implements Runnable {
         if (nb < 1) throw new ErrorException("pickBeeper: No beepers on this corner");
         world.setBeepersOnCorner(x, y, KarelWorld.adjustBeepers(nb, -1));
         setBeepersInBag(KarelWorld.adjustBeepers(getBeepersInBag(), +1));
+        world.recordAction(this, KarelTraceRecorder.PICK_BEEPER);
         world.trace();
     }
 
@@ -130,6 +133,7 @@ public class Karel implements Runnable {
         if (nb < 1) throw new ErrorException("putBeeper: No beepers in bag");
         world.setBeepersOnCorner(x, y, KarelWorld.adjustBeepers(world.getBeepersOnCorner(x, y), +1));
         setBeepersInBag(KarelWorld.adjustBeepers(nb, -1));
+        world.recordAction(this, KarelTraceRecorder.PUT_BEEPER);
         world.trace();
     }
 
@@ -140,7 +144,7 @@ public class Karel implements Runnable {
  */
     public boolean frontIsClear() {
         checkWorld("frontIsClear");
-        return !world.checkWall(x, y, dir);
+        return world.recordSense(this, KarelTraceRecorder.FRONT_IS_CLEAR, !world.checkWall(x, y, dir));
     }
 
 /**
@@ -150,7 +154,7 @@ public class Karel implements Runnable {
  */
     public boolean frontIsBlocked() {
         checkWorld("frontIsBlocked");
-        return world.checkWall(x, y, dir);
+        return world.recordSense(this, KarelTraceRecorder.FRONT_IS_BLOCKED, world.checkWall(x, y, dir));
     }
 
 /**
@@ -160,7 +164,7 @@ public class Karel implements Runnable {
  */
     public boolean leftIsClear() {
         checkWorld("leftIsClear");
-        return !world.checkWall(x, y, KarelWorld.leftFrom(dir));
+        return world.recordSense(this, KarelTraceRecorder.LEFT_IS_CLEAR, !world.checkWall(x, y, KarelWorld.leftFrom(dir)));
     }
 
 /**
@@ -170,7 +174,7 @@ public class Karel implements Runnable {
  */
     public boolean leftIsBlocked() {
         checkWorld("leftIsBlocked");
-        return world.checkWall(x, y, KarelWorld.leftFrom(dir));
+        return world.recordSense(this, KarelTraceRecorder.LEFT_IS_BLOCKED, world.checkWall(x, y, KarelWorld.leftFrom(dir)));
     }
 
 /**
@@ -180,7 +184,7 @@ public class Karel implements Runnable {
  */
     public boolean rightIsClear() {
         checkWorld("rightIsClear");
-        return !world.checkWall(x, y, KarelWorld.rightFrom(dir));
+        return world.recordSense(this, KarelTraceRecorder.RIGHT_IS_CLEAR, !world.checkWall(x, y, KarelWorld.rightFrom(dir)));
     }
 
 /**
@@ -190,7 +194,7 @@ public class Karel implements Runnable {
  */
     public boolean rightIsBlocked() {
         checkWorld("rightIsBlocked");
-        return world.checkWall(x, y, KarelWorld.rightFrom(dir));
+        return world.recordSense(this, KarelTraceRecorder.RIGHT_IS_BLOCKED, world.checkWall(x, y, KarelWorld.rightFrom(dir)));
     }
 
 /**
@@ -200,7 +204,7 @@ public class Karel implements Runnable {
  */
     public boolean beepersPresent() {
         checkWorld("beepersPresent");
-        return world.getBeepersOnCorner(x, y) > 0;
+        return world.recordSense(this, KarelTraceRecorder.BEEPERS_PRESENT, world.getBeepersOnCorner(x, y) > 0);
     }
 
 /**
@@ -210,7 +214,7 @@ public class Karel implements Runnable {
  */
     public boolean noBeepersPresent() {
         checkWorld("noBeepersPresent");
-        return world.getBeepersOnCorner(x, y) == 0;
+        return world.recordSense(this, KarelTraceRecorder.NO_BEEPERS_PRESENT, world.getBeepersOnCorner(x, y) == 0);
     }
 
 /**
@@ -220,7 +224,7 @@ public class Karel implements Runnable {
  */
     public boolean beepersInBag() {
         checkWorld("beepersInBag");
-        return getBeepersInBag() > 0;
+        return world.recordSense(this, KarelTraceRecorder.BEEPERS_IN_BAG, getBeepersInBag() > 0);
     }
 
 /**
@@ -230,7 +234,7 @@ public class Karel implements Runnable {
  */
     public boolean noBeepersInBag() {
         checkWorld("noBeepersInBag");
-        return getBeepersInBag() == 0;
+        return world.recordSense(this, KarelTraceRecorder.NO_BEEPERS_IN_BAG, getBeepersInBag() == 0);
     }
 
 /**
@@ -240,7 +244,7 @@ public class Karel implements Runnable {
  */
     public boolean facingNorth() {
         checkWorld("facingNorth");
-        return dir == NORTH;
+        return world.recordSense(this, KarelTraceRecorder.FACING_NORTH, dir == NORTH);
     }
 
 /**
@@ -250,7 +254,7 @@ public class Karel implements Runnable {
  */
     public boolean facingEast() {
         checkWorld("facingEast");
-        return dir == EAST;
+        return world.recordSense(this, KarelTraceRecorder.FACING_EAST, dir == EAST);
     }
 
 /**
@@ -260,7 +264,7 @@ public class Karel implements Runnable {
  */
     public boolean facingSouth() {
         checkWorld("facingSouth");
-        return dir == SOUTH;
+        return world.recordSense(this, KarelTraceRecorder.FACING_SOUTH, dir == SOUTH);
     }
 
 /**
@@ -270,7 +274,7 @@ public class Karel implements Runnable {
  */
     public boolean facingWest() {
         checkWorld("facingWest");
-        return dir == WEST;
+        return world.recordSense(this, KarelTraceRecorder.FACING_WEST, dir == WEST);
     }
 
 /**
@@ -280,7 +284,7 @@ public class Karel implements Runnable {
  */
     public boolean notFacingNorth() {
         checkWorld("notFacingNorth");
-        return dir != NORTH;
+        return world.recordSense(this, KarelTraceRecorder.NOT_FACING_NORTH, dir != NORTH);
     }
 
 /**
@@ -290,7 +294,7 @@ public class Karel implements Runnable {
  */
     public boolean notFacingEast() {
         checkWorld("notFacingEast");
-        return dir != EAST;
+        return world.recordSense(this, KarelTraceRecorder.NOT_FACING_EAST, dir != EAST);
     }
 
 /**
@@ -300,7 +304,7 @@ public class Karel implements Runnable {
  */
     public boolean notFacingSouth() {
         checkWorld("notFacingSouth");
-        return dir != SOUTH;
+        return world.recordSense(this, KarelTraceRecorder.NOT_FACING_SOUTH, dir != SOUTH);
     }
 
 /**
@@ -310,7 +314,7 @@ public class Karel implements Runnable {
  */
     public boolean notFacingWest() {
         checkWorld("notFacingWest");
-        return dir != WEST;
+        return world.recordSense(this, KarelTraceRecorder.NOT_FACING_WEST, dir != WEST);
     }
 
 /* Entry points for program operation */
@@ -367,18 +371,31 @@ public class Karel implements Runnable {
         this.x = x;
         this.y = y;
         if (world != null) {
+            world.karelMoved(this, x0, y0);
             world.updateCorner(x, y);
             world.updateCorner(x0, y0);
         }
     }
 
+    int getAvenue() {
+        return x;
+    }
+
+    int getStreet() {
+        return y;
+    }
+
     protected int getDirection() {
         return dir;
     }
 
     protected void setDirection(int dir) {
+        int dir0 = this.dir;
         this.dir = dir;
-        if (world != null) world.updateCorner(x, y);
+        if (world != null) {
+            world.karelChanged(this, dir0, beepers);
+            world.updateCorner(x, y);
+        }
     }
 
     protected int getBeepersInBag() {
@@ -386,6 +403,22 @@ public class Karel implements Runnable {
     }
 
     protected void setBeepersInBag(int nBeepers) {
+        int nBeepers0 = beepers;
+        beepers = nBeepers;
+        if (world != null) world.karelChanged(this, dir, nBeepers0);
+    }
+
+/*
+ * Method: restoreState
+ * Usage: karel.restoreState(x, y, dir, nBeepers);
+ * -----------------------------------------------
+ * Sets the state of this Karel without notifying its world, which takes
+ * care of the bookkeeping itself when it restores an earlier state.
+ */
+    void restoreState(int x, int y, int dir, int nBeepers) {
+        this.x = x;
+        this.y = y;
+        this.dir = dir;
         beepers = nBeepers;
     }
 
@@ -399,6 +432,7 @@ public class Karel implements Runnable {
 
     protected void checkWorld(String caller) {
         if (world == null) throw new ErrorException(caller + ": Karel is not living in a world");
+        world.countStep();
     }
 
     public void setDisplayOneFlag(boolean flag) {
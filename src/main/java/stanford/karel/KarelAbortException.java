@@ -0,0 +1,83 @@
+/*
+ * File: KarelAbortException.java
+ * ------------------------------
+ * This file contains the exception that is thrown when the execution of
+ * a Karel program is stopped by its world rather than by an error in the
+ * program itself.
+ */
+
+package stanford.karel;
+
+import acm.util.*;
+
+/* Class: KarelAbortException */
+/**
+ * This exception is thrown by a Karel primitive when the world has
+ * decided that the program must stop, either because it has exceeded
+ * its step or time limit or because the run has been cancelled.  The
+ * <code>getReason</code> method lets clients distinguish these cases
+ * from ordinary errors such as running into a wall.
+ */
+public class KarelAbortException extends ErrorException {
+
+/* Constant: STEP_LIMIT */
+/** Indicates that the program executed more steps than allowed. */
+    public static final int STEP_LIMIT = 1;
+
+/* Constant: TIME_LIMIT */
+/** Indicates that the program ran longer than allowed. */
+    public static final int TIME_LIMIT = 2;
+
+/* Constant: CANCELLED */
+/** Indicates that the run was cancelled from another thread. */
+    public static final int CANCELLED = 3;
+
+/* Constant: CYCLE */
+/** Indicates that the program kept returning to the same world state. */
+    public static final int CYCLE = 4;
+
+/* Constructor: KarelAbortException(reason, msg) */
+/**
+ * Creates a <code>KarelAbortException</code> with the specified reason
+ * and message.
+ */
+    public KarelAbortException(int reason, String msg) {
+        super(msg);
+        this.reason = reason;
+    }
+
+/* Method: getReason */
+/**
+ * Returns the reason for which the run was aborted, which is one of the
+ * constants defined in this class.
+ */
+    public int getReason() {
+        return reason;
+    }
+
+/* Static method: reasonName */
+/**
+ * Returns a short name for the reason code, suitable for reports.
+ */
+    public static String reasonName(int reason) {
+        switch (reason) {
+          case STEP_LIMIT: return "step-limit";
+          case TIME_LIMIT: return "time-limit";
+          case CANCELLED:  return "cancelled";
+          case CYCLE:      return "cycle";
+        }
+        return "unknown";
+    }
+
+/* Private state */
+
+    private int reason;
+
+/* Serial version UID */
+/**
+ * The serialization code for this class.  This value should be incremented
+ * whenever you change the structure of this class in an incompatible way,
+ * typically by adding a new instance variable.
+ */
+    static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,207 @@
+/*
+ * File: KarelBatchResult.java
+ * ---------------------------
+ * This file contains the class that records the outcome of running one
+ * Karel class in one world as part of a batch.
+ */
+
+package stanford.karel;
+
+import java.io.*;
+
+/* Class: KarelBatchResult */
+/**
+ * The <code>KarelBatchResult</code> class holds the outcome of a single
+ * run produced by a <code>KarelBatchRunner</code>: the final state of the
+ * world, the number of steps Karel executed, the wall-clock time of the
+ * run, and the exception that terminated it, if any.
+ */
+public class KarelBatchResult {
+
+/* Constructor */
+
+    KarelBatchResult(String karelClass, String worldName) {
+        this.karelClass = karelClass;
+        this.worldName = worldName;
+    }
+
+/* Method: getKarelClass */
+/**
+ * Returns the name of the Karel class that was run.
+ */
+    public String getKarelClass() {
+        return karelClass;
+    }
+
+/* Method: getWorldName */
+/**
+ * Returns the name of the world file in which Karel was run.
+ */
+    public String getWorldName() {
+        return worldName;
+    }
+
+/* Method: isSuccessful */
+/**
+ * Returns <code>true</code> if the Karel program ran to completion
+ * without throwing an exception.
+ */
+    public boolean isSuccessful() {
+        return error == null;
+    }
+
+/* Method: getAbortReason */
+/**
+ * Returns the reason code from <code>KarelAbortException</code> if the
+ * run was stopped by its world, or 0 if it was not.
+ */
+    public int getAbortReason() {
+        if (error instanceof KarelAbortException) {
+            return ((KarelAbortException) error).getReason();
+        }
+        return 0;
+    }
+
+/* Method: getError */
+/**
+ * Returns the exception that terminated the run, or <code>null</code> if
+ * the run completed normally.
+ */
+    public Throwable getError() {
+        return error;
+    }
+
+/* Method: getStepCount */
+/**
+ * Returns the number of primitives, including the sensing methods, that
+ * Karel executed before the run ended.
+ */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+/* Method: getElapsedTime */
+/**
+ * Returns the wall-clock time of the run in milliseconds, not including
+ * the time required to load the world.
+ */
+    public double getElapsedTime() {
+        return elapsedTime;
+    }
+
+/* Method: getFinalWorld */
+/**
+ * Returns the final state of the world in the <code>.w</code> file format,
+ * or <code>null</code> if the world could not be loaded.
+ */
+    public String getFinalWorld() {
+        return finalWorld;
+    }
+
+/* Method: getFinalDigest */
+/**
+ * Returns the digest of the final state of the world, which can be
+ * compared with the digest of the expected world to grade the run, or
+ * <code>null</code> if the world could not be loaded.
+ */
+    public KarelWorldDigest getFinalDigest() {
+        return finalDigest;
+    }
+
+/* Method: toJSON */
+/**
+ * Returns a single-line JSON representation of this result.
+ */
+    public String toJSON() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"karel\":");
+        appendString(sb, karelClass);
+        sb.append(",\"world\":");
+        appendString(sb, worldName);
+        sb.append(",\"status\":\"");
+        sb.append(getStatus());
+        sb.append("\",\"steps\":");
+        sb.append(stepCount);
+        sb.append(",\"millis\":");
+        sb.append(Math.round(elapsedTime * 1000) / 1000.0);
+        sb.append(",\"error\":");
+        appendString(sb, (error == null) ? null : error.toString());
+        sb.append(",\"digest\":");
+        appendString(sb, (finalDigest == null) ? null : finalDigest.toString());
+        sb.append(",\"finalWorld\":");
+        appendString(sb, finalWorld);
+        sb.append("}");
+        return sb.toString();
+    }
+
+    public String toString() {
+        return toJSON();
+    }
+
+/* Package-private methods */
+
+    void setError(Throwable error) {
+        this.error = error;
+    }
+
+    void setStepCount(long stepCount) {
+        this.stepCount = stepCount;
+    }
+
+    void setElapsedTime(double elapsedTime) {
+        this.elapsedTime = elapsedTime;
+    }
+
+    void setFinalWorld(KarelWorld world) {
+        StringWriter sw = new StringWriter();
+        PrintWriter wr = new PrintWriter(sw);
+        world.save(wr);
+        wr.flush();
+        finalWorld = sw.toString();
+        finalDigest = KarelWorldDigest.of(world);
+    }
+
+/* Private methods */
+
+    private String getStatus() {
+        if (error == null) return "ok";
+        int reason = getAbortReason();
+        return (reason == 0) ? "error" : KarelAbortException.reasonName(reason);
+    }
+
+    private static void appendString(StringBuilder sb, String str) {
+        if (str == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < str.length(); i++) {
+            char ch = str.charAt(i);
+            switch (ch) {
+              case '"':  sb.append("\\\""); break;
+              case '\\': sb.append("\\\\"); break;
+              case '\n': sb.append("\\n"); break;
+              case '\r': sb.append("\\r"); break;
+              case '\t': sb.append("\\t"); break;
+              default:
+                if (ch < ' ') {
+                    sb.append(String.format("\\u%04x", (int) ch));
+                } else {
+                    sb.append(ch);
+                }
+                break;
+            }
+        }
+        sb.append('"');
+    }
+
+/* Private state */
+
+    private String karelClass;
+    private String worldName;
+    private Throwable error;
+    private long stepCount;
+    private double elapsedTime;
+    private String finalWorld;
+    private KarelWorldDigest finalDigest;
+}
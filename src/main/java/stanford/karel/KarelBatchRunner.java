@@ -0,0 +1,311 @@
+/*
+ * File: KarelBatchRunner.java
+ * ---------------------------
+ * This file contains a runner that executes many Karel programs in many
+ * worlds without a display.  Every pair of Karel class and world file is
+ * run in its own KarelWorld on a bounded pool of worker threads, and the
+ * outcomes are collected into a list of KarelBatchResult objects.
+ *
+ * Usage: java stanford.karel.KarelBatchRunner [-threads n] [-steps n]
+ *                                             [-timeout ms]
+ *                                             [-cycles window repeats]
+ *                                             [-out file]
+ *                                             class ... world.w ...
+ *
+ * Arguments ending in ".w" name world files, arguments that name
+ * directories contribute every ".w" file they contain, and all other
+ * arguments are Karel class names.  The -cycles option aborts any run in
+ * which the same world state recurs repeats times, each time within window
+ * steps of the last.  The report is written as one JSON object per line.
+ */
+
+package stanford.karel;
+
+import acm.util.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Class: KarelBatchRunner */
+/**
+ * The <code>KarelBatchRunner</code> class runs every combination of a set
+ * of Karel classes and a set of world files.  Each run creates a fresh
+ * <code>KarelWorld</code> and a fresh instance of the Karel class, and no
+ * control panel or display is involved, so runs share no engine state
+ * and can proceed concurrently.
+ */
+public class KarelBatchRunner {
+
+/* Constructor: KarelBatchRunner() */
+/**
+ * Creates a batch runner that uses one worker thread per processor.
+ */
+    public KarelBatchRunner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+/* Constructor: KarelBatchRunner(nThreads) */
+/**
+ * Creates a batch runner that uses at most the specified number of
+ * worker threads.
+ */
+    public KarelBatchRunner(int nThreads) {
+        if (nThreads < 1) throw new ErrorException("KarelBatchRunner: Illegal thread count");
+        this.nThreads = nThreads;
+        karelClasses = new ArrayList<Class<? extends Karel>>();
+        worldFiles = new ArrayList<File>();
+    }
+
+/* Method: setStepLimit */
+/**
+ * Sets the maximum number of primitives each run may execute before it
+ * is aborted.  A limit of 0 means that there is no limit.
+ */
+    public void setStepLimit(long limit) {
+        stepLimit = limit;
+    }
+
+/* Method: setTimeLimit */
+/**
+ * Sets the maximum wall-clock time in milliseconds that each run may
+ * take before it is aborted.  A limit of 0 means that there is no limit.
+ */
+    public void setTimeLimit(long millis) {
+        timeLimit = millis;
+    }
+
+/* Method: setCycleDetection */
+/**
+ * Enables cycle detection in each run, as described for the method of the
+ * same name in <code>KarelWorld</code>.  A window of 0 disables it.
+ */
+    public void setCycleDetection(int window, int repeats) {
+        cycleWindow = window;
+        cycleRepeats = repeats;
+    }
+
+/* Method: addKarelClass */
+/**
+ * Adds a Karel class to the set of programs to run.
+ */
+    public void addKarelClass(Class<? extends Karel> karelClass) {
+        karelClasses.add(karelClass);
+    }
+
+/* Method: addKarelClass */
+/**
+ * Adds the Karel class with the specified name to the set of programs
+ * to run.
+ */
+    public void addKarelClass(String className) {
+        try {
+            addKarelClass(Class.forName(className).asSubclass(Karel.class));
+        } catch (ClassNotFoundException ex) {
+            throw new ErrorException("Can't find class " + className);
+        } catch (ClassCastException ex) {
+            throw new ErrorException(className + " is not a Karel class");
+        }
+    }
+
+/* Method: addWorld */
+/**
+ * Adds a world file to the set of worlds.  If the file is a directory,
+ * every <code>.w</code> file it contains is added.
+ */
+    public void addWorld(File file) {
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files == null) return;
+            Arrays.sort(files);
+            for (int i = 0; i < files.length; i++) {
+                if (files[i].getName().endsWith(".w")) worldFiles.add(files[i]);
+            }
+        } else {
+            worldFiles.add(file);
+        }
+    }
+
+/* Method: run */
+/**
+ * Runs every Karel class in every world and returns the results, ordered
+ * first by Karel class and then by world.  This method returns only when
+ * all of the runs have finished.
+ */
+    public List<KarelBatchResult> run() {
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<KarelBatchResult>> futures = new ArrayList<Future<KarelBatchResult>>();
+            for (final Class<? extends Karel> karelClass : karelClasses) {
+                for (final File worldFile : worldFiles) {
+                    futures.add(executor.submit(new Callable<KarelBatchResult>() {
+                        public KarelBatchResult call() {
+                            return runOne(karelClass, worldFile, stepLimit, timeLimit,
+                                          cycleWindow, cycleRepeats);
+                        }
+                    }));
+                }
+            }
+            List<KarelBatchResult> results = new ArrayList<KarelBatchResult>();
+            for (Future<KarelBatchResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new ErrorException("KarelBatchRunner: Interrupted");
+                } catch (ExecutionException ex) {
+                    throw new ErrorException("" + ex.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+/* Static method: runOne */
+/**
+ * Runs a new instance of the Karel class in a freshly loaded copy of the
+ * world and returns the result.  This method never throws an exception;
+ * failures are recorded in the result.
+ */
+    public static KarelBatchResult runOne(Class<? extends Karel> karelClass, File worldFile) {
+        return runOne(karelClass, worldFile, 0, 0, 0, 0);
+    }
+
+/* Static method: runOne */
+/**
+ * Runs the Karel class as above, aborting the run if it exceeds the
+ * specified step or time limits or if the cycle detector fires.  A limit
+ * or window of 0 disables the corresponding check.
+ */
+    public static KarelBatchResult runOne(Class<? extends Karel> karelClass, File worldFile,
+                                          long stepLimit, long timeLimit,
+                                          int cycleWindow, int cycleRepeats) {
+        KarelBatchResult result = new KarelBatchResult(karelClass.getName(), worldFile.getPath());
+        KarelWorldTemplate template;
+        try {
+            template = KarelWorldTemplate.load(worldFile);
+        } catch (Throwable ex) {
+            result.setError(ex);
+            return result;
+        }
+        runInWorld(new KarelWorld(), karelClass, template, result, stepLimit, timeLimit,
+                   cycleWindow, cycleRepeats, true);
+        return result;
+    }
+
+/* Static method: runOne */
+/**
+ * Runs the Karel class as above in a world loaded from a template, such
+ * as one made by a <code>KarelWorldGenerator</code>.  The world name is
+ * recorded in the result.
+ */
+    public static KarelBatchResult runOne(Class<? extends Karel> karelClass,
+                                          KarelWorldTemplate template, String worldName,
+                                          long stepLimit, long timeLimit,
+                                          int cycleWindow, int cycleRepeats) {
+        KarelBatchResult result = new KarelBatchResult(karelClass.getName(), worldName);
+        runInWorld(new KarelWorld(), karelClass, template, result, stepLimit, timeLimit,
+                   cycleWindow, cycleRepeats, true);
+        return result;
+    }
+
+/* Package-private methods */
+
+/*
+ * Method: runInWorld
+ * Usage: runInWorld(world, karelClass, template, result, ...);
+ * ------------------------------------------------------------
+ * Runs a new instance of the Karel class in the specified world, which
+ * must be empty, after loading it from the template.  The outcome is
+ * recorded in the result, and the world is left in its final state so
+ * that callers such as KarelFuzzer can examine it.  Saving the final
+ * world and its digest in the result costs time in proportion to the size
+ * of the world, so callers that only examine the world can skip it by
+ * passing false for saveFinalWorld.
+ */
+    static void runInWorld(KarelWorld world, Class<? extends Karel> karelClass,
+                           KarelWorldTemplate template, KarelBatchResult result,
+                           long stepLimit, long timeLimit, int cycleWindow, int cycleRepeats,
+                           boolean saveFinalWorld) {
+        try {
+            Karel karel = karelClass.getDeclaredConstructor().newInstance();
+            world.add(karel);
+            world.load(template);
+            world.setStepLimit(stepLimit);
+            world.setTimeLimit(timeLimit);
+            world.resetStepCount();
+            world.setCycleDetection(cycleWindow, cycleRepeats);
+            long start = System.nanoTime();
+            try {
+                karel.run();
+            } finally {
+                result.setElapsedTime((System.nanoTime() - start) / 1.0E6);
+                result.setStepCount(world.getStepCount());
+                if (saveFinalWorld) result.setFinalWorld(world);
+            }
+        } catch (Throwable ex) {
+            result.setError(ex);
+        }
+    }
+
+/* Main program */
+
+    public static void main(String[] args) {
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        long stepLimit = 0;
+        long timeLimit = 0;
+        int cycleWindow = 0;
+        int cycleRepeats = 0;
+        String outFile = null;
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads") && i + 1 < args.length) {
+                nThreads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-steps") && i + 1 < args.length) {
+                stepLimit = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-timeout") && i + 1 < args.length) {
+                timeLimit = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-cycles") && i + 2 < args.length) {
+                cycleWindow = Integer.parseInt(args[++i]);
+                cycleRepeats = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-out") && i + 1 < args.length) {
+                outFile = args[++i];
+            } else {
+                names.add(args[i]);
+            }
+        }
+        KarelBatchRunner runner = new KarelBatchRunner(nThreads);
+        runner.setStepLimit(stepLimit);
+        runner.setTimeLimit(timeLimit);
+        runner.setCycleDetection(cycleWindow, cycleRepeats);
+        for (String name : names) {
+            File file = new File(name);
+            if (name.endsWith(".w") || file.isDirectory()) {
+                runner.addWorld(file);
+            } else {
+                runner.addKarelClass(name);
+            }
+        }
+        List<KarelBatchResult> results = runner.run();
+        try {
+            PrintWriter wr = (outFile == null) ? new PrintWriter(System.out)
+                                               : new PrintWriter(new FileWriter(outFile));
+            for (KarelBatchResult result : results) {
+                wr.println(result.toJSON());
+            }
+            wr.flush();
+            if (outFile != null) wr.close();
+        } catch (IOException ex) {
+            throw new ErrorException("" + ex);
+        }
+    }
+
+/* Private state */
+
+    private int nThreads;
+    private long stepLimit, timeLimit;
+    private int cycleWindow, cycleRepeats;
+    private ArrayList<Class<? extends Karel>> karelClasses;
+    private ArrayList<File> worldFiles;
+}
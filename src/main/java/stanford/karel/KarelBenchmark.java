@@ -0,0 +1,490 @@
+/*
+ * File: KarelBenchmark.java
+ * -------------------------
+ * This file contains simple benchmarks for the Karel engine.  They run
+ * against a headless KarelWorld and report timings on standard output.
+ *
+ * Usage: java stanford.karel.KarelBenchmark [alloc | parse | template]
+ */
+
+package stanford.karel;
+
+import acm.util.*;
+import java.awt.*;
+import java.io.*;
+import java.lang.management.*;
+
+public class KarelBenchmark {
+
+    public static void main(String[] args) {
+        String name = (args.length == 0) ? "all" : args[0];
+        boolean ok = true;
+        if (name.equals("all") || name.equals("alloc")) ok &= allocationBenchmark();
+        if (name.equals("all") || name.equals("parse")) ok &= parseBenchmark();
+        if (name.equals("all") || name.equals("template")) ok &= templateBenchmark();
+        if (!ok) System.exit(1);
+    }
+
+/*
+ * Method: allocationBenchmark
+ * Usage: ok = allocationBenchmark();
+ * ----------------------------------
+ * Runs the Karel primitives in a loop and measures the number of bytes
+ * allocated by the running thread.  Once the code is warmed up, the
+ * primitives are expected to allocate nothing at all.
+ */
+    public static boolean allocationBenchmark() {
+        KarelWorld world = new KarelWorld();
+        world.init(50, 50);
+        SweepingKarel karel = new SweepingKarel();
+        world.add(karel);
+        karel.setBeepersInBag(KarelWorld.INFINITE);
+        karel.sweep(WARMUP_ROUNDS);
+        com.sun.management.ThreadMXBean bean = getThreadBean();
+        long tid = Thread.currentThread().getId();
+        long steps0 = karel.steps;
+        long t0 = System.nanoTime();
+        long bytes0 = bean.getThreadAllocatedBytes(tid);
+        karel.sweep(MEASURED_ROUNDS);
+        long bytes1 = bean.getThreadAllocatedBytes(tid);
+        long t1 = System.nanoTime();
+        long steps = karel.steps - steps0;
+        long bytes = bytes1 - bytes0;
+        System.out.println("alloc: " + steps + " primitives, " + bytes + " bytes allocated ("
+                           + ((double) bytes / steps) + " bytes/primitive), "
+                           + ((double) (t1 - t0) / steps) + " ns/primitive");
+        return bytes <= ALLOCATION_SLACK;
+    }
+
+/*
+ * Method: parseBenchmark
+ * Usage: ok = parseBenchmark();
+ * -----------------------------
+ * Loads a densely populated world repeatedly, first through the original
+ * StreamTokenizer reader and then through KarelWorldParser, and checks
+ * that both produce the same world and that the parser is faster.
+ */
+    public static boolean parseBenchmark() {
+        String text = createSampleWorld();
+        KarelWorld world = new KarelWorld();
+        world.add(new Karel());
+        TokenizerWorldReader reader = new TokenizerWorldReader(world);
+        com.sun.management.ThreadMXBean bean = getThreadBean();
+        long tid = Thread.currentThread().getId();
+        for (int i = 0; i < PARSE_WARMUP; i++) {
+            reader.load(new StringReader(text));
+            world.loadText(text);
+        }
+        long bytes0 = bean.getThreadAllocatedBytes(tid);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < PARSE_ROUNDS; i++) {
+            reader.load(new StringReader(text));
+        }
+        long t1 = System.nanoTime();
+        long bytes1 = bean.getThreadAllocatedBytes(tid);
+        long oldHash = world.getStateHash();
+        for (int i = 0; i < PARSE_ROUNDS; i++) {
+            world.loadText(text);
+        }
+        long t2 = System.nanoTime();
+        long bytes2 = bean.getThreadAllocatedBytes(tid);
+        double oldTime = (double) (t1 - t0) / PARSE_ROUNDS / 1000;
+        double newTime = (double) (t2 - t1) / PARSE_ROUNDS / 1000;
+        System.out.println("parse: " + text.length() + " chars, tokenizer "
+                           + oldTime + " us/load (" + (bytes1 - bytes0) / PARSE_ROUNDS + " bytes), parser "
+                           + newTime + " us/load (" + (bytes2 - bytes1) / PARSE_ROUNDS + " bytes)");
+        return world.getStateHash() == oldHash && newTime < oldTime;
+    }
+
+/*
+ * Method: templateBenchmark
+ * Usage: ok = templateBenchmark();
+ * --------------------------------
+ * Compares parsing a world for every run against instantiating it from a
+ * parsed KarelWorldTemplate.
+ */
+    public static boolean templateBenchmark() {
+        String text = createSampleWorld();
+        KarelWorldTemplate template = KarelWorldTemplate.parse(text);
+        for (int i = 0; i < TEMPLATE_WARMUP; i++) {
+            template.createWorld();
+            newWorld().loadText(text);
+        }
+        long t0 = System.nanoTime();
+        for (int i = 0; i < TEMPLATE_ROUNDS; i++) {
+            newWorld().loadText(text);
+        }
+        long t1 = System.nanoTime();
+        for (int i = 0; i < TEMPLATE_ROUNDS; i++) {
+            template.createWorld();
+        }
+        long t2 = System.nanoTime();
+        double parseTime = (double) (t1 - t0) / TEMPLATE_ROUNDS / 1000;
+        double copyTime = (double) (t2 - t1) / TEMPLATE_ROUNDS / 1000;
+        System.out.println("template: parse " + parseTime + " us/world, template "
+                           + copyTime + " us/world");
+        return copyTime < parseTime;
+    }
+
+/* Private methods */
+
+    private static KarelWorld newWorld() {
+        KarelWorld world = new KarelWorld();
+        world.add(new Karel());
+        return world;
+    }
+
+    private static String createSampleWorld() {
+        KarelWorld world = new KarelWorld();
+        Karel karel = new Karel();
+        world.add(karel);
+        world.init(SAMPLE_SIZE, SAMPLE_SIZE);
+        for (int x = 1; x <= SAMPLE_SIZE; x++) {
+            for (int y = 1; y <= SAMPLE_SIZE; y++) {
+                if ((x * 7 + y * 3) % 5 == 0) world.setWall(x, y, KarelWorld.NORTH);
+                if ((x * 3 + y * 11) % 7 == 0) world.setWall(x, y, KarelWorld.EAST);
+                if ((x + y) % 3 == 0) world.setBeepersOnCorner(x, y, x % 4 + 1);
+                if ((x * y) % 13 == 0) world.setCornerColor(x, y, java.awt.Color.RED);
+            }
+        }
+        karel.setLocation(3, 4);
+        karel.setBeepersInBag(KarelWorld.INFINITE);
+        StringWriter sw = new StringWriter();
+        PrintWriter wr = new PrintWriter(sw);
+        world.save(wr);
+        wr.flush();
+        return sw.toString();
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadBean() {
+        com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        bean.setThreadAllocatedMemoryEnabled(true);
+        return bean;
+    }
+
+/* Private constants */
+
+    private static final int WARMUP_ROUNDS = 2000;
+    private static final int MEASURED_ROUNDS = 20000;
+    private static final long ALLOCATION_SLACK = 1024;
+    private static final int PARSE_WARMUP = 200;
+    private static final int PARSE_ROUNDS = 500;
+    private static final int TEMPLATE_WARMUP = 2000;
+    private static final int TEMPLATE_ROUNDS = 2000;
+    private static final int SAMPLE_SIZE = 50;
+
+}
+
+/*
+ * Class: SweepingKarel
+ * --------------------
+ * This Karel walks the world row by row, exercising every primitive on
+ * each corner, and counts the primitives it has executed.
+ */
+class SweepingKarel extends Karel {
+
+    public void sweep(int rounds) {
+        for (int i = 0; i < rounds; i++) {
+            while (frontIsClear()) {
+                putBeeper();
+                if (beepersPresent()) pickBeeper();
+                if (leftIsBlocked() != rightIsClear()) edges++;
+                move();
+                steps += 7;
+            }
+            turnLeft();
+            turnLeft();
+            steps += 3;
+        }
+    }
+
+    public long steps;
+    public long edges;
+
+}
+
+/*
+ * Class: TokenizerWorldReader
+ * ---------------------------
+ * This class is the StreamTokenizer-based reader that loaded world files
+ * before KarelWorldParser.  It is kept here only as the baseline for the
+ * parse benchmark.
+ */
+class TokenizerWorldReader {
+
+    public TokenizerWorldReader(KarelWorld world) {
+        this.world = world;
+    }
+
+    public void load(Reader rd) {
+        try {
+            world.setRepaintFlag(false);
+            lastBeeperCount = KarelWorld.INFINITE;
+            tokenizer = new StreamTokenizer(rd);
+            tokenizer.eolIsSignificant(true);
+            tokenizer.lowerCaseMode(true);
+            tokenizer.resetSyntax();
+            tokenizer.wordChars('A', 'Z');
+            tokenizer.wordChars('a', 'z');
+            tokenizer.wordChars('0', '9');
+            tokenizer.wordChars('.', '.');
+            tokenizer.wordChars('_', '_');
+            tokenizer.whitespaceChars(' ', ' ');
+            tokenizer.whitespaceChars('\t', '\t');
+            tokenizer.whitespaceChars('\r', '\r');
+            while (readMapLine()) {
+                /* Empty */
+            }
+            rd.close();
+            world.setRepaintFlag(true);
+            world.repaint();
+        } catch (IOException ex) {
+            world.setRepaintFlag(true);
+            throw new ErrorException("I/O error reading map file");
+        }
+    }
+
+    private boolean readMapLine() {
+        int token = nextToken();
+        switch (token) {
+          case StreamTokenizer.TT_EOF: return false;
+          case StreamTokenizer.TT_EOL: return true;
+          case StreamTokenizer.TT_WORD:
+              String cmd = tokenizer.sval;
+              if (nextToken() != ':') {
+                  throw new ErrorException("Missing colon after " + cmd);
+              }
+            if (cmd.equals("dimension")) {
+                dimensionCommand();
+            } else if (cmd.equals("karel") || cmd.equals("turtle")) {
+                karelCommand();
+            } else if (cmd.equals("wall")) {
+                wallCommand();
+            } else if (cmd.equals("mark") || cmd.equals("color")) {
+                setColorCommand();
+            } else if (cmd.equals("speed")) {
+                speedCommand();
+            } else if (cmd.equals("beeper")) {
+                beeperCommand();
+            } else if (cmd.equals("beeperbag")) {
+                beeperBagCommand();
+            } else {
+                throw new ErrorException("Illegal command: " + cmd);
+            }
+            break;
+          default:
+              throw new ErrorException("Illegal character '" + (char) token + "'");
+        }
+        return (true);
+    }
+
+    private void dimensionCommand() {
+        verifyToken('(');
+        int cols = scanInt();
+        verifyToken(',');
+        int rows = scanInt();
+        verifyToken(')');
+        verifyToken(StreamTokenizer.TT_EOL);
+        world.init(cols, rows);
+    }
+
+    private void karelCommand() {
+        Point pt = new Point(0, 0);
+        int dir = KarelWorld.EAST;
+        int nBeepers = lastBeeperCount;
+        verifyToken('(');
+        pt.x = scanInt();
+        verifyToken(',');
+        pt.y = scanInt();
+        verifyToken(')');
+        if (nextToken() != StreamTokenizer.TT_WORD) {
+            throw new ErrorException("Illegal direction");
+        }
+        if ("north".startsWith(tokenizer.sval)) {
+            dir = KarelWorld.NORTH;
+        } else if ("east".startsWith(tokenizer.sval)) {
+            dir = KarelWorld.EAST;
+        } else if ("south".startsWith(tokenizer.sval)) {
+            dir = KarelWorld.SOUTH;
+        } else if ("west".startsWith(tokenizer.sval)) {
+            dir = KarelWorld.WEST;
+        } else {
+            throw new ErrorException("Illegal direction " + tokenizer.sval);
+        }
+        int token = nextToken();
+        if (token == StreamTokenizer.TT_WORD) {
+            if ("infinite".startsWith(tokenizer.sval) || "infinity".startsWith(tokenizer.sval)) {
+                nBeepers = KarelWorld.INFINITE;
+            } else {
+                try {
+                    nBeepers = Integer.parseInt(tokenizer.sval);
+                } catch (NumberFormatException ex) {
+                    throw new ErrorException("Illegal beeper bag value");
+                }
+            }
+            token = nextToken();
+        }
+        if (token != StreamTokenizer.TT_EOL) {
+            throw new ErrorException("Unexpected tokens at end of line");
+        }
+        lastKarel = world.getKarel();
+        if (lastKarel != null) {
+            lastKarel.setLocation(pt.x, pt.y);
+            lastKarel.setDirection(dir);
+            lastKarel.setBeepersInBag(nBeepers);
+        }
+    }
+
+    private void wallCommand() {
+        Point pt = new Point(0, 0);
+        int dir = KarelWorld.EAST;
+        verifyToken('(');
+        pt.x = scanInt();
+        verifyToken(',');
+        pt.y = scanInt();
+        verifyToken(')');
+        if (nextToken() != StreamTokenizer.TT_WORD) {
+            throw new ErrorException("Illegal direction");
+        }
+        if ("north".startsWith(tokenizer.sval)) {
+            dir = KarelWorld.NORTH;
+        } else if ("east".startsWith(tokenizer.sval)) {
+            dir = KarelWorld.EAST;
+        } else if ("south".startsWith(tokenizer.sval)) {
+            dir = KarelWorld.SOUTH;
+        } else if ("west".startsWith(tokenizer.sval)) {
+            dir = KarelWorld.WEST;
+        } else {
+            throw new ErrorException("Illegal direction " + tokenizer.sval);
+        }
+        verifyToken(StreamTokenizer.TT_EOL);
+        world.setWall(pt, dir);
+    }
+
+    private void setColorCommand() {
+        Point pt = new Point(0, 0);
+        String colorName = null;
+        verifyToken('(');
+        pt.x = scanInt();
+        verifyToken(',');
+        pt.y = scanInt();
+        verifyToken(')');
+        int tt = nextToken();
+        if (tt != StreamTokenizer.TT_EOL) {
+            if (tt != StreamTokenizer.TT_WORD) throw new ErrorException("Missing color name");
+            colorName = tokenizer.sval.toLowerCase();
+            verifyToken(StreamTokenizer.TT_EOL);
+        }
+        world.setCornerColor(pt, KarelWorld.decodeColor(colorName));
+    }
+
+    private void speedCommand() {
+        if (nextToken() != StreamTokenizer.TT_WORD) {
+            throw new ErrorException("I expected a number");
+        }
+        double speed = Double.parseDouble(tokenizer.sval);
+        verifyToken(StreamTokenizer.TT_EOL);
+        KarelWorldMonitor monitor = world.getMonitor();
+        if (monitor != null) monitor.setSpeed(speed);
+    }
+
+    private void beeperBagCommand() {
+        if (nextToken() != StreamTokenizer.TT_WORD) {
+            throw new ErrorException("Illegal beeper count");
+        }
+        int nBeepers = 0;
+        if ("infinite".startsWith(tokenizer.sval) || "infinity".startsWith(tokenizer.sval)) {
+            nBeepers = KarelWorld.INFINITE;
+        } else {
+            tokenizer.pushBack();
+            nBeepers = scanInt();
+        }
+        verifyToken(StreamTokenizer.TT_EOL);
+        if (lastKarel == null) {
+            lastBeeperCount = nBeepers;
+        } else {
+            lastKarel.setBeepersInBag(nBeepers);
+        }
+    }
+
+    private void beeperCommand() {
+        Point pt = new Point(0, 0);
+        verifyToken('(');
+        pt.x = scanInt();
+        verifyToken(',');
+        pt.y = scanInt();
+        verifyToken(')');
+        int nBeepers = 1;
+        int token = nextToken();
+        if (token != StreamTokenizer.TT_EOL) {
+            if (token != StreamTokenizer.TT_WORD) {
+                throw new ErrorException("Illegal beeper count");
+            }
+            if ("infinite".startsWith(tokenizer.sval) || "infinity".startsWith(tokenizer.sval)) {
+                nBeepers = KarelWorld.INFINITE;
+            } else {
+                tokenizer.pushBack();
+                nBeepers = scanInt();
+            }
+            verifyToken(StreamTokenizer.TT_EOL);
+        }
+        world.setBeepersOnCorner(pt, nBeepers);
+    }
+
+    private void ignoreCommand() {
+        while (nextToken() != StreamTokenizer.TT_EOL) {
+            /* Empty */
+        }
+    }
+
+    private void verifyToken(int token) {
+        if (nextToken() != token) {
+            if (token == StreamTokenizer.TT_EOL) {
+                throw new ErrorException("Unexpected tokens at end of line");
+            }
+            throw new ErrorException("I expected a '" + (char) token + "'");
+        }
+    }
+
+    private int scanInt() {
+        if (nextToken() != StreamTokenizer.TT_WORD) {
+            throw new ErrorException("I expected an integer");
+        }
+        try {
+            return Integer.parseInt(tokenizer.sval);
+        } catch (NumberFormatException ex) {
+            throw new ErrorException("Illegal integer");
+        }
+    }
+
+    private int nextToken() {
+        int token = 0;
+        try {
+            token = tokenizer.nextToken();
+        } catch (IOException ex) {
+            throw new ErrorException("Exception: " + ex);
+        }
+        if (KarelWorld.TOKEN_TRACE) {
+            switch (token) {
+              case StreamTokenizer.TT_EOF: System.out.println("<EOF>"); break;
+              case StreamTokenizer.TT_EOL: System.out.println(); break;
+              case StreamTokenizer.TT_WORD:
+                  System.out.print(tokenizer.sval + " ");
+                  break;
+              default:
+                  System.out.print((char) token + " ");
+                  break;
+            }
+        }
+        return ((token == '\n') ? StreamTokenizer.TT_EOL : token);
+    }
+
+/* Private state */
+
+    private KarelWorld world;
+    private StreamTokenizer tokenizer;
+    private Karel lastKarel;
+    private int lastBeeperCount;
+
+}
@@ -0,0 +1,192 @@
+/*
+ * File: KarelBinaryFormat.java
+ * ----------------------------
+ * This file implements the binary format for Karel worlds, which is
+ * intended for large generated worlds that would be slow to parse and
+ * bulky to store in the text format.  The main program converts between
+ * the two formats.
+ *
+ * Usage: java stanford.karel.KarelBinaryFormat input output
+ *
+ * The direction of the conversion is chosen by the input file: if it
+ * begins with the binary magic number, it is converted to text, and
+ * otherwise it is converted to binary.
+ */
+
+package stanford.karel;
+
+import acm.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/* Class: KarelBinaryFormat */
+/**
+ * This class reads and writes worlds in the binary format.  All values
+ * are big-endian.  A file consists of:
+ *
+ * <ul>
+ * <li>The magic number <code>KRLW</code> and a 16-bit version number,
+ *     followed by 16 bits of flags.
+ * <li>The number of columns and rows.
+ * <li>The color palette as a count followed by ARGB values.
+ * <li>A count of tiles, followed by a record for each nonempty tile of
+ *     64&nbsp;&times;&nbsp;64 corners.  A record gives the column and row
+ *     of the tile, the south and west wall bitplanes as 64 longs each, in
+ *     which bit <i>i</i> of long <i>j</i> is the wall of the corner in
+ *     column <i>i</i> and row <i>j</i> of the tile, and then the beeper
+ *     and color planes in the same corner order, each as a count of runs
+ *     followed by (length, value) pairs.  The walls around the edge of the
+ *     world are implicit.
+ * <li>The speed, if the <code>SPEED_FLAG</code> bit is set.
+ * <li>A count of Karel records, each giving the avenue, street,
+ *     direction, and number of beepers in the bag.
+ * </ul>
+ */
+public class KarelBinaryFormat {
+
+    public static final int MAGIC = 0x4B524C57;
+    public static final int VERSION = 2;
+    public static final int SPEED_FLAG = 1;
+
+/* Static method: write(world, out) */
+/**
+ * Writes the world to the output stream in the binary format.
+ */
+    public static void write(KarelWorld world, OutputStream os) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+        KarelWorldMonitor monitor = world.getMonitor();
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeShort((monitor == null) ? 0 : SPEED_FLAG);
+        out.writeInt(world.getColumns());
+        out.writeInt(world.getRows());
+        world.getGrid().write(out);
+        if (monitor != null) out.writeDouble(monitor.getSpeed());
+        int nKarels = world.getKarelCount();
+        out.writeInt(nKarels);
+        for (int i = 0; i < nKarels; i++) {
+            Karel karel = world.getKarel(i);
+            out.writeInt(karel.getAvenue());
+            out.writeInt(karel.getStreet());
+            out.writeByte(karel.getDirection());
+            out.writeInt(karel.getBeepersInBag());
+        }
+        out.flush();
+    }
+
+/* Static method: read(buffer, world) */
+/**
+ * Reads a world in the binary format from the buffer into the world.  The
+ * Karel records are applied in order to the Karels already in the world;
+ * records for which the world has no Karel are ignored.
+ */
+    public static void read(ByteBuffer buffer, KarelWorld world) {
+        try {
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (buffer.getInt() != MAGIC) throw new ErrorException("Not a binary Karel world");
+            int version = buffer.getShort();
+            if (version != VERSION) throw new ErrorException("Unsupported binary world version " + version);
+            int flags = buffer.getShort();
+            int cols = buffer.getInt();
+            int rows = buffer.getInt();
+            if (cols < 1 || cols > KarelWorld.MAX_COLUMNS || rows < 1 || rows > KarelWorld.MAX_ROWS) {
+                throw new ErrorException("Illegal world dimensions");
+            }
+            KarelGrid grid = new KarelGrid(cols, rows);
+            grid.read(buffer);
+            world.installGrid(grid);
+            if ((flags & SPEED_FLAG) != 0) {
+                double speed = buffer.getDouble();
+                KarelWorldMonitor monitor = world.getMonitor();
+                if (monitor != null) monitor.setSpeed(speed);
+            }
+            int nKarels = buffer.getInt();
+            for (int i = 0; i < nKarels; i++) {
+                int x = buffer.getInt();
+                int y = buffer.getInt();
+                int dir = buffer.get();
+                int nBeepers = buffer.getInt();
+                if (i < world.getKarelCount()) {
+                    Karel karel = world.getKarel(i);
+                    karel.setLocation(x, y);
+                    karel.setDirection(dir);
+                    karel.setBeepersInBag(nBeepers);
+                }
+            }
+        } catch (BufferUnderflowException ex) {
+            throw new ErrorException("Binary world file is truncated");
+        }
+    }
+
+/* Static method: read(file, world) */
+/**
+ * Maps the file into memory and reads it into the world.
+ */
+    public static void read(File file, KarelWorld world) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), world);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException ex) {
+            throw new ErrorException("I/O error reading map file");
+        }
+    }
+
+/* Static method: isBinary(buffer) */
+/**
+ * Returns true if the buffer begins with the binary magic number.  The
+ * position of the buffer is not changed.
+ */
+    public static boolean isBinary(ByteBuffer buffer) {
+        int pos = buffer.position();
+        return buffer.limit() - pos >= 4 && buffer.getInt(pos) == MAGIC;
+    }
+
+/* Main program */
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("Usage: java stanford.karel.KarelBinaryFormat input output");
+            System.exit(1);
+        }
+        KarelWorld world = new KarelWorld();
+        world.add(new Karel());
+        SpeedRecorder recorder = new SpeedRecorder();
+        world.setMonitor(recorder);
+        File input = new File(args[0]);
+        File output = new File(args[1]);
+        try {
+            if (isBinary(input)) {
+                read(input, world);
+                if (!recorder.hasSpeed) world.setMonitor(null);
+                PrintWriter wr = new PrintWriter(new FileWriter(output));
+                world.save(wr);
+                wr.close();
+            } else {
+                world.load(input);
+                if (!recorder.hasSpeed) world.setMonitor(null);
+                OutputStream os = new FileOutputStream(output);
+                write(world, os);
+                os.close();
+            }
+        } catch (IOException ex) {
+            throw new ErrorException("" + ex);
+        }
+    }
+
+/* Private methods */
+
+    private static boolean isBinary(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return file.length() >= 4 && in.readInt() == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+}
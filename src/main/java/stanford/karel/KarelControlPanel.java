@@ -17,6 +17,7 @@ class KarelControlPanel extends CardPanel
     public KarelControlPanel(KarelProgram program) {
         this.program = program;
         world = program.getWorld();
+        view = program.getWorldView();
         editor = createEditor();
         resizer = createResizer();
         editorPanel = createEditorPanel();
@@ -32,6 +33,10 @@ class KarelControlPanel extends CardPanel
         return world;
     }
 
+    public KarelWorldView getWorldView() {
+        return view;
+    }
+
     public KarelProgram getProgram() {
         return program;
     }
@@ -86,8 +91,9 @@ class KarelControlPanel extends CardPanel
  * This action is invoked when karel executes an instruction
  */
     public void trace() {
-        double delay = SLOW_DELAY + Math.sqrt(speed) * (FAST_DELAY - SLOW_DELAY);
-        if (speed < 0.98) JTFTools.pause(delay);
+        if (speed < TURBO_SPEED) {
+            JTFTools.pause(SLOW_DELAY + Math.sqrt(speed) * (FAST_DELAY - SLOW_DELAY));
+        }
     }
 
 /* Method: setSpeed */
@@ -98,6 +104,7 @@ class KarelControlPanel extends CardPanel
     public void setSpeed(double speed) {
         this.speed = speed;
         speedBar.setValue((int) Math.round(100 * speed));
+        updateFrameRate();
     }
 
 /* Method: getSpeed */
@@ -110,7 +117,7 @@ class KarelControlPanel extends CardPanel
     }
 
     protected KarelWorldEditor createEditor() {
-        return new KarelWorldEditor(getWorld());
+        return new KarelWorldEditor(getWorldView());
     }
 
     protected Component createEditorPanel() {
@@ -148,6 +155,16 @@ class KarelControlPanel extends CardPanel
         hPanel.add("/center/width:100", speedBar);
         hPanel.add("/center", new Label(" Fast"));
         vPanel.add("/center/top:8", hPanel);
+        HPanel stepPanel = new HPanel();
+        stepBar = new Scrollbar(0);
+        stepBar.addAdjustmentListener(this);
+        stepBar.setValues(0, 1, 0, 1);
+        stepBar.setEnabled(false);
+        stepPanel.add("/center", new Label("Step "));
+        stepPanel.add("/center/width:100", stepBar);
+        vPanel.add("/center/top:8", stepPanel);
+        stepLabel = new Label("", Label.CENTER);
+        vPanel.add("/center/width:" + (BUTTON_WIDTH + 50), stepLabel);
         return vPanel;
     }
 
@@ -174,33 +191,36 @@ class KarelControlPanel extends CardPanel
         if (source == startButton) {
             program.signalStarted();
         } else if (source == loadWorldButton) {
-            FileDialog dialog = new LoadWorldDialog(world);
+            FileDialog dialog = new LoadWorldDialog(view);
             dialog.setVisible(true);
             String fileName = dialog.getFile();
             if (fileName != null) world.load(dialog.getDirectory() + "/" + fileName);
         } else if (source == newWorldButton) {
             setView("resize");
         } else if (source == editWorldButton) {
-            world.setEditMode(true);
+            clearJournal();
+            view.setEditMode(true);
             editor.initEditorCanvas();
             setView("editor");
         } else if (source == saveWorldButton) {
             if (world.getPathname() == null) {
-                FileDialog dialog = new NewWorldDialog(world);
+                FileDialog dialog = new NewWorldDialog(view);
                 dialog.setVisible(true);
                 String fileName = dialog.getFile();
                 if (fileName != null) world.setPathName(dialog.getDirectory() + "/" + fileName);
             }
             world.save();
-            world.setEditMode(false);
+            world.saveInitialState();
+            view.setEditMode(false);
             setView("buttons");
         } else if (source == dontSaveButton) {
-            world.setEditMode(false);
+            world.saveInitialState();
+            view.setEditMode(false);
             setView("buttons");
         } else if (source == cancelButton) {
             setView("buttons");
         } else if (source == okButton) {
-            FileDialog dialog = new NewWorldDialog(world);
+            FileDialog dialog = new NewWorldDialog(view);
             dialog.setVisible(true);
             String fileName = dialog.getFile();
             if (fileName == null) {
@@ -208,7 +228,7 @@ class KarelControlPanel extends CardPanel
             } else {
                 world.init(resizer.getColumns(), resizer.getRows());
                 world.setPathName(dialog.getDirectory() + "/" + fileName);
-                world.setEditMode(true);
+                view.setEditMode(true);
                 if (world.getKarelCount() == 1) {
                     Karel karel = world.getKarel();
                     karel.setLocation(1, 1);
@@ -228,9 +248,74 @@ class KarelControlPanel extends CardPanel
         Component source = (Component) e.getSource();
         if (source == speedBar) {
             speed = speedBar.getValue() / 100.0;
+            updateFrameRate();
+        } else if (source == stepBar) {
+            KarelJournal journal = world.getJournal();
+            if (journal != null) {
+                journal.seek(journal.getFirstStep() + stepBar.getValue());
+                updateStepLabel(journal);
+            }
         }
     }
 
+/* Method: runStarted */
+/**
+ * This method is invoked when the program starts running Karel.  The step
+ * scrubber is disabled during a run, since only the thread running Karel
+ * may change the world.
+ */
+    public void runStarted() {
+        stepBar.setEnabled(false);
+        stepLabel.setText("");
+    }
+
+/* Method: runFinished */
+/**
+ * This method is invoked when a run ends.  It sets the range of the step
+ * scrubber to the history held by the world's journal.
+ */
+    public void runFinished() {
+        KarelJournal journal = world.getJournal();
+        if (journal == null) return;
+        long first = journal.getFirstStep();
+        int range = (int) Math.min(Integer.MAX_VALUE - 1, journal.getLastStep() - first);
+        int value = (int) Math.min(range, journal.getStep() - first);
+        stepBar.setValues(value, 1, 0, range + 1);
+        stepBar.setBlockIncrement(Math.max(1, range / 20));
+        stepBar.setEnabled(range > 0);
+        updateStepLabel(journal);
+    }
+
+    private void updateStepLabel(KarelJournal journal) {
+        stepLabel.setText("Step " + journal.getStep() + " of " + journal.getLastStep());
+    }
+
+/*
+ * Method: clearJournal
+ * Usage: clearJournal();
+ * ----------------------
+ * Discards the history of the last run before the world is edited, so
+ * that the edits are not recorded as steps of the run and undone by the
+ * scrubber, and disables the scrubber.
+ */
+    private void clearJournal() {
+        KarelJournal journal = world.getJournal();
+        if (journal == null) return;
+        journal.worldChanged();
+        runFinished();
+    }
+
+/*
+ * Method: updateFrameRate
+ * Usage: updateFrameRate();
+ * -------------------------
+ * At full speed, Karel runs without pausing and the view samples the
+ * world at a fixed frame rate; at slower speeds, every step is shown.
+ */
+    private void updateFrameRate() {
+        view.setFrameRate((speed >= TURBO_SPEED) ? TURBO_FRAME_RATE : 0);
+    }
+
 /* Private state */
 
     private static final int BUTTON_WIDTH = 100;
@@ -240,9 +325,12 @@ class KarelControlPanel extends CardPanel
     private static final int GAP = 5;
     private static final double SLOW_DELAY = 200.0;
     private static final double FAST_DELAY = 0.0;
+    private static final double TURBO_SPEED = 0.98;
+    private static final int TURBO_FRAME_RATE = 60;
 
     private KarelProgram program;
     private KarelWorld world;
+    private KarelWorldView view;
     private KarelWorldEditor editor;
     private KarelResizer resizer;
     private Component buttonPanel;
@@ -257,14 +345,16 @@ class KarelControlPanel extends CardPanel
     private Button okButton;
     private Button cancelButton;
     private Scrollbar speedBar;
+    private Scrollbar stepBar;
+    private Label stepLabel;
     private double speed;
 
 }
 
 class LoadWorldDialog extends FileDialog implements FilenameFilter {
 
-    public LoadWorldDialog(KarelWorld world) {
-        super(JTFTools.getEnclosingFrame(world), "Load World");
+    public LoadWorldDialog(KarelWorldView view) {
+        super(JTFTools.getEnclosingFrame(view), "Load World");
         setDirectory(KarelProgram.getWorldDirectory());
         setFilenameFilter(this);
     }
@@ -275,8 +365,8 @@ class LoadWorldDialog extends FileDialog implements FilenameFilter {
 }
 
 class NewWorldDialog extends FileDialog {
-    public NewWorldDialog(KarelWorld world) {
-        super(JTFTools.getEnclosingFrame(world), "New World", FileDialog.SAVE);
+    public NewWorldDialog(KarelWorldView view) {
+        super(JTFTools.getEnclosingFrame(view), "New World", FileDialog.SAVE);
         setDirectory(KarelProgram.getWorldDirectory());
     }
 }
@@ -404,7 +494,7 @@ class ResizeCanvas extends Canvas {
     }
 
     private void drawCornerMarker(Graphics g, int x, int y) {
-        if (sqSize < KarelWorld.CROSS_THRESHOLD) {
+        if (sqSize < KarelWorldView.CROSS_THRESHOLD) {
             g.drawLine(x, y, x, y);
         } else {
             g.drawLine(x - 1, y, x + 1, y);
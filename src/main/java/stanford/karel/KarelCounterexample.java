@@ -0,0 +1,110 @@
+/*
+ * File: KarelCounterexample.java
+ * ------------------------------
+ * This file contains the class that describes a world in which a Karel
+ * program fails one of the invariants checked by a KarelFuzzer.
+ */
+
+package stanford.karel;
+
+import java.io.*;
+
+/* Class: KarelCounterexample */
+/**
+ * A <code>KarelCounterexample</code> records the first seed for which a
+ * <code>KarelFuzzer</code> found a failing world, together with the
+ * smallest world it could derive from that seed that still fails.  The
+ * seed reproduces the original world with the same generator settings.
+ */
+public class KarelCounterexample {
+
+/* Constructor */
+
+    KarelCounterexample(long seed, int originalColumns, int originalRows,
+                        KarelWorldTemplate world, String message, KarelBatchResult result,
+                        int shrinkRuns) {
+        this.seed = seed;
+        this.originalColumns = originalColumns;
+        this.originalRows = originalRows;
+        this.world = world;
+        this.message = message;
+        this.result = result;
+        this.shrinkRuns = shrinkRuns;
+    }
+
+/* Method: getSeed */
+/**
+ * Returns the seed of the world in which the failure was found.
+ */
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getOriginalColumns() {
+        return originalColumns;
+    }
+
+    public int getOriginalRows() {
+        return originalRows;
+    }
+
+/* Method: getWorld */
+/**
+ * Returns the shrunk world, as it was before Karel ran in it.
+ */
+    public KarelWorldTemplate getWorld() {
+        return world;
+    }
+
+/* Method: getMessage */
+/**
+ * Returns the message of the invariant that fails in the shrunk world.
+ */
+    public String getMessage() {
+        return message;
+    }
+
+/* Method: getResult */
+/**
+ * Returns the result of running Karel in the shrunk world, which holds
+ * the final state of the world and any exception.
+ */
+    public KarelBatchResult getResult() {
+        return result;
+    }
+
+/* Method: getShrinkRuns */
+/**
+ * Returns the number of runs made while shrinking the world.
+ */
+    public int getShrinkRuns() {
+        return shrinkRuns;
+    }
+
+/* Method: getWorldText */
+/**
+ * Returns the shrunk world in the <code>.w</code> file format.
+ */
+    public String getWorldText() {
+        StringWriter sw = new StringWriter();
+        PrintWriter wr = new PrintWriter(sw);
+        world.createWorld().save(wr);
+        wr.flush();
+        return sw.toString();
+    }
+
+    public String toString() {
+        return "Seed " + seed + " (" + originalColumns + "x" + originalRows
+             + ", shrunk to " + world.getColumns() + "x" + world.getRows()
+             + " in " + shrinkRuns + " runs): " + message + "\n" + getWorldText();
+    }
+
+/* Private state */
+
+    private long seed;
+    private int originalColumns, originalRows;
+    private KarelWorldTemplate world;
+    private String message;
+    private KarelBatchResult result;
+    private int shrinkRuns;
+}
@@ -0,0 +1,561 @@
+/*
+ * File: KarelFuzzer.java
+ * ----------------------
+ * This file implements a harness that runs a Karel program in many
+ * generated worlds, checks invariants after each run, and shrinks the
+ * first failing world to a small counterexample.
+ *
+ * Usage: java stanford.karel.KarelFuzzer [-threads n] [-count n] [-seed n]
+ *                                        [-steps n] [-size cols rows]
+ *                                        [-maze] [-walls density]
+ *                                        [-beepers density]
+ *                                        [-facing dir] [-corners n]
+ *                                        class
+ *
+ * Every run must end without an exception; -facing requires Karel to end
+ * facing the named direction and -corners requires every corner to end
+ * with the given number of beepers.
+ */
+
+package stanford.karel;
+
+import acm.util.*;
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/* Class: KarelFuzzer */
+/**
+ * A <code>KarelFuzzer</code> tests a Karel class against worlds made by a
+ * <code>KarelWorldGenerator</code>:
+ *
+ * <p><pre><code>
+ * &nbsp;    KarelWorldGenerator generator = new KarelWorldGenerator();
+ * &nbsp;    generator.setSizeRange(1, 20, 1, 20);
+ * &nbsp;    generator.setBeeperDensity(0.3);
+ * &nbsp;    KarelFuzzer fuzzer = new KarelFuzzer(CleanupKarel.class, generator);
+ * &nbsp;    fuzzer.addInvariant(KarelFuzzer.noError());
+ * &nbsp;    fuzzer.addInvariant(KarelFuzzer.beepersOnEveryCorner(0));
+ * &nbsp;    KarelCounterexample failure = fuzzer.run(0, 10000);
+ * </code></pre>
+ *
+ * <p>Each seed is run in its own world on the fuzzer's threads, in the
+ * same way as a <code>KarelBatchRunner</code> runs world files.  Once a
+ * seed fails, seeds after it are skipped, and the lowest failing seed is
+ * shrunk.  Shrinking first tries smaller worlds that the generator makes
+ * from the same seed, so the world keeps the form the generator gives it.
+ * It then deletes columns and rows, removes walls, removes beeper piles,
+ * and reduces the remaining piles to one beeper, repeating these passes
+ * until none of them makes the world smaller or the shrink limit is
+ * reached.  Each kind of change is tried on large groups first and then
+ * on smaller ones, and a change is kept whenever the world still fails
+ * some invariant.
+ *
+ * <p>Runs are limited to DEFAULT_STEP_LIMIT steps unless another limit is
+ * set, so that a program that loops forever fails instead of hanging the
+ * fuzzer.
+ */
+public class KarelFuzzer {
+
+    public static final long DEFAULT_STEP_LIMIT = 1000000;
+    public static final int DEFAULT_SHRINK_LIMIT = 1000;
+
+/* Constructor: KarelFuzzer(karelClass, generator) */
+/**
+ * Creates a fuzzer for the Karel class that uses one thread per
+ * processor.
+ */
+    public KarelFuzzer(Class<? extends Karel> karelClass, KarelWorldGenerator generator) {
+        this(karelClass, generator, Runtime.getRuntime().availableProcessors());
+    }
+
+/* Constructor: KarelFuzzer(karelClass, generator, nThreads) */
+/**
+ * Creates a fuzzer for the Karel class that uses the specified number of
+ * threads.  The generator's settings must not change while the fuzzer
+ * runs.
+ */
+    public KarelFuzzer(Class<? extends Karel> karelClass, KarelWorldGenerator generator,
+                       int nThreads) {
+        if (nThreads < 1) throw new ErrorException("KarelFuzzer: Illegal thread count");
+        this.karelClass = karelClass;
+        this.generator = generator;
+        this.nThreads = nThreads;
+        invariants = new ArrayList<KarelInvariant>();
+        stepLimit = DEFAULT_STEP_LIMIT;
+        shrinkLimit = DEFAULT_SHRINK_LIMIT;
+    }
+
+/* Method: setStepLimit */
+/**
+ * Sets the maximum number of primitives each run may execute, as for
+ * <code>KarelBatchRunner</code>.  A limit of 0 means that there is no
+ * limit.
+ */
+    public void setStepLimit(long limit) {
+        stepLimit = limit;
+    }
+
+    public void setTimeLimit(long millis) {
+        timeLimit = millis;
+    }
+
+    public void setCycleDetection(int window, int repeats) {
+        cycleWindow = window;
+        cycleRepeats = repeats;
+    }
+
+/* Method: setShrinkLimit */
+/**
+ * Sets the maximum number of runs spent shrinking a failing world.  A
+ * limit of 0 reports the failing world as it was generated.
+ */
+    public void setShrinkLimit(int runs) {
+        shrinkLimit = runs;
+    }
+
+/* Method: addInvariant */
+/**
+ * Adds an invariant to check after each run.  If no invariants are added,
+ * runs are checked with noError.
+ */
+    public void addInvariant(KarelInvariant invariant) {
+        invariants.add(invariant);
+    }
+
+/* Method: run(firstSeed, count) */
+/**
+ * Runs the Karel class in the worlds for count consecutive seeds starting
+ * with firstSeed and returns the shrunk counterexample for the lowest
+ * seed that fails, or <code>null</code> if every run passes.
+ */
+    public KarelCounterexample run(final long firstSeed, final int count) {
+        final AtomicInteger firstFailure = new AtomicInteger(count);
+        final AtomicInteger runs = new AtomicInteger();
+        final int chunk = Math.max(1, count / (8 * nThreads));
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int start = 0; start < count; start += chunk) {
+                final int first = start;
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() {
+                        for (int i = first; i < Math.min(count, first + chunk); i++) {
+                            if (i >= firstFailure.get()) break;
+                            runs.incrementAndGet();
+                            if (check(generator.generate(firstSeed + i)) != null) {
+                                int old = firstFailure.get();
+                                while (i < old && !firstFailure.compareAndSet(old, i)) {
+                                    old = firstFailure.get();
+                                }
+                                break;
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new ErrorException("KarelFuzzer: Interrupted");
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof ErrorException) throw (ErrorException) cause;
+                    throw new ErrorException("" + cause);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        runCount = runs.get();
+        if (firstFailure.get() == count) return null;
+        return shrink(firstSeed + firstFailure.get());
+    }
+
+/* Method: getRunCount */
+/**
+ * Returns the number of worlds run by the last call to run, not counting
+ * the runs made while shrinking.
+ */
+    public int getRunCount() {
+        return runCount;
+    }
+
+/* Method: check(template) */
+/**
+ * Runs the Karel class once in a world loaded from the template and
+ * returns the message of the first invariant that fails, or
+ * <code>null</code> if they all hold.
+ */
+    public String check(KarelWorldTemplate template) {
+        return check(template, newResult(template), false);
+    }
+
+/* Method: shrink(seed) */
+/**
+ * Shrinks the world for the specified seed and returns the
+ * counterexample, or <code>null</code> if the world does not fail.
+ */
+    public KarelCounterexample shrink(long seed) {
+        KarelWorldTemplate template = generator.generate(seed);
+        if (check(template) == null) return null;
+        int cols = template.getColumns();
+        int rows = template.getRows();
+        shrinkRuns = 0;
+        boolean progress = true;
+        while (progress && shrinkRuns < shrinkLimit) {
+            progress = false;
+            int c = template.getColumns();
+            int r = template.getRows();
+            int[] sizes = { c / 2, r, c, r / 2, c - 1, r, c, r - 1 };
+            for (int i = 0; i < sizes.length && shrinkRuns < shrinkLimit; i += 2) {
+                if (sizes[i] < 1 || sizes[i + 1] < 1) continue;
+                KarelWorldTemplate candidate = generator.generate(seed, sizes[i], sizes[i + 1]);
+                if (fails(candidate)) {
+                    template = candidate;
+                    progress = true;
+                    break;
+                }
+            }
+        }
+        KarelWorldTemplate previous;
+        do {
+            previous = template;
+            template = shrinkLines(template, true);
+            template = shrinkLines(template, false);
+            template = shrinkEdits(template, WALL_EDIT);
+            template = shrinkEdits(template, PILE_EDIT);
+            template = shrinkEdits(template, SINGLE_EDIT);
+        } while (template != previous && shrinkRuns < shrinkLimit);
+        KarelBatchResult result = newResult(template);
+        String message = check(template, result, true);
+        if (message == null) message = "Failure is not reproducible";
+        return new KarelCounterexample(seed, cols, rows, template, message, result, shrinkRuns);
+    }
+
+/* Static method: noError() */
+/**
+ * Returns an invariant that requires the run to end without an
+ * exception, including those thrown when a limit is exceeded.
+ */
+    public static KarelInvariant noError() {
+        return new KarelInvariant() {
+            public String check(KarelWorldTemplate start, KarelWorld world,
+                                KarelBatchResult result) {
+                return result.isSuccessful() ? null : "" + result.getError();
+            }
+        };
+    }
+
+/* Static method: finalDirection(dir) */
+/**
+ * Returns an invariant that requires Karel to end facing the specified
+ * direction.
+ */
+    public static KarelInvariant finalDirection(final int dir) {
+        return new KarelInvariant() {
+            public String check(KarelWorldTemplate start, KarelWorld world,
+                                KarelBatchResult result) {
+                int actual = world.createSnapshot().getKarelDirection(0);
+                if (actual == dir) return null;
+                return "Karel ends facing " + KarelWorld.directionName(actual) + " instead of "
+                     + KarelWorld.directionName(dir);
+            }
+        };
+    }
+
+/* Static method: beepersOnEveryCorner(nBeepers) */
+/**
+ * Returns an invariant that requires every corner to end with the
+ * specified number of beepers.
+ */
+    public static KarelInvariant beepersOnEveryCorner(final int nBeepers) {
+        return new KarelInvariant() {
+            public String check(KarelWorldTemplate start, KarelWorld world,
+                                KarelBatchResult result) {
+                for (int y = 1; y <= world.getRows(); y++) {
+                    for (int x = 1; x <= world.getColumns(); x++) {
+                        int n = world.getBeepersOnCorner(x, y);
+                        if (n != nBeepers) {
+                            return "Corner (" + x + ", " + y + ") has " + n + " beepers instead of "
+                                 + nBeepers;
+                        }
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+/* Main program */
+
+    public static void main(String[] args) {
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        int count = 1000;
+        long seed = 0;
+        KarelWorldGenerator generator = new KarelWorldGenerator();
+        List<KarelInvariant> extra = new ArrayList<KarelInvariant>();
+        long stepLimit = DEFAULT_STEP_LIMIT;
+        String className = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads") && i + 1 < args.length) {
+                nThreads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-count") && i + 1 < args.length) {
+                count = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-seed") && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-steps") && i + 1 < args.length) {
+                stepLimit = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-size") && i + 2 < args.length) {
+                int cols = Integer.parseInt(args[++i]);
+                generator.setSize(cols, Integer.parseInt(args[++i]));
+            } else if (args[i].equals("-maze")) {
+                generator.setMaze(true);
+            } else if (args[i].equals("-walls") && i + 1 < args.length) {
+                generator.setWallDensity(Double.parseDouble(args[++i]));
+            } else if (args[i].equals("-beepers") && i + 1 < args.length) {
+                generator.setBeeperDensity(Double.parseDouble(args[++i]));
+            } else if (args[i].equals("-facing") && i + 1 < args.length) {
+                extra.add(finalDirection(parseDirection(args[++i])));
+            } else if (args[i].equals("-corners") && i + 1 < args.length) {
+                extra.add(beepersOnEveryCorner(Integer.parseInt(args[++i])));
+            } else {
+                className = args[i];
+            }
+        }
+        if (className == null) throw new ErrorException("KarelFuzzer: No Karel class");
+        Class<? extends Karel> karelClass;
+        try {
+            karelClass = Class.forName(className).asSubclass(Karel.class);
+        } catch (ClassNotFoundException ex) {
+            throw new ErrorException("Can't find class " + className);
+        } catch (ClassCastException ex) {
+            throw new ErrorException(className + " is not a Karel class");
+        }
+        KarelFuzzer fuzzer = new KarelFuzzer(karelClass, generator, nThreads);
+        fuzzer.setStepLimit(stepLimit);
+        fuzzer.addInvariant(noError());
+        for (KarelInvariant invariant : extra) {
+            fuzzer.addInvariant(invariant);
+        }
+        KarelCounterexample failure = fuzzer.run(seed, count);
+        if (failure == null) {
+            System.out.println("Passed " + fuzzer.getRunCount() + " worlds");
+        } else {
+            System.out.print(failure);
+            System.exit(1);
+        }
+    }
+
+/* Private methods */
+
+    private String check(KarelWorldTemplate template, KarelBatchResult result,
+                         boolean saveFinalWorld) {
+        KarelWorld world = new KarelWorld();
+        KarelBatchRunner.runInWorld(world, karelClass, template, result, stepLimit, timeLimit,
+                                    cycleWindow, cycleRepeats, saveFinalWorld);
+        if (invariants.isEmpty()) return noError().check(template, world, result);
+        for (KarelInvariant invariant : invariants) {
+            String message = invariant.check(template, world, result);
+            if (message != null) return message;
+        }
+        return null;
+    }
+
+    private KarelBatchResult newResult(KarelWorldTemplate template) {
+        String name = (template.getPathname() == null) ? "generated" : template.getPathname();
+        return new KarelBatchResult(karelClass.getName(), name);
+    }
+
+    private boolean fails(KarelWorldTemplate template) {
+        shrinkRuns++;
+        return check(template) != null;
+    }
+
+/*
+ * Method: shrinkLines
+ * Usage: template = shrinkLines(template, columns);
+ * -------------------------------------------------
+ * Deletes as many columns or rows of the world as possible while it
+ * still fails, closing up the gap each leaves.  Blocks of lines are
+ * tried in the same way as in shrinkEdits, except that a block never
+ * includes the line on which Karel stands.
+ */
+    private KarelWorldTemplate shrinkLines(KarelWorldTemplate template, boolean columns) {
+        int n = columns ? template.getColumns() : template.getRows();
+        int chunk = Math.max(1, n / 2);
+        while (n > 1 && shrinkRuns < shrinkLimit) {
+            int i = 1;
+            while (i <= n && shrinkRuns < shrinkLimit) {
+                int count = Math.min(chunk, n - i + 1);
+                int k = columns ? template.getKarelAvenue() : template.getKarelStreet();
+                if (count >= n || (k >= i && k < i + count)) {
+                    i += count;
+                    continue;
+                }
+                KarelWorldTemplate candidate = removeLines(template, columns, i, count);
+                if (fails(candidate)) {
+                    template = candidate;
+                    n -= count;
+                } else {
+                    i += count;
+                }
+            }
+            if (chunk == 1) break;
+            chunk = Math.max(1, chunk / 2);
+        }
+        return template;
+    }
+
+/*
+ * Method: shrinkEdits
+ * Usage: template = shrinkEdits(template, kind);
+ * ----------------------------------------------
+ * Finds every wall or beeper pile to which an edit of the specified kind
+ * applies and removes as many as possible while the world still fails.
+ * The edits are tried in groups, starting with two halves and halving
+ * the group size after each pass, so that a world in which most of the
+ * walls or beepers are irrelevant shrinks in a few runs.
+ */
+    private KarelWorldTemplate shrinkEdits(KarelWorldTemplate template, int kind) {
+        int[] edits = findEdits(template.getGrid(), kind);
+        int n = edits.length / 3;
+        int[] alive = new int[n];
+        for (int i = 0; i < n; i++) {
+            alive[i] = i;
+        }
+        int chunk = Math.max(1, n / 2);
+        while (n > 0 && shrinkRuns < shrinkLimit) {
+            int i = 0;
+            while (i < n && shrinkRuns < shrinkLimit) {
+                int end = Math.min(n, i + chunk);
+                KarelWorldTemplate candidate = applyEdits(template, kind, edits, alive, i, end);
+                if (fails(candidate)) {
+                    template = candidate;
+                    System.arraycopy(alive, end, alive, i, n - end);
+                    n -= end - i;
+                } else {
+                    i = end;
+                }
+            }
+            if (chunk == 1) break;
+            chunk = Math.max(1, chunk / 2);
+        }
+        return template;
+    }
+
+    private static int[] findEdits(KarelGrid grid, int kind) {
+        int[] edits = new int[48];
+        int n = 0;
+        for (int y = 1; y <= grid.getRows(); y++) {
+            for (int x = 1; x <= grid.getColumns(); x++) {
+                for (int dir = 0; dir < 2; dir++) {
+                    boolean found;
+                    if (kind == WALL_EDIT) {
+                        if (dir == 0) {
+                            found = x > 1 && grid.checkWall(x, y, KarelWorld.WEST);
+                        } else {
+                            found = y > 1 && grid.checkWall(x, y, KarelWorld.SOUTH);
+                        }
+                    } else {
+                        int nBeepers = grid.getBeepers(x, y);
+                        found = dir == 0 && nBeepers > ((kind == PILE_EDIT) ? 0 : 1);
+                    }
+                    if (found) {
+                        if (3 * n + 3 > edits.length) edits = Arrays.copyOf(edits, 2 * edits.length);
+                        edits[3 * n] = x;
+                        edits[3 * n + 1] = y;
+                        edits[3 * n + 2] = (dir == 0) ? KarelWorld.WEST : KarelWorld.SOUTH;
+                        n++;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(edits, 3 * n);
+    }
+
+    private static KarelWorldTemplate applyEdits(KarelWorldTemplate template, int kind,
+                                                 int[] edits, int[] alive, int start, int end) {
+        KarelGrid grid = new KarelGrid(template.getGrid());
+        for (int i = start; i < end; i++) {
+            int x = edits[3 * alive[i]];
+            int y = edits[3 * alive[i] + 1];
+            switch (kind) {
+              case WALL_EDIT: grid.setWall(x, y, edits[3 * alive[i] + 2], false); break;
+              case PILE_EDIT: grid.setBeepers(x, y, 0); break;
+              default: grid.setBeepers(x, y, 1); break;
+            }
+        }
+        return new KarelWorldTemplate(grid, template.getKarelAvenue(), template.getKarelStreet(),
+                                      template.getKarelDirection(), template.getKarelBeepers());
+    }
+
+/*
+ * Method: removeLines
+ * Usage: KarelWorldTemplate t = removeLines(template, columns, start, count);
+ * --------------------------------------------------------------------------
+ * Returns a copy of the template without count columns or rows starting
+ * at start.  Each remaining corner keeps its beepers, color, and walls,
+ * and Karel, who must not stand on a removed line, moves with its corner.
+ */
+    private static KarelWorldTemplate removeLines(KarelWorldTemplate template, boolean columns,
+                                                  int start, int count) {
+        KarelGrid old = template.getGrid();
+        int cols = old.getColumns() - (columns ? count : 0);
+        int rows = old.getRows() - (columns ? 0 : count);
+        KarelGrid grid = new KarelGrid(cols, rows);
+        for (int y = 1; y <= rows; y++) {
+            int oy = (columns || y < start) ? y : y + count;
+            for (int x = 1; x <= cols; x++) {
+                int ox = (!columns || x < start) ? x : x + count;
+                int nBeepers = old.getBeepers(ox, oy);
+                if (nBeepers != 0) grid.setBeepers(x, y, nBeepers);
+                Color color = old.getColor(ox, oy);
+                if (color != null) grid.setColor(x, y, color);
+                if (x > 1 && old.checkWall(ox, oy, KarelWorld.WEST)) {
+                    grid.setWall(x, y, KarelWorld.WEST, true);
+                }
+                if (y > 1 && old.checkWall(ox, oy, KarelWorld.SOUTH)) {
+                    grid.setWall(x, y, KarelWorld.SOUTH, true);
+                }
+            }
+        }
+        int kx = template.getKarelAvenue();
+        int ky = template.getKarelStreet();
+        if (columns && kx > start) kx -= count;
+        if (!columns && ky > start) ky -= count;
+        return new KarelWorldTemplate(grid, kx, ky, template.getKarelDirection(),
+                                      template.getKarelBeepers());
+    }
+
+    private static int parseDirection(String name) {
+        int[] dirs = { KarelWorld.NORTH, KarelWorld.EAST, KarelWorld.SOUTH, KarelWorld.WEST };
+        for (int dir : dirs) {
+            if (KarelWorld.directionName(dir).equalsIgnoreCase(name)) return dir;
+        }
+        throw new ErrorException("Illegal direction " + name);
+    }
+
+/* Private constants */
+
+    private static final int WALL_EDIT = 0;
+    private static final int PILE_EDIT = 1;
+    private static final int SINGLE_EDIT = 2;
+
+/* Private state */
+
+    private Class<? extends Karel> karelClass;
+    private KarelWorldGenerator generator;
+    private int nThreads;
+    private long stepLimit, timeLimit;
+    private int cycleWindow, cycleRepeats;
+    private int shrinkLimit;
+    private ArrayList<KarelInvariant> invariants;
+    private int runCount;
+    private int shrinkRuns;
+}
@@ -0,0 +1,311 @@
+/*
+ * File: KarelGifExporter.java
+ * ---------------------------
+ * This file implements the exporter that turns a Karel run into an
+ * animated GIF file as the run proceeds.
+ */
+
+package stanford.karel;
+
+import acm.util.*;
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+
+/* Class: KarelGifExporter */
+/**
+ * This class writes an animation of a Karel run to a GIF file:
+ *
+ * <p><pre><code>
+ * &nbsp;    KarelGifExporter exporter = new KarelGifExporter(new File("run.gif"));
+ * &nbsp;    exporter.setTargetDuration(30);
+ * &nbsp;    world.setGifExporter(exporter);
+ * &nbsp;    karel.run();
+ * &nbsp;    world.setGifExporter(null);
+ * &nbsp;    exporter.close();
+ * </code></pre>
+ *
+ * <p>The exporter is called from <code>KarelWorld.trace</code> after each
+ * action.  Every so many actions it draws the world with a
+ * <code>KarelWorldRenderer</code> and compares the result with the
+ * previous frame; the frame written to the file covers just the rectangle
+ * in which pixels changed, and pixels in that rectangle that did not
+ * change are left transparent.  A frame in which nothing changed is not
+ * written at all; the previous frame is shown longer instead.  Frames are
+ * encoded and written as soon as they are made, so the memory used does
+ * not depend on the length of the run.
+ *
+ * <p>If a target duration is set, the exporter skips actions between
+ * frames so that the animation lasts no longer than the target.  When the
+ * number of actions is known in advance, for example from an earlier run
+ * or a recorded trace, the frames are spaced evenly.  Otherwise the
+ * exporter starts by drawing every action and doubles the spacing each
+ * time it has used half of the frames that remain, so that the
+ * animation stays within a few frames of the target however long the run
+ * turns out to be, at the cost of playing later parts of a long run
+ * faster.
+ */
+public class KarelGifExporter {
+
+    public static final int DEFAULT_FRAME_DELAY = 5;
+    public static final int FINAL_FRAME_DELAY = 200;
+
+/* Constructor: KarelGifExporter(file) */
+/**
+ * Creates an exporter that writes to the specified file, drawing corners
+ * at the renderer's default size.
+ */
+    public KarelGifExporter(File file) {
+        this(file, KarelWorldRenderer.DEFAULT_SQUARE_SIZE);
+    }
+
+/* Constructor: KarelGifExporter(file, sqSize) */
+/**
+ * Creates an exporter that writes to the specified file, drawing corners
+ * of the specified size in pixels.
+ */
+    public KarelGifExporter(File file, int sqSize) {
+        this.file = file;
+        renderer = new KarelWorldRenderer(sqSize);
+        frameDelay = DEFAULT_FRAME_DELAY;
+    }
+
+/* Method: getRenderer() */
+/**
+ * Returns the renderer that draws the frames, whose settings may be
+ * changed before the exporter is attached to a world.
+ */
+    public KarelWorldRenderer getRenderer() {
+        return renderer;
+    }
+
+/* Method: setFrameDelay(delay) */
+/**
+ * Sets the time for which each frame is shown, in hundredths of a second.
+ */
+    public void setFrameDelay(int delay) {
+        if (delay < 1) throw new ErrorException("setFrameDelay: Illegal delay");
+        frameDelay = delay;
+    }
+
+    public int getFrameDelay() {
+        return frameDelay;
+    }
+
+/* Method: setTargetDuration(seconds) */
+/**
+ * Sets the longest time, not counting the final frame, for which the
+ * animation may play.  A duration of zero, which is the default, draws a
+ * frame after every action.  This method must be called before the
+ * exporter is attached to a world.
+ */
+    public void setTargetDuration(double seconds) {
+        checkNotStarted();
+        targetDuration = seconds;
+    }
+
+    public double getTargetDuration() {
+        return targetDuration;
+    }
+
+/* Method: setExpectedSteps(steps) */
+/**
+ * Tells the exporter how many actions the run will take, which lets it
+ * space the frames evenly when a target duration is set.  This method
+ * must be called before the exporter is attached to a world.
+ */
+    public void setExpectedSteps(long steps) {
+        checkNotStarted();
+        expectedSteps = steps;
+    }
+
+/* Method: getStepCount() */
+/**
+ * Returns the number of actions seen so far.
+ */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+/* Method: getFrameCount() */
+/**
+ * Returns the number of frames drawn so far, including those in which
+ * nothing changed.
+ */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+/* Method: close() */
+/**
+ * Draws the final state of the world, which is shown for
+ * FINAL_FRAME_DELAY, and finishes the file.  The exporter should be
+ * detached from its world before it is closed.
+ */
+    public void close() {
+        if (writer == null) return;
+        captureFrame();
+        pendingDelay += FINAL_FRAME_DELAY - frameDelay;
+        writePending();
+        writer.close();
+        writer = null;
+        graphics.dispose();
+    }
+
+/* Package-private methods */
+
+/*
+ * Method: start
+ * Usage: exporter.start(world);
+ * -----------------------------
+ * Opens the file and writes the first frame, which shows the whole world
+ * as it is when the exporter is attached.  This may happen only once.
+ */
+    void start(KarelWorld world) {
+        checkNotStarted();
+        this.world = world;
+        width = renderer.getImageWidth(world.getColumns());
+        height = renderer.getImageHeight(world.getRows());
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        previous = new int[width * height];
+        graphics = image.getGraphics();
+        writer = new Gif89Writer(file, width, height);
+        int maxFrames = (targetDuration > 0)
+                        ? Math.max(1, (int) (targetDuration * 100 / frameDelay)) : 0;
+        if (maxFrames > 0 && expectedSteps > 0) {
+            stride = Math.max(1, (expectedSteps + maxFrames - 1) / maxFrames);
+        } else {
+            stride = 1;
+        }
+        doublingBudget = (maxFrames > 0 && expectedSteps <= 0) ? Math.max(1, maxFrames / 2) : 0;
+        countdown = stride;
+        renderer.render(world.createSnapshot(), graphics, height);
+        System.arraycopy(pixels, 0, previous, 0, pixels.length);
+        patch = new int[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            patch[i] = pixels[i] | 0xFF000000;
+        }
+        patchX = patchY = 0;
+        patchWidth = width;
+        patchHeight = height;
+        pendingDelay = frameDelay;
+    }
+
+/*
+ * Method: trace
+ * Usage: exporter.trace();
+ * ------------------------
+ * Counts an action and draws a frame if enough actions have passed since
+ * the last one.  The common case costs a decrement and a test.
+ */
+    void trace() {
+        stepCount++;
+        if (--countdown > 0) return;
+        countdown = stride;
+        captureFrame();
+        if (doublingBudget > 0 && ++phaseFrames >= doublingBudget) {
+            stride *= 2;
+            doublingBudget = Math.max(1, doublingBudget / 2);
+            phaseFrames = 0;
+        }
+    }
+
+/* Private methods */
+
+/*
+ * Method: captureFrame
+ * Usage: captureFrame();
+ * ----------------------
+ * Draws the world and compares it with the previous frame.  If anything
+ * changed, the pending frame is written and the rectangle that changed
+ * becomes the new pending frame; if not, the pending frame is shown for
+ * one frame longer.  A frame is held back until the next one is drawn so
+ * that its delay can grow in this way.
+ */
+    private void captureFrame() {
+        frameCount++;
+        if (renderer.getImageWidth(world.getColumns()) != width
+                || renderer.getImageHeight(world.getRows()) != height) {
+            throw new ErrorException("World changed size during GIF export");
+        }
+        renderer.render(world.createSnapshot(), graphics, height);
+        int x0 = width, y0 = height, x1 = -1, y1 = -1;
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            int left = 0;
+            while (left < width && pixels[row + left] == previous[row + left]) {
+                left++;
+            }
+            if (left == width) continue;
+            int right = width - 1;
+            while (pixels[row + right] == previous[row + right]) {
+                right--;
+            }
+            if (y0 == height) y0 = y;
+            y1 = y;
+            x0 = Math.min(x0, left);
+            x1 = Math.max(x1, right);
+        }
+        if (y1 < 0) {
+            pendingDelay += frameDelay;
+            return;
+        }
+        writePending();
+        patchX = x0;
+        patchY = y0;
+        patchWidth = x1 - x0 + 1;
+        patchHeight = y1 - y0 + 1;
+        int k = 0;
+        for (int y = y0; y <= y1; y++) {
+            int row = y * width;
+            for (int x = x0; x <= x1; x++) {
+                int rgb = pixels[row + x];
+                patch[k++] = (rgb == previous[row + x]) ? 0 : rgb | 0xFF000000;
+            }
+            System.arraycopy(pixels, row + x0, previous, row + x0, patchWidth);
+        }
+        pendingDelay = frameDelay;
+    }
+
+    private void writePending() {
+        if (pendingDelay == 0) return;
+        writer.addFrame(patch, patchX, patchY, patchWidth, patchHeight,
+                        Math.min(pendingDelay, MAX_DELAY), Gif89Writer.DISPOSE_NONE);
+        pendingDelay -= Math.min(pendingDelay, MAX_DELAY);
+        while (pendingDelay > 0) {
+            int delay = Math.min(pendingDelay, MAX_DELAY);
+            writer.addFrame(EMPTY_PIXEL, 0, 0, 1, 1, delay, Gif89Writer.DISPOSE_NONE);
+            pendingDelay -= delay;
+        }
+    }
+
+    private void checkNotStarted() {
+        if (world != null) throw new ErrorException("GIF exporter is already in use");
+    }
+
+/* Private constants */
+
+    private static final int MAX_DELAY = 65535;
+    private static final int[] EMPTY_PIXEL = { 0 };
+
+/* Private state */
+
+    private File file;
+    private KarelWorldRenderer renderer;
+    private KarelWorld world;
+    private Gif89Writer writer;
+    private int frameDelay;
+    private double targetDuration;
+    private long expectedSteps;
+    private long stride, countdown;
+    private int doublingBudget, phaseFrames;
+    private long stepCount;
+    private int frameCount;
+    private int width, height;
+    private BufferedImage image;
+    private Graphics graphics;
+    private int[] pixels, previous, patch;
+    private int patchX, patchY, patchWidth, patchHeight;
+    private int pendingDelay;
+}
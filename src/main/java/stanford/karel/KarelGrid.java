@@ -0,0 +1,459 @@
+/*
+ * File: KarelGrid.java
+ * --------------------
+ * This file implements the storage for the contents of Karel's world.
+ * The world is divided into square tiles of TILE_SIZE corners on a side,
+ * and a tile is allocated only when something is stored in it, so that
+ * very large worlds cost memory only where they have walls, beepers, or
+ * colors.  Within a tile, each property is kept in a flat primitive
+ * array.  The walls around the edge of the world are not stored at all;
+ * checkWall computes them from the coordinates.  The grid covers a
+ * one-corner border on each side of the world, so that the walls beyond
+ * the last row and column can be represented without special cases.
+ *
+ * A grid can be frozen into a snapshot that shares its tiles.  After a
+ * snapshot is taken, each tile is copied the first time it is written,
+ * so the snapshot never changes and taking one costs nothing beyond the
+ * tiles that are actually modified afterwards.
+ */
+
+package stanford.karel;
+
+import acm.util.*;
+import java.awt.*;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+class KarelGrid {
+
+    public static final int MAX_COLORS = 255;
+
+    public static final int TILE_SHIFT = 6;
+    public static final int TILE_SIZE = 1 << TILE_SHIFT;
+    public static final int TILE_AREA = TILE_SIZE * TILE_SIZE;
+
+/* Constructor */
+
+    public KarelGrid(int cols, int rows) {
+        this.cols = cols;
+        this.rows = rows;
+        tileCols = ((cols + 1) >> TILE_SHIFT) + 1;
+        tileRows = ((rows + 1) >> TILE_SHIFT) + 1;
+        tiles = new KarelTile[tileCols * tileRows];
+        palette = new Color[MAX_COLORS + 1];
+        paletteSize = 1;
+    }
+
+    public KarelGrid(KarelGrid source) {
+        cols = source.cols;
+        rows = source.rows;
+        tileCols = source.tileCols;
+        tileRows = source.tileRows;
+        tiles = new KarelTile[source.tiles.length];
+        for (int i = 0; i < tiles.length; i++) {
+            if (source.tiles[i] != null) tiles[i] = new KarelTile(source.tiles[i]);
+        }
+        tileCount = source.tileCount;
+        palette = source.palette.clone();
+        paletteSize = source.paletteSize;
+    }
+
+/*
+ * Method: snapshot
+ * Usage: KarelGrid frozen = grid.snapshot();
+ * ------------------------------------------
+ * Returns a grid that holds the current contents of this one and is never
+ * modified.  The two grids share their tiles until this grid writes to
+ * one of them.  Taking a snapshot of an unchanged grid returns the same
+ * frozen grid again.
+ */
+    public KarelGrid snapshot() {
+        if (frozen == null) {
+            frozen = new KarelGrid(cols, rows);
+            frozen.tiles = tiles;
+            frozen.tileCount = tileCount;
+            frozen.palette = palette.clone();
+            frozen.paletteSize = paletteSize;
+            frozen.frozen = frozen;
+            frozen.epoch = epoch;
+            tilesShared = true;
+            epoch++;
+        }
+        return frozen;
+    }
+
+/*
+ * Method: thaw
+ * Usage: KarelGrid grid = frozen.thaw();
+ * --------------------------------------
+ * Returns a grid that starts with the contents of this snapshot but may
+ * be modified.  The new grid shares the tiles of the snapshot and copies
+ * each the first time it writes to it, so thawing a snapshot is cheap no
+ * matter how large the world is.  A snapshot has the epoch of the grid
+ * it was taken from, which no tile it shares can exceed, so the tiles
+ * of the new grid start one epoch later.
+ */
+    public KarelGrid thaw() {
+        KarelGrid grid = new KarelGrid(cols, rows);
+        grid.tiles = tiles;
+        grid.tileCount = tileCount;
+        grid.palette = palette.clone();
+        grid.paletteSize = paletteSize;
+        grid.tilesShared = true;
+        grid.epoch = epoch + 1;
+        return grid;
+    }
+
+/*
+ * Method: getTileCopies
+ * Usage: long copies = grid.getTileCopies();
+ * ------------------------------------------
+ * Returns the number of tiles this grid has copied because they were
+ * shared with a snapshot, which tells clients that keep snapshots how
+ * much memory those snapshots hold on to.
+ */
+    public long getTileCopies() {
+        return tileCopies;
+    }
+
+    public int getColumns() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+/* Tiles */
+
+    public int getTileColumns() {
+        return tileCols;
+    }
+
+    public int getTileRows() {
+        return tileRows;
+    }
+
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    public int tileIndex(int x, int y) {
+        return (x >> TILE_SHIFT) + (y >> TILE_SHIFT) * tileCols;
+    }
+
+    public static int tileOffset(int x, int y) {
+        return (x & TILE_MASK) | ((y & TILE_MASK) << TILE_SHIFT);
+    }
+
+    public boolean hasTile(int tx, int ty) {
+        return tiles[tx + ty * tileCols] != null;
+    }
+
+    public KarelTile getTile(int tx, int ty) {
+        return tiles[tx + ty * tileCols];
+    }
+
+/*
+ * Method: getTileRowsInColumn
+ * Usage: int[] rows = grid.getTileRowsInColumn(tx);
+ * -------------------------------------------------
+ * Returns the indices, in increasing order, of the allocated tiles in
+ * the specified column of tiles.  Clients use this method to visit the
+ * nonempty parts of the world without scanning every corner.
+ */
+    public int[] getTileRowsInColumn(int tx) {
+        int n = 0;
+        for (int ty = 0; ty < tileRows; ty++) {
+            if (tiles[tx + ty * tileCols] != null) n++;
+        }
+        int[] result = new int[n];
+        n = 0;
+        for (int ty = 0; ty < tileRows; ty++) {
+            if (tiles[tx + ty * tileCols] != null) result[n++] = ty;
+        }
+        return result;
+    }
+
+/* Walls */
+
+    public boolean checkWall(int x, int y, int dir) {
+        switch (dir) {
+          case KarelWorld.SOUTH: return southWall(x, y);
+          case KarelWorld.WEST:  return westWall(x, y);
+          case KarelWorld.NORTH: return southWall(x, y + 1);
+          case KarelWorld.EAST:  return westWall(x + 1, y);
+        }
+        return false;
+    }
+
+    public void setWall(int x, int y, int dir, boolean flag) {
+        switch (dir) {
+          case KarelWorld.NORTH: y++; dir = KarelWorld.SOUTH; break;
+          case KarelWorld.EAST:  x++; dir = KarelWorld.WEST; break;
+        }
+        if (dir != KarelWorld.SOUTH && dir != KarelWorld.WEST) return;
+        boolean south = (dir == KarelWorld.SOUTH);
+        if (flag && (south ? isBoundarySouth(x, y) : isBoundaryWest(x, y))) return;
+        KarelTile tile = flag ? materialize(x, y) : writableTile(x, y);
+        if (tile == null) return;
+        long[] plane = south ? tile.southWalls : tile.westWalls;
+        long bit = 1L << (x & TILE_MASK);
+        if (((plane[y & TILE_MASK] & bit) != 0) != flag) tile.wallCount += flag ? 1 : -1;
+        if (flag) {
+            plane[y & TILE_MASK] |= bit;
+        } else {
+            plane[y & TILE_MASK] &= ~bit;
+        }
+    }
+
+/* Beepers */
+
+    public int getBeepers(int x, int y) {
+        KarelTile tile = tiles[tileIndex(x, y)];
+        return (tile == null) ? 0 : tile.beepers[tileOffset(x, y)];
+    }
+
+    public void setBeepers(int x, int y, int nBeepers) {
+        KarelTile tile = (nBeepers == 0) ? writableTile(x, y) : materialize(x, y);
+        if (tile == null) return;
+        int k = tileOffset(x, y);
+        if ((tile.beepers[k] == 0) != (nBeepers == 0)) tile.beeperCount += (nBeepers == 0) ? -1 : 1;
+        tile.beepers[k] = nBeepers;
+    }
+
+/* Colors */
+
+    public Color getColor(int x, int y) {
+        return palette[getColorIndex(x, y)];
+    }
+
+    public void setColor(int x, int y, Color color) {
+        KarelTile tile = (color == null) ? writableTile(x, y) : materialize(x, y);
+        if (tile != null) tile.colors[tileOffset(x, y)] = (byte) paletteIndex(color);
+    }
+
+    public int getColorIndex(int x, int y) {
+        KarelTile tile = tiles[tileIndex(x, y)];
+        return (tile == null) ? 0 : tile.colors[tileOffset(x, y)] & 0xFF;
+    }
+
+    public Color getPaletteColor(int index) {
+        return palette[index];
+    }
+
+    public int getPaletteSize() {
+        return paletteSize;
+    }
+
+    public int paletteIndex(Color color) {
+        if (color == null) return 0;
+        for (int i = 1; i < paletteSize; i++) {
+            if (color.equals(palette[i])) return i;
+        }
+        if (paletteSize > MAX_COLORS) throw new ErrorException("Too many corner colors");
+        frozen = null;
+        palette[paletteSize] = color;
+        return paletteSize++;
+    }
+
+/* Binary format */
+
+/*
+ * Method: write
+ * Usage: grid.write(out);
+ * -----------------------
+ * Writes the contents of the grid in the layout described in
+ * KarelBinaryFormat: the color palette followed by a record for each
+ * allocated tile, which holds the two wall bitplanes as arrays of longs
+ * and the run-length-encoded beeper and color planes.
+ */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(paletteSize - 1);
+        for (int i = 1; i < paletteSize; i++) {
+            out.writeInt(palette[i].getRGB());
+        }
+        out.writeInt(tileCount);
+        for (int i = 0; i < tiles.length; i++) {
+            KarelTile tile = tiles[i];
+            if (tile == null) continue;
+            out.writeInt(i % tileCols);
+            out.writeInt(i / tileCols);
+            for (int j = 0; j < TILE_SIZE; j++) {
+                out.writeLong(tile.southWalls[j]);
+            }
+            for (int j = 0; j < TILE_SIZE; j++) {
+                out.writeLong(tile.westWalls[j]);
+            }
+            int[] beepers = tile.beepers;
+            int nRuns = 0;
+            for (int k = 0; k < TILE_AREA; k++) {
+                if (k == 0 || beepers[k] != beepers[k - 1]) nRuns++;
+            }
+            out.writeInt(nRuns);
+            int start = 0;
+            for (int k = 1; k <= TILE_AREA; k++) {
+                if (k == TILE_AREA || beepers[k] != beepers[start]) {
+                    out.writeInt(k - start);
+                    out.writeInt(beepers[start]);
+                    start = k;
+                }
+            }
+            byte[] colors = tile.colors;
+            nRuns = 0;
+            for (int k = 0; k < TILE_AREA; k++) {
+                if (k == 0 || colors[k] != colors[k - 1]) nRuns++;
+            }
+            out.writeInt(nRuns);
+            start = 0;
+            for (int k = 1; k <= TILE_AREA; k++) {
+                if (k == TILE_AREA || colors[k] != colors[start]) {
+                    out.writeInt(k - start);
+                    out.writeByte(colors[start]);
+                    start = k;
+                }
+            }
+        }
+    }
+
+/*
+ * Method: read
+ * Usage: grid.read(buffer);
+ * -------------------------
+ * Reads the contents written by write into this grid, which must have
+ * been created empty with the same dimensions.
+ */
+    public void read(ByteBuffer buffer) {
+        int nColors = buffer.getInt();
+        if (nColors < 0 || nColors > MAX_COLORS) throw new ErrorException("Corrupt color palette");
+        for (int i = 1; i <= nColors; i++) {
+            palette[i] = new Color(buffer.getInt(), true);
+        }
+        paletteSize = nColors + 1;
+        int nTiles = buffer.getInt();
+        if (nTiles < 0 || nTiles > tiles.length) throw new ErrorException("Corrupt tile count");
+        for (int i = 0; i < nTiles; i++) {
+            int tx = buffer.getInt();
+            int ty = buffer.getInt();
+            if (tx < 0 || tx >= tileCols || ty < 0 || ty >= tileRows || hasTile(tx, ty)) {
+                throw new ErrorException("Corrupt tile index");
+            }
+            KarelTile tile = new KarelTile();
+            tiles[tx + ty * tileCols] = tile;
+            tileCount++;
+            buffer.asLongBuffer().get(tile.southWalls);
+            buffer.position(buffer.position() + 8 * TILE_SIZE);
+            buffer.asLongBuffer().get(tile.westWalls);
+            buffer.position(buffer.position() + 8 * TILE_SIZE);
+            int nRuns = buffer.getInt();
+            int k = 0;
+            for (int j = 0; j < nRuns; j++) {
+                int length = buffer.getInt();
+                int value = buffer.getInt();
+                if (length < 0 || k + length > TILE_AREA) throw new ErrorException("Corrupt beeper plane");
+                Arrays.fill(tile.beepers, k, k + length, value);
+                k += length;
+            }
+            if (k != TILE_AREA) throw new ErrorException("Corrupt beeper plane");
+            nRuns = buffer.getInt();
+            k = 0;
+            for (int j = 0; j < nRuns; j++) {
+                int length = buffer.getInt();
+                byte value = buffer.get();
+                if (length < 0 || k + length > TILE_AREA || (value & 0xFF) > nColors) {
+                    throw new ErrorException("Corrupt color plane");
+                }
+                Arrays.fill(tile.colors, k, k + length, value);
+                k += length;
+            }
+            if (k != TILE_AREA) throw new ErrorException("Corrupt color plane");
+            tile.recount();
+        }
+    }
+
+/* Private methods */
+
+    private boolean southWall(int x, int y) {
+        if (isBoundarySouth(x, y)) return true;
+        KarelTile tile = tiles[tileIndex(x, y)];
+        return tile != null && (tile.southWalls[y & TILE_MASK] & (1L << (x & TILE_MASK))) != 0;
+    }
+
+    private boolean westWall(int x, int y) {
+        if (isBoundaryWest(x, y)) return true;
+        KarelTile tile = tiles[tileIndex(x, y)];
+        return tile != null && (tile.westWalls[y & TILE_MASK] & (1L << (x & TILE_MASK))) != 0;
+    }
+
+    private boolean isBoundarySouth(int x, int y) {
+        return (y == 1 || y == rows + 1) && x >= 1 && x <= cols + 1;
+    }
+
+    private boolean isBoundaryWest(int x, int y) {
+        return (x == 1 || x == cols + 1) && y >= 1 && y <= rows + 1;
+    }
+
+    private KarelTile materialize(int x, int y) {
+        KarelTile tile = writableTile(x, y);
+        if (tile == null) {
+            unshareTiles();
+            tile = new KarelTile();
+            tile.epoch = epoch;
+            tiles[tileIndex(x, y)] = tile;
+            tileCount++;
+        }
+        return tile;
+    }
+
+/*
+ * Method: writableTile
+ * Usage: KarelTile tile = writableTile(x, y);
+ * -------------------------------------------
+ * Returns the tile containing (x, y) in a state in which it may be
+ * written, or null if there is no such tile.  A tile that is shared with
+ * a snapshot, which is one whose epoch precedes the current one, is
+ * replaced by a private copy first.
+ */
+    private KarelTile writableTile(int x, int y) {
+        int t = tileIndex(x, y);
+        KarelTile tile = tiles[t];
+        if (tile == null) return null;
+        if (frozen == this) throw new ErrorException("Cannot modify a grid snapshot");
+        frozen = null;
+        if (tile.epoch != epoch) {
+            unshareTiles();
+            tile = new KarelTile(tile);
+            tile.epoch = epoch;
+            tiles[t] = tile;
+            tileCopies++;
+        }
+        return tile;
+    }
+
+    private void unshareTiles() {
+        if (frozen == this) throw new ErrorException("Cannot modify a grid snapshot");
+        frozen = null;
+        if (tilesShared) {
+            tiles = tiles.clone();
+            tilesShared = false;
+        }
+    }
+
+/* Private constants */
+
+    private static final int TILE_MASK = TILE_SIZE - 1;
+
+/* Private state */
+
+    private int cols, rows;
+    private int tileCols, tileRows;
+    private KarelTile[] tiles;
+    private int tileCount;
+    private Color[] palette;
+    private int paletteSize;
+    private KarelGrid frozen;
+    private boolean tilesShared;
+    private int epoch;
+    private long tileCopies;
+}
@@ -0,0 +1,43 @@
+/*
+ * File: KarelInvariant.java
+ * -------------------------
+ * This file defines the interface for the properties that a KarelFuzzer
+ * checks after each run.
+ */
+
+package stanford.karel;
+
+/* Interface: KarelInvariant */
+/**
+ * A <code>KarelInvariant</code> is a property that every run of a Karel
+ * program should have, such as "every corner ends with exactly one
+ * beeper".  Invariants are usually written as anonymous classes:
+ *
+ * <p><pre><code>
+ * &nbsp;    fuzzer.addInvariant(new KarelInvariant() {
+ * &nbsp;        public String check(KarelWorldTemplate start, KarelWorld world,
+ * &nbsp;                            KarelBatchResult result) {
+ * &nbsp;            KarelWorldSnapshot end = world.createSnapshot();
+ * &nbsp;            return (end.getKarelAvenue(0) == 1) ? null : "Karel did not return";
+ * &nbsp;        }
+ * &nbsp;    });
+ * </code></pre>
+ *
+ * <p>An invariant should examine the world through a snapshot or the
+ * methods of <code>KarelWorld</code> rather than by calling methods of
+ * Karel, which count as steps.  Invariants are checked on the fuzzer's
+ * threads, so they must not depend on state shared between runs.
+ */
+public interface KarelInvariant {
+
+/* Method: check(start, world, result) */
+/**
+ * Checks a run and returns <code>null</code> if the invariant holds or a
+ * message that says how it fails.  The template holds the world as it was
+ * before the run, the world is in its final state, and the result records
+ * whether the run ended with an exception.  To keep fuzzing fast, the
+ * result does not hold the text or digest of the final world.
+ */
+    public String check(KarelWorldTemplate start, KarelWorld world, KarelBatchResult result);
+
+}
@@ -0,0 +1,435 @@
+/*
+ * File: KarelJournal.java
+ * -----------------------
+ * This file implements the history of a Karel run, which lets a finished
+ * or paused run be moved back and forth to any of its steps.
+ */
+
+package stanford.karel;
+
+import acm.util.*;
+import java.awt.*;
+import java.util.*;
+
+/* Class: KarelJournal */
+/**
+ * A <code>KarelJournal</code> records the steps executed in a
+ * <code>KarelWorld</code> so that the world can later be returned to the
+ * state it had after any of them.  Every <code>interval</code> steps the
+ * journal takes a checkpoint of the whole world, which is a snapshot
+ * whose tiles are shared with the world until they change; between
+ * checkpoints it logs each change to a corner, wall, or Karel as a pair
+ * of longs.  Seeking restores the nearest checkpoint at or before the
+ * target and replays the changes after it, so it costs at most
+ * <code>interval</code> steps of work however long the run has been.
+ *
+ * <p>The oldest checkpoints and their changes are discarded whenever the
+ * estimated memory held by the journal exceeds its limit, so a run of
+ * any length keeps a bounded window of history.  Any change made to the
+ * world after seeking to an earlier step discards the steps after it.
+ */
+public class KarelJournal {
+
+    public static final int DEFAULT_INTERVAL = 4096;
+    public static final long DEFAULT_MEMORY_LIMIT = 64L << 20;
+
+/* Constructor: KarelJournal() */
+/**
+ * Creates a journal with the default checkpoint interval and memory
+ * limit.
+ */
+    public KarelJournal() {
+        this(DEFAULT_INTERVAL, DEFAULT_MEMORY_LIMIT);
+    }
+
+/* Constructor: KarelJournal(interval, memoryLimit) */
+/**
+ * Creates a journal that takes a checkpoint every <code>interval</code>
+ * steps and holds on to about <code>memoryLimit</code> bytes of history.
+ */
+    public KarelJournal(int interval, long memoryLimit) {
+        if (interval < 1 || interval > MAX_INTERVAL) {
+            throw new ErrorException("Illegal checkpoint interval");
+        }
+        this.interval = interval;
+        this.memoryLimit = memoryLimit;
+        segments = new ArrayList<KarelJournalSegment>();
+        colors = new ArrayList<Color>();
+        colorIndex = new HashMap<Color, Integer>();
+        colors.add(null);
+    }
+
+    public int getInterval() {
+        return interval;
+    }
+
+    public long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+/* Method: getMemoryUsage() */
+/**
+ * Returns an estimate of the number of bytes held by the journal.
+ */
+    public long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+/* Method: getFirstStep() */
+/**
+ * Returns the earliest step that can still be reached by seek.
+ */
+    public long getFirstStep() {
+        return segments.isEmpty() ? step : segments.get(0).step;
+    }
+
+/* Method: getLastStep() */
+/**
+ * Returns the number of steps recorded, which is the latest step that
+ * can be reached by seek.
+ */
+    public long getLastStep() {
+        return step;
+    }
+
+/* Method: getStep() */
+/**
+ * Returns the step whose state the world currently shows.
+ */
+    public long getStep() {
+        return position;
+    }
+
+/* Method: seek(target) */
+/**
+ * Returns the world to the state it had after the specified step, which
+ * is clipped to the range from getFirstStep to getLastStep.  A seek
+ * forward within the same checkpoint interval replays only the changes
+ * between the two steps.
+ */
+    public void seek(long target) {
+        if (world == null) throw new ErrorException("Journal is not attached to a world");
+        if (segments.isEmpty()) return;
+        target = Math.max(getFirstStep(), Math.min(step, target));
+        if (target == position) return;
+        int si = findSegment(target);
+        KarelJournalSegment segment = segments.get(si);
+        boolean repaintFlag = world.getRepaintFlag();
+        seeking = true;
+        world.setRepaintFlag(false);
+        try {
+            long from;
+            if (target > position && position >= segment.step && findSegment(position) == si) {
+                from = position - segment.step;
+            } else {
+                world.restoreSnapshot(segment.checkpoint);
+                from = 0;
+            }
+            long to = target - segment.step;
+            for (int i = segment.find(from + 1); i < segment.length; i += 2) {
+                if (offsetOf(segment.deltas[i]) > to) break;
+                apply(segment.deltas[i], segment.deltas[i + 1]);
+            }
+        } finally {
+            world.setRepaintFlag(repaintFlag);
+            seeking = false;
+        }
+        position = target;
+        world.repaint();
+    }
+
+/* Package-private methods called by KarelWorld */
+
+    void start(KarelWorld world) {
+        if (this.world != null && this.world != world) {
+            throw new ErrorException("Journal is already in use");
+        }
+        this.world = world;
+        clear();
+    }
+
+/*
+ * Method: worldChanged
+ * Usage: journal.worldChanged();
+ * ------------------------------
+ * Discards the history when the world is replaced as a whole, as it is
+ * when a new world is loaded.  Recording starts again with a checkpoint
+ * at the next step.
+ */
+    void worldChanged() {
+        if (!seeking) clear();
+    }
+
+    void stepStarted() {
+        if (seeking) return;
+        if (position != step) truncate();
+        KarelJournalSegment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last == null || step - last.step >= interval) addCheckpoint(last);
+        step++;
+        position = step;
+    }
+
+    void beepersChanged(int x, int y, int nBeepers) {
+        log(BEEPERS, x, y, nBeepers & 0xFFFFFFFFL);
+    }
+
+    void colorChanged(int x, int y, Color color) {
+        Integer index = (color == null) ? Integer.valueOf(0) : colorIndex.get(color);
+        if (index == null) {
+            index = Integer.valueOf(colors.size());
+            colors.add(color);
+            colorIndex.put(color, index);
+        }
+        log(COLOR, x, y, index.intValue());
+    }
+
+    void wallChanged(int x, int y, int dir, boolean flag) {
+        log(WALL, x, y, dir | (flag ? WALL_FLAG : 0));
+    }
+
+    void karelChanged(Karel karel) {
+        if (segments.isEmpty() || seeking) return;
+        if (lastIndex >= world.getKarelCount() || world.getKarel(lastIndex) != karel) {
+            lastIndex = -1;
+            for (int i = 0; i < world.getKarelCount(); i++) {
+                if (world.getKarel(i) == karel) lastIndex = i;
+            }
+            if (lastIndex < 0) {
+                lastIndex = 0;
+                return;
+            }
+        }
+        long value = ((long) lastIndex << KAREL_INDEX_SHIFT)
+                   | ((long) karel.getDirection() << KAREL_DIR_SHIFT)
+                   | (karel.getBeepersInBag() & 0xFFFFFFFFL);
+        log(KAREL, karel.getAvenue(), karel.getStreet(), value);
+    }
+
+/* Private methods */
+
+/*
+ * Method: clear
+ * Usage: clear();
+ * ---------------
+ * Discards the history and starts counting steps from 0 again, which
+ * keeps the steps of the journal equal to the step count of the world
+ * when a new world is loaded or the world is reset for another run.
+ */
+    private void clear() {
+        segments.clear();
+        colors.clear();
+        colors.add(null);
+        colorIndex.clear();
+        memoryUsage = 0;
+        lastIndex = 0;
+        step = 0;
+        position = 0;
+    }
+
+    private void addCheckpoint(KarelJournalSegment last) {
+        KarelGrid grid = world.getGrid();
+        if (grid == null) return;
+        if (last != null) {
+            long freed = 8L * last.deltas.length;
+            last.trim();
+            freed -= 8L * last.deltas.length;
+            last.bytes -= freed;
+            memoryUsage -= freed;
+            if (last.grid == grid) {
+                long bytes = (grid.getTileCopies() - last.tileCopies) * TILE_BYTES;
+                last.bytes += bytes;
+                memoryUsage += bytes;
+            }
+        }
+        KarelJournalSegment segment = new KarelJournalSegment();
+        segment.step = step;
+        segment.checkpoint = world.createSnapshot();
+        segment.grid = grid;
+        segment.tileCopies = grid.getTileCopies();
+        segment.bytes = SEGMENT_BYTES + KAREL_BYTES * world.getKarelCount()
+                      + 8L * segment.deltas.length;
+        memoryUsage += segment.bytes;
+        segments.add(segment);
+        while (memoryUsage > memoryLimit && segments.size() > 1) {
+            memoryUsage -= segments.remove(0).bytes;
+        }
+    }
+
+    private void log(int kind, int x, int y, long value) {
+        if (segments.isEmpty() || seeking) return;
+        if (position != step) truncate();
+        KarelJournalSegment segment = segments.get(segments.size() - 1);
+        long offset = step - segment.step;
+        long key = ((long) kind << KIND_SHIFT) | (offset << OFFSET_SHIFT)
+                 | ((long) (x & COORD_MASK) << COORD_BITS) | (y & COORD_MASK);
+        int length0 = segment.deltas.length;
+        segment.add(key, value);
+        if (segment.deltas.length != length0) {
+            long bytes = 8L * (segment.deltas.length - length0);
+            segment.bytes += bytes;
+            memoryUsage += bytes;
+        }
+    }
+
+/*
+ * Method: truncate
+ * Usage: truncate();
+ * ------------------
+ * Discards the steps after the current position, which is called before
+ * the world is changed by anything other than seek.
+ */
+    private void truncate() {
+        int si = findSegment(position);
+        while (segments.size() > si + 1) {
+            memoryUsage -= segments.remove(segments.size() - 1).bytes;
+        }
+        KarelJournalSegment segment = segments.get(si);
+        segment.length = segment.find(position - segment.step + 1);
+        segment.grid = world.getGrid();
+        segment.tileCopies = segment.grid.getTileCopies();
+        step = position;
+    }
+
+    private int findSegment(long target) {
+        int lo = 0;
+        int hi = segments.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments.get(mid).step <= target) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private void apply(long key, long value) {
+        int x = (int) ((key >> COORD_BITS) & COORD_MASK);
+        int y = (int) (key & COORD_MASK);
+        switch ((int) (key >>> KIND_SHIFT)) {
+          case BEEPERS:
+            world.setBeepersOnCorner(x, y, (int) value);
+            break;
+          case COLOR:
+            world.setCornerColor(x, y, colors.get((int) value));
+            break;
+          case WALL:
+            int dir = (int) value & ~WALL_FLAG;
+            if ((value & WALL_FLAG) != 0) {
+                world.setWall(x, y, dir);
+            } else {
+                world.clearWall(x, y, dir);
+            }
+            break;
+          case KAREL:
+            int k = (int) (value >>> KAREL_INDEX_SHIFT);
+            if (k < world.getKarelCount()) {
+                world.setKarelState(world.getKarel(k), x, y,
+                                    (int) (value >>> KAREL_DIR_SHIFT) & KAREL_DIR_MASK, (int) value);
+            }
+            break;
+        }
+    }
+
+    static long offsetOf(long key) {
+        return (key >>> OFFSET_SHIFT) & OFFSET_MASK;
+    }
+
+/* Private constants */
+
+    private static final int BEEPERS = 1;
+    private static final int COLOR = 2;
+    private static final int WALL = 3;
+    private static final int KAREL = 4;
+
+    private static final int WALL_FLAG = 4;
+    private static final int KAREL_INDEX_SHIFT = 34;
+    private static final int KAREL_DIR_SHIFT = 32;
+    private static final int KAREL_DIR_MASK = 3;
+
+    private static final int COORD_BITS = 17;
+    private static final int COORD_MASK = (1 << COORD_BITS) - 1;
+    private static final int OFFSET_SHIFT = 2 * COORD_BITS;
+    private static final int KIND_SHIFT = 60;
+    private static final long OFFSET_MASK = (1L << (KIND_SHIFT - OFFSET_SHIFT)) - 1;
+    private static final int MAX_INTERVAL = (int) Math.min(Integer.MAX_VALUE, OFFSET_MASK);
+
+    private static final long TILE_BYTES = 8 * 2 * KarelGrid.TILE_SIZE + 5 * KarelGrid.TILE_AREA;
+    private static final long SEGMENT_BYTES = 256;
+    private static final long KAREL_BYTES = 40;
+
+/* Private state */
+
+    private KarelWorld world;
+    private int interval;
+    private long memoryLimit;
+    private long memoryUsage;
+    private ArrayList<KarelJournalSegment> segments;
+    private ArrayList<Color> colors;
+    private HashMap<Color, Integer> colorIndex;
+    private int lastIndex;
+    private long step;
+    private long position;
+    private boolean seeking;
+}
+
+/*
+ * Class: KarelJournalSegment
+ * --------------------------
+ * This class holds one checkpoint of a KarelJournal and the changes made
+ * in the steps that follow it.  Each change is stored as a key, which
+ * packs the kind of change, the step within the segment, and the corner,
+ * followed by a value whose meaning depends on the kind.
+ */
+class KarelJournalSegment {
+
+    public KarelJournalSegment() {
+        deltas = new long[INITIAL_SIZE];
+    }
+
+    public void add(long key, long value) {
+        if (length + 2 > deltas.length) deltas = Arrays.copyOf(deltas, 2 * deltas.length);
+        deltas[length++] = key;
+        deltas[length++] = value;
+    }
+
+/*
+ * Method: find
+ * Usage: int i = segment.find(offset);
+ * ------------------------------------
+ * Returns the index of the first change made at or after the specified
+ * step within the segment, or length if there is none.
+ */
+    public int find(long offset) {
+        int lo = 0;
+        int hi = length / 2;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (KarelJournal.offsetOf(deltas[2 * mid]) < offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return 2 * lo;
+    }
+
+    public void trim() {
+        if (deltas.length > length) deltas = Arrays.copyOf(deltas, Math.max(length, 2));
+    }
+
+/* Private constants */
+
+    private static final int INITIAL_SIZE = 64;
+
+/* Package-private state */
+
+    long step;
+    KarelWorldSnapshot checkpoint;
+    KarelGrid grid;
+    long tileCopies;
+    long[] deltas;
+    int length;
+    long bytes;
+}
@@ -54,13 +54,15 @@ public class KarelProgram extends Program {
     public KarelProgram() {
         world = createWorld();
         world.setRepaintFlag(false);
-        world.setDisplayFlag(false);
+        view = createWorldView(world);
+        view.setDisplayFlag(false);
         world.init(10, 10);
         Panel panel = new Panel();
         panel.setLayout(new BorderLayout());
-        panel.add(BorderLayout.CENTER, world);
+        panel.add(BorderLayout.CENTER, view);
         controlPanel = new KarelControlPanel(this);
         world.setMonitor(controlPanel);
+        world.setJournal(new KarelJournal());
         panel.add(BorderLayout.WEST, controlPanel);
         add(panel);
         validate();
@@ -88,6 +90,17 @@ public class KarelProgram extends Program {
         return world;
     }
 
+    /* Method: getWorldView() */
+    /**
+     * Returns the <code>KarelWorldView</code> that displays Karel's world.
+     *
+     * KarelWorldView view = getWorldView();
+     * @return The <code>KarelWorldView</code> that displays Karel's world
+     */
+    public KarelWorldView getWorldView() {
+        return view;
+    }
+
     /* Static method: getWorldDirectory() */
     /**
      * Returns the default directory in which Karel's worlds live.
@@ -117,6 +130,20 @@ public class KarelProgram extends Program {
         return new KarelWorld();
     }
 
+    /* Factory method: createWorldView() */
+    /**
+     * Creates the <code>KarelWorldView</code> that displays the world. Subclasses
+     * can override this method to create their own view types.
+     *
+     * KarelWorldView view = program.createWorldView(world);
+     *
+     * @param world The <code>KarelWorld</code> to be displayed
+     * @return The <code>KarelWorldView</code> attached to the world
+     */
+    protected KarelWorldView createWorldView(KarelWorld world) {
+        return new KarelWorldView(world);
+    }
+
     /* Protected method: isStarted() */
     /**
      * Checks to see whether this program has started.
@@ -124,7 +151,7 @@ public class KarelProgram extends Program {
     protected boolean isStarted() {
         if (world == null || super.isStarted())
             return true;
-        Dimension size = world.getSize();
+        Dimension size = view.getSize();
         if ((size == null) || (size.width == 0) || (size.height == 0))
             return true;
         return false;
@@ -264,11 +291,11 @@ public class KarelProgram extends Program {
                     }
                 }
             } else {
-                world.load(inlineWorld.split("\n"));
+                world.loadText(inlineWorld);
             }
         }
         world.setRepaintFlag(true);
-        world.setDisplayFlag(true);
+        view.setDisplayFlag(true);
         world.repaint();
         boolean firstTime = true;
 
@@ -289,6 +316,12 @@ public class KarelProgram extends Program {
                     }
                 }
             }
+            if (!world.resetToInitialState()) {
+                world.saveInitialState();
+                world.resetStepCount();
+            }
+            controlPanel.runStarted();
+            view.setFollowedKarel(karel);
             try {
                 if (karel == null) {
                     main();
@@ -296,10 +329,14 @@ public class KarelProgram extends Program {
                     karel.run();
                 }
             } catch (Exception ex) {
+                world.publishChanges();
                 if (errorDialog == null)
                     errorDialog = new KarelErrorDialog(this);
                 errorDialog.error(ex.getMessage());
             }
+            world.publishChanges();
+            view.setFollowedKarel(null);
+            controlPanel.runFinished();
         }
     }
 
@@ -313,6 +350,7 @@ public class KarelProgram extends Program {
     /* Private state */
 
     private KarelWorld world;
+    private KarelWorldView view;
     private KarelControlPanel controlPanel;
     private KarelErrorDialog errorDialog;
     private boolean started;
@@ -326,7 +364,7 @@ public class KarelProgram extends Program {
 class KarelErrorDialog extends Dialog implements WindowListener, ActionListener {
 
     public KarelErrorDialog(KarelProgram program) {
-        super(JTFTools.getEnclosingFrame(program.getWorld()), true);
+        super(JTFTools.getEnclosingFrame(program.getWorldView()), true);
         setLayout(new BorderLayout());
         init();
     }
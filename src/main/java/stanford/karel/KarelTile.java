@@ -0,0 +1,58 @@
+/*
+ * File: KarelTile.java
+ * --------------------
+ * This file contains the class that holds one tile of a KarelGrid.
+ */
+
+package stanford.karel;
+
+/* Class: KarelTile */
+/**
+ * This class holds the contents of one tile of a KarelGrid.  The wall
+ * planes have one long for each row of the tile, in which bit i is the
+ * wall of the corner in column i; the beeper and color planes are
+ * indexed by KarelGrid.tileOffset.  The tile also keeps a count of its
+ * walls and of its corners with beepers, which lets a view summarize
+ * the tile without looking at its corners, and the epoch of the grid in
+ * which it was created, which tells the grid whether a snapshot may
+ * still share it.
+ */
+class KarelTile {
+
+    public KarelTile() {
+        southWalls = new long[KarelGrid.TILE_SIZE];
+        westWalls = new long[KarelGrid.TILE_SIZE];
+        beepers = new int[KarelGrid.TILE_AREA];
+        colors = new byte[KarelGrid.TILE_AREA];
+    }
+
+    public KarelTile(KarelTile source) {
+        southWalls = source.southWalls.clone();
+        westWalls = source.westWalls.clone();
+        beepers = source.beepers.clone();
+        colors = source.colors.clone();
+        wallCount = source.wallCount;
+        beeperCount = source.beeperCount;
+    }
+
+    public void recount() {
+        wallCount = 0;
+        for (int i = 0; i < KarelGrid.TILE_SIZE; i++) {
+            wallCount += Long.bitCount(southWalls[i]) + Long.bitCount(westWalls[i]);
+        }
+        beeperCount = 0;
+        for (int k = 0; k < KarelGrid.TILE_AREA; k++) {
+            if (beepers[k] != 0) beeperCount++;
+        }
+    }
+
+/* Package-private state */
+
+    long[] southWalls;
+    long[] westWalls;
+    int[] beepers;
+    byte[] colors;
+    int wallCount;
+    int beeperCount;
+    int epoch;
+}
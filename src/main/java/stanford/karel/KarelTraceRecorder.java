@@ -0,0 +1,295 @@
+/*
+ * File: KarelTraceRecorder.java
+ * -----------------------------
+ * This file implements the recorder for Karel action traces, which log
+ * every primitive a Karel executes so that a run can be inspected again
+ * later by KarelTraceReplayer without running the program that made it.
+ */
+
+package stanford.karel;
+
+import acm.util.*;
+import java.awt.*;
+import java.io.*;
+
+/* Class: KarelTraceRecorder */
+/**
+ * This class records the primitives executed in a <code>KarelWorld</code>
+ * into a compact binary trace:
+ *
+ * <p><pre><code>
+ * &nbsp;    KarelTraceRecorder recorder = new KarelTraceRecorder(new FileOutputStream(file));
+ * &nbsp;    world.setRecorder(recorder);
+ * &nbsp;    karel.run();
+ * &nbsp;    recorder.close();
+ * </code></pre>
+ *
+ * <p>All integers in a trace are unsigned LEB128 varints; signed values
+ * are zigzag-encoded first.  A trace consists of:
+ *
+ * <ul>
+ * <li>The magic number <code>KRLT</code> as four bytes and a version.
+ * <li>The number of columns and rows of the world.
+ * <li>A count of Karels, followed by the avenue, street, direction, and
+ *     signed number of beepers in the bag of each when recording began.
+ * <li>A sequence of records, each of which begins with a code whose low
+ *     bit is set if the record repeats.  The rest of the code is an event,
+ *     which is one of the action constants defined here or, for a sensing
+ *     call, <code>SENSE_BASE + 2 * predicate + result</code>.  A repeated
+ *     record is followed by its repeat count.  The events
+ *     <code>PAINT_CORNER</code> and <code>CORNER_COLOR_IS</code> are
+ *     followed by the change in the color code from the last color in the
+ *     trace, where a color code is 0 for no color and one more than the
+ *     ARGB value otherwise; these events never repeat.  The event
+ *     <code>SELECT_KAREL</code> is followed by the change in the index of
+ *     the Karel that executes the records that follow.
+ * </ul>
+ *
+ * <p>Recording costs a few array stores per primitive.  The trace is kept
+ * in a buffer that grows as needed or, if the recorder was created with
+ * an output stream, is written to the stream whenever it fills.
+ */
+public class KarelTraceRecorder {
+
+    public static final int MAGIC = 0x4B524C54;
+    public static final int VERSION = 1;
+
+/* Actions */
+
+    public static final int MOVE = 0;
+    public static final int TURN_LEFT = 1;
+    public static final int PICK_BEEPER = 2;
+    public static final int PUT_BEEPER = 3;
+    public static final int TURN_RIGHT = 4;
+    public static final int TURN_AROUND = 5;
+    public static final int PAINT_CORNER = 6;
+    public static final int SELECT_KAREL = 7;
+
+/* Predicates */
+
+    public static final int SENSE_BASE = 16;
+
+    public static final int FRONT_IS_CLEAR = 0;
+    public static final int FRONT_IS_BLOCKED = 1;
+    public static final int LEFT_IS_CLEAR = 2;
+    public static final int LEFT_IS_BLOCKED = 3;
+    public static final int RIGHT_IS_CLEAR = 4;
+    public static final int RIGHT_IS_BLOCKED = 5;
+    public static final int BEEPERS_PRESENT = 6;
+    public static final int NO_BEEPERS_PRESENT = 7;
+    public static final int BEEPERS_IN_BAG = 8;
+    public static final int NO_BEEPERS_IN_BAG = 9;
+    public static final int FACING_NORTH = 10;
+    public static final int FACING_EAST = 11;
+    public static final int FACING_SOUTH = 12;
+    public static final int FACING_WEST = 13;
+    public static final int NOT_FACING_NORTH = 14;
+    public static final int NOT_FACING_EAST = 15;
+    public static final int NOT_FACING_SOUTH = 16;
+    public static final int NOT_FACING_WEST = 17;
+    public static final int CORNER_COLOR_IS = 18;
+    public static final int RANDOM = 19;
+    public static final int PREDICATE_COUNT = 20;
+
+/* Constructor: KarelTraceRecorder() */
+/**
+ * Creates a recorder that keeps the trace in memory.
+ */
+    public KarelTraceRecorder() {
+        this(null);
+    }
+
+/* Constructor: KarelTraceRecorder(out) */
+/**
+ * Creates a recorder that streams the trace to the specified output
+ * stream, holding at most FLUSH_SIZE bytes in memory.
+ */
+    public KarelTraceRecorder(OutputStream out) {
+        this.out = out;
+        buffer = new byte[INITIAL_BUFFER_SIZE];
+        pendingEvent = -1;
+    }
+
+/* Method: getRecordCount() */
+/**
+ * Returns the number of primitives recorded so far.
+ */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+/* Method: toByteArray() */
+/**
+ * Returns the trace recorded so far.  This method may be used only with a
+ * recorder that keeps the trace in memory.
+ */
+    public byte[] toByteArray() {
+        if (out != null) throw new ErrorException("Trace was written to a stream");
+        flushPending();
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+
+/* Method: flush() */
+/**
+ * Writes everything recorded so far to the output stream.
+ */
+    public void flush() {
+        flushPending();
+        if (out == null) return;
+        try {
+            out.write(buffer, 0, length);
+            out.flush();
+            length = 0;
+        } catch (IOException ex) {
+            throw new ErrorException("" + ex);
+        }
+    }
+
+/* Method: close() */
+/**
+ * Flushes the trace and closes the output stream.  The recorder should be
+ * removed from its world before it is closed.
+ */
+    public void close() {
+        flush();
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException ex) {
+            throw new ErrorException("" + ex);
+        }
+    }
+
+/* Package-private methods */
+
+/*
+ * Method: start
+ * Usage: recorder.start(world);
+ * -----------------------------
+ * Writes the header of the trace, which records the dimensions of the
+ * world and the state of its Karels.  This is called when the recorder
+ * is attached to a world, which may happen only once.
+ */
+    void start(KarelWorld world) {
+        if (this.world != null) throw new ErrorException("Recorder is already in use");
+        this.world = world;
+        writeByte(MAGIC >>> 24);
+        writeByte(MAGIC >>> 16);
+        writeByte(MAGIC >>> 8);
+        writeByte(MAGIC);
+        writeVarint(VERSION);
+        writeVarint(world.getColumns());
+        writeVarint(world.getRows());
+        int nKarels = world.getKarelCount();
+        writeVarint(nKarels);
+        for (int i = 0; i < nKarels; i++) {
+            Karel karel = world.getKarel(i);
+            writeVarint(karel.getAvenue());
+            writeVarint(karel.getStreet());
+            writeVarint(karel.getDirection());
+            writeVarint(zigzag(karel.getBeepersInBag()));
+        }
+    }
+
+    void record(Karel karel, int event) {
+        if (karel != lastKarel) selectKarel(karel);
+        recordCount++;
+        if (event == pendingEvent) {
+            pendingCount++;
+        } else {
+            flushPending();
+            pendingEvent = event;
+            pendingCount = 1;
+        }
+    }
+
+    void record(Karel karel, int event, Color color) {
+        if (karel != lastKarel) selectKarel(karel);
+        recordCount++;
+        flushPending();
+        writeVarint(event << 1);
+        long code = colorCode(color);
+        writeVarint(zigzag(code - lastColor));
+        lastColor = code;
+    }
+
+    static long colorCode(Color color) {
+        return (color == null) ? 0 : (color.getRGB() & 0xFFFFFFFFL) + 1;
+    }
+
+    static long zigzag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+/* Private methods */
+
+    private void selectKarel(Karel karel) {
+        int index = -1;
+        for (int i = 0; i < world.getKarelCount(); i++) {
+            if (world.getKarel(i) == karel) index = i;
+        }
+        if (index < 0) throw new ErrorException("Karel is not in the recorded world");
+        flushPending();
+        writeVarint(SELECT_KAREL << 1);
+        writeVarint(zigzag(index - lastIndex));
+        lastKarel = karel;
+        lastIndex = index;
+    }
+
+    private void flushPending() {
+        if (pendingEvent < 0) return;
+        if (pendingCount == 1) {
+            writeVarint(pendingEvent << 1);
+        } else {
+            writeVarint((pendingEvent << 1) | 1);
+            writeVarint(pendingCount);
+        }
+        pendingEvent = -1;
+    }
+
+    private void writeVarint(long n) {
+        while ((n & ~0x7FL) != 0) {
+            writeByte((int) ((n & 0x7F) | 0x80));
+            n >>>= 7;
+        }
+        writeByte((int) n);
+    }
+
+    private void writeByte(int b) {
+        if (length == buffer.length) {
+            if (out != null && length >= FLUSH_SIZE) {
+                try {
+                    out.write(buffer, 0, length);
+                } catch (IOException ex) {
+                    throw new ErrorException("" + ex);
+                }
+                length = 0;
+            } else {
+                byte[] newBuffer = new byte[2 * buffer.length];
+                System.arraycopy(buffer, 0, newBuffer, 0, length);
+                buffer = newBuffer;
+            }
+        }
+        buffer[length++] = (byte) b;
+    }
+
+/* Private constants */
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final int FLUSH_SIZE = 65536;
+
+/* Private state */
+
+    private OutputStream out;
+    private byte[] buffer;
+    private int length;
+    private KarelWorld world;
+    private Karel lastKarel;
+    private int lastIndex;
+    private long lastColor;
+    private int pendingEvent;
+    private long pendingCount;
+    private long recordCount;
+}
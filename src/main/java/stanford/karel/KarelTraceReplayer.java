@@ -0,0 +1,326 @@
+/*
+ * File: KarelTraceReplayer.java
+ * -----------------------------
+ * This file implements the replayer for traces written by
+ * KarelTraceRecorder.  The replayer applies the recorded primitives to a
+ * world directly, so a run can be watched again, at any speed, without
+ * executing the program that produced it.
+ */
+
+package stanford.karel;
+
+import acm.util.*;
+import java.awt.*;
+import java.io.*;
+
+/* Class: KarelTraceReplayer */
+/**
+ * This class drives a <code>KarelWorld</code> from a recorded trace.  The
+ * world must hold the same walls, beepers, and colors as the world in
+ * which the trace was recorded, which usually means loading the same
+ * world file; the replayer restores the Karels to their recorded starting
+ * state itself.  Recorded sensing results are checked against the world
+ * as the trace is replayed, and an <code>ErrorException</code> is thrown
+ * at the first step at which they disagree.
+ *
+ * <p><pre><code>
+ * &nbsp;    world.load(file);
+ * &nbsp;    KarelTraceReplayer replayer = new KarelTraceReplayer(world, traceFile);
+ * &nbsp;    replayer.replay(10);
+ * </code></pre>
+ */
+public class KarelTraceReplayer {
+
+/* Constructor: KarelTraceReplayer(world, trace) */
+/**
+ * Creates a replayer for a trace held in memory.
+ */
+    public KarelTraceReplayer(KarelWorld world, byte[] trace) {
+        this(world, new ByteArrayInputStream(trace));
+    }
+
+/* Constructor: KarelTraceReplayer(world, file) */
+/**
+ * Creates a replayer that reads the trace from a file as it goes.
+ */
+    public KarelTraceReplayer(KarelWorld world, File file) {
+        this(world, openFile(file));
+    }
+
+/* Constructor: KarelTraceReplayer(world, in) */
+/**
+ * Creates a replayer that reads the trace from an input stream as it goes.
+ * The header of the trace is read immediately, and the Karels of the
+ * world are moved to their recorded starting positions.
+ */
+    public KarelTraceReplayer(KarelWorld world, InputStream in) {
+        this.world = world;
+        this.in = (in instanceof BufferedInputStream || in instanceof ByteArrayInputStream)
+                  ? in : new BufferedInputStream(in);
+        int magic = 0;
+        for (int i = 0; i < 4; i++) {
+            magic = (magic << 8) | readByte();
+        }
+        if (magic != KarelTraceRecorder.MAGIC) throw new ErrorException("Not a Karel trace");
+        int version = (int) readVarint();
+        if (version != KarelTraceRecorder.VERSION) {
+            throw new ErrorException("Unsupported trace version " + version);
+        }
+        int cols = (int) readVarint();
+        int rows = (int) readVarint();
+        if (cols != world.getColumns() || rows != world.getRows()) {
+            throw new ErrorException("Trace was recorded in a world of a different size");
+        }
+        int nKarels = (int) readVarint();
+        if (nKarels > world.getKarelCount()) {
+            throw new ErrorException("Trace was recorded with " + nKarels + " Karels");
+        }
+        for (int i = 0; i < nKarels; i++) {
+            Karel karel = world.getKarel(i);
+            int x = (int) readVarint();
+            int y = (int) readVarint();
+            int dir = (int) readVarint();
+            int nBeepers = (int) unzigzag(readVarint());
+            karel.setLocation(x, y);
+            karel.setDirection(dir);
+            karel.setBeepersInBag(nBeepers);
+        }
+        karel = (nKarels == 0) ? null : world.getKarel(0);
+        world.repaint();
+    }
+
+/* Method: getStepCount() */
+/**
+ * Returns the number of recorded primitives replayed so far.
+ */
+    public long getStepCount() {
+        return stepCount;
+    }
+
+/* Method: isFinished() */
+/**
+ * Returns true if every record in the trace has been replayed.
+ */
+    public boolean isFinished() {
+        if (repeatCount == 0 && !finished) finished = !readRecord();
+        return finished;
+    }
+
+/* Method: step() */
+/**
+ * Replays the next recorded primitive and returns true, or returns false
+ * if the trace is finished.  Each replayed action is reported to the
+ * world's monitor and display as it would be when Karel runs.
+ */
+    public boolean step() {
+        if (isFinished()) return false;
+        repeatCount--;
+        apply(event);
+        stepCount++;
+        if (event < KarelTraceRecorder.SENSE_BASE) world.trace();
+        return true;
+    }
+
+/* Method: replay(stepsPerSecond) */
+/**
+ * Replays the rest of the trace at the specified rate.  A rate of zero
+ * replays it as fast as the world's monitor allows.
+ */
+    public void replay(double stepsPerSecond) {
+        while (step()) {
+            if (stepsPerSecond > 0) JTFTools.pause(1000 / stepsPerSecond);
+        }
+        world.publishChanges();
+    }
+
+/* Method: replayToEnd() */
+/**
+ * Replays the rest of the trace at once, without reporting the individual
+ * steps, and then redraws the world in its final state.
+ */
+    public void replayToEnd() {
+        boolean repaintFlag = world.getRepaintFlag();
+        world.setRepaintFlag(false);
+        try {
+            while (!isFinished()) {
+                repeatCount--;
+                apply(event);
+                stepCount++;
+            }
+        } finally {
+            world.setRepaintFlag(repaintFlag);
+        }
+        world.repaint();
+    }
+
+/* Private methods */
+
+/*
+ * Method: readRecord
+ * Usage: if (readRecord()) ...
+ * ----------------------------
+ * Reads records up to and including the next one that describes a
+ * primitive, leaving its event in event and the number of times it
+ * repeats in repeatCount.  Records that select a Karel are applied as
+ * they are read.  Returns false at the end of the trace.
+ */
+    private boolean readRecord() {
+        while (true) {
+            int b = nextByte();
+            if (b < 0) return false;
+            long code = readVarint(b);
+            event = (int) (code >> 1);
+            repeatCount = ((code & 1) == 0) ? 1 : readVarint();
+            if (event == KarelTraceRecorder.SELECT_KAREL) {
+                karelIndex += (int) unzigzag(readVarint());
+                if (karelIndex < 0 || karelIndex >= world.getKarelCount()) {
+                    throw new ErrorException("Trace selects a missing Karel");
+                }
+                karel = world.getKarel(karelIndex);
+                continue;
+            }
+            if (event == KarelTraceRecorder.PAINT_CORNER
+                    || event == KarelTraceRecorder.SENSE_BASE + 2 * KarelTraceRecorder.CORNER_COLOR_IS
+                    || event == KarelTraceRecorder.SENSE_BASE + 2 * KarelTraceRecorder.CORNER_COLOR_IS + 1) {
+                lastColor += unzigzag(readVarint());
+                color = (lastColor == 0) ? null : new Color((int) (lastColor - 1), true);
+            }
+            if (karel == null) throw new ErrorException("Trace has no Karel");
+            return true;
+        }
+    }
+
+    private void apply(int event) {
+        int x = karel.getAvenue();
+        int y = karel.getStreet();
+        int dir = karel.getDirection();
+        switch (event) {
+          case KarelTraceRecorder.MOVE:
+            if (world.checkWall(x, y, dir)) throw mismatch();
+            karel.setLocation(KarelWorld.adjacentX(x, dir), KarelWorld.adjacentY(y, dir));
+            return;
+          case KarelTraceRecorder.TURN_LEFT:
+            karel.setDirection(KarelWorld.leftFrom(dir));
+            return;
+          case KarelTraceRecorder.TURN_RIGHT:
+            karel.setDirection(KarelWorld.rightFrom(dir));
+            return;
+          case KarelTraceRecorder.TURN_AROUND:
+            karel.setDirection(KarelWorld.oppositeDirection(dir));
+            return;
+          case KarelTraceRecorder.PICK_BEEPER:
+            int nb = world.getBeepersOnCorner(x, y);
+            if (nb < 1) throw mismatch();
+            world.setBeepersOnCorner(x, y, KarelWorld.adjustBeepers(nb, -1));
+            karel.setBeepersInBag(KarelWorld.adjustBeepers(karel.getBeepersInBag(), +1));
+            return;
+          case KarelTraceRecorder.PUT_BEEPER:
+            int bag = karel.getBeepersInBag();
+            if (bag < 1) throw mismatch();
+            world.setBeepersOnCorner(x, y, KarelWorld.adjustBeepers(world.getBeepersOnCorner(x, y), +1));
+            karel.setBeepersInBag(KarelWorld.adjustBeepers(bag, -1));
+            return;
+          case KarelTraceRecorder.PAINT_CORNER:
+            world.setCornerColor(x, y, color);
+            return;
+        }
+        int predicate = (event - KarelTraceRecorder.SENSE_BASE) >> 1;
+        if (predicate < 0 || predicate >= KarelTraceRecorder.PREDICATE_COUNT) {
+            throw new ErrorException("Illegal trace record " + event);
+        }
+        if (predicate != KarelTraceRecorder.RANDOM && sense(predicate) != ((event & 1) != 0)) {
+            throw mismatch();
+        }
+    }
+
+    private boolean sense(int predicate) {
+        int x = karel.getAvenue();
+        int y = karel.getStreet();
+        int dir = karel.getDirection();
+        switch (predicate) {
+          case KarelTraceRecorder.FRONT_IS_CLEAR: return !world.checkWall(x, y, dir);
+          case KarelTraceRecorder.FRONT_IS_BLOCKED: return world.checkWall(x, y, dir);
+          case KarelTraceRecorder.LEFT_IS_CLEAR: return !world.checkWall(x, y, KarelWorld.leftFrom(dir));
+          case KarelTraceRecorder.LEFT_IS_BLOCKED: return world.checkWall(x, y, KarelWorld.leftFrom(dir));
+          case KarelTraceRecorder.RIGHT_IS_CLEAR: return !world.checkWall(x, y, KarelWorld.rightFrom(dir));
+          case KarelTraceRecorder.RIGHT_IS_BLOCKED: return world.checkWall(x, y, KarelWorld.rightFrom(dir));
+          case KarelTraceRecorder.BEEPERS_PRESENT: return world.getBeepersOnCorner(x, y) > 0;
+          case KarelTraceRecorder.NO_BEEPERS_PRESENT: return world.getBeepersOnCorner(x, y) == 0;
+          case KarelTraceRecorder.BEEPERS_IN_BAG: return karel.getBeepersInBag() > 0;
+          case KarelTraceRecorder.NO_BEEPERS_IN_BAG: return karel.getBeepersInBag() == 0;
+          case KarelTraceRecorder.FACING_NORTH: return dir == KarelWorld.NORTH;
+          case KarelTraceRecorder.FACING_EAST: return dir == KarelWorld.EAST;
+          case KarelTraceRecorder.FACING_SOUTH: return dir == KarelWorld.SOUTH;
+          case KarelTraceRecorder.FACING_WEST: return dir == KarelWorld.WEST;
+          case KarelTraceRecorder.NOT_FACING_NORTH: return dir != KarelWorld.NORTH;
+          case KarelTraceRecorder.NOT_FACING_EAST: return dir != KarelWorld.EAST;
+          case KarelTraceRecorder.NOT_FACING_SOUTH: return dir != KarelWorld.SOUTH;
+          case KarelTraceRecorder.NOT_FACING_WEST: return dir != KarelWorld.WEST;
+          case KarelTraceRecorder.CORNER_COLOR_IS:
+            Color cornerColor = world.getCornerColor(x, y);
+            return (color == null) ? cornerColor == null : color.equals(cornerColor);
+        }
+        return false;
+    }
+
+    private ErrorException mismatch() {
+        return new ErrorException("Trace does not match the world at step " + (stepCount + 1));
+    }
+
+    private long readVarint() {
+        int b = nextByte();
+        if (b < 0) throw new ErrorException("Trace is truncated");
+        return readVarint(b);
+    }
+
+    private long readVarint(int b) {
+        long n = 0;
+        int shift = 0;
+        while ((b & 0x80) != 0) {
+            if (shift > 56) throw new ErrorException("Corrupt trace");
+            n |= (long) (b & 0x7F) << shift;
+            shift += 7;
+            b = readByte();
+        }
+        return n | ((long) b << shift);
+    }
+
+    private int readByte() {
+        int b = nextByte();
+        if (b < 0) throw new ErrorException("Trace is truncated");
+        return b;
+    }
+
+    private int nextByte() {
+        try {
+            return in.read();
+        } catch (IOException ex) {
+            throw new ErrorException("" + ex);
+        }
+    }
+
+    private static long unzigzag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static InputStream openFile(File file) {
+        try {
+            return new BufferedInputStream(new FileInputStream(file));
+        } catch (IOException ex) {
+            throw new ErrorException("" + ex);
+        }
+    }
+
+/* Private state */
+
+    private KarelWorld world;
+    private InputStream in;
+    private Karel karel;
+    private int karelIndex;
+    private int event;
+    private long repeatCount;
+    private long lastColor;
+    private Color color;
+    private long stepCount;
+    private boolean finished;
+}
@@ -1,21 +1,33 @@
 /*
  * File: KarelWorld.java
  * ---------------------
- * This file contains the class that implements Karel's world.
+ * This file contains the class that implements Karel's world.  The
+ * world is a pure model that holds the walls, beepers, corner colors,
+ * and robots; it has no dependence on a display.  Views attach to it
+ * through the <code>KarelWorldDisplay</code> interface, which makes it
+ * possible to run Karel programs without creating any AWT components.
+ *
+ * A world is changed only by the thread that runs Karel, or by the
+ * editor while no program is running.  A display never reads the world
+ * directly.  Instead, the world publishes immutable KarelWorldSnapshot
+ * objects through a volatile field at points where its state is
+ * consistent: at the end of each Karel primitive, at the end of a load
+ * or an edit, and when a run finishes.  Each snapshot lists the corners
+ * that changed since the one before it, so that a display can redraw
+ * only those corners.
  */
 
 package stanford.karel;
 
-import static java.lang.Double.parseDouble;
 
 import acm.util.*;
 import java.awt.*;
-import java.awt.event.*;
 import java.io.*;
+import java.nio.*;
 import java.text.*;
 import java.util.*;
 
-class KarelWorld extends Canvas {
+public class KarelWorld {
 
     public static final int NORTH = 0;
     public static final int EAST = 1;
@@ -36,87 +48,75 @@ class KarelWorld extends Canvas {
     public static final int SIMPLE = 0;
     public static final int FANCY = 1;
 
-    public static final int LEFT_NUMBER_MARGIN = 16;
-    public static final int BOTTOM_NUMBER_MARGIN = 15;
-    public static final int DOUBLE_WALL_THRESHOLD = 24;
-    public static final int CROSS_THRESHOLD = 11;
-    public static final int NUMBER_THRESHOLD = 15;
-    public static final Font NUMBER_FONT = new Font("Times", Font.PLAIN, 9);
-    public static final double WALL_FRACTION = 0.30;
-    public static final double WALL_TOLERANCE = 0.15;
-
+/** @deprecated Worlds are no longer limited to 50 columns; see {@link #MAX_COLUMNS}. */
+    @Deprecated
     public static final int MAX_WIDTH = 50;
+
+/** @deprecated Worlds are no longer limited to 50 rows; see {@link #MAX_ROWS}. */
+    @Deprecated
     public static final int MAX_HEIGHT = 50;
 
-    public static final int MAX_DISPLAY_WIDTH = (6 * MAX_WIDTH) + LEFT_NUMBER_MARGIN;
-    public static final int MAX_DISPLAY_HEIGHT = (6 * MAX_HEIGHT) + BOTTOM_NUMBER_MARGIN;
+    public static final int MAX_COLUMNS = 100000;
+    public static final int MAX_ROWS = 100000;
 
     public static final boolean TOKEN_TRACE = false;
 
-    public static final Color BEEPER_COLOR = Color.YELLOW;
-    public static final Color MARKED_COLOR = Color.DARK_GRAY;
-    public static final int BEEPER_BORDER = 1;
-    public static final String BEEPER_FONT_FAMILY = "Times";
-    public static final int MIN_FANCY = 20;
-    public static final int MIN_BEEPER = 4;
-    public static final int MIN_LABEL = 15;
-    public static final double BEEPER_FRACTION = 0.70;
-    public static final double SIMPLE_FRACTION = 0.70;
+/* Flags describing the changes recorded in a snapshot */
+
+    static final int WALLS_CHANGED = 1;
+    static final int ALL_CHANGED = 2;
 
 /* Constructor */
 
     public KarelWorld() {
-        sizeLock = new Object();
         setTitle("Karel World");
-        setBackground(Color.WHITE);
-        KarelWorldListener listener = new KarelWorldListener(this);
-        addMouseListener(listener);
-        addMouseMotionListener(listener);
-        addComponentListener(listener);
-        speedFormat = NumberFormat.getInstance();
-        speedFormat.setMinimumIntegerDigits(1);
-        speedFormat.setMaximumIntegerDigits(1);
-        speedFormat.setMinimumFractionDigits(2);
-        speedFormat.setMaximumFractionDigits(2);
-        forcedSize = 0;
-        numberSquaresFlag = true;
         displayOneFlag = false;
-        look = FANCY;
-        alignment = CENTER;
         karels = new ArrayList<Karel>();
-        setDisplayFlag(true);
         setRepaintFlag(true);
     }
 
     public void init(int cols, int rows) {
-        synchronized (sizeLock) {
-            this.cols = cols;
-            this.rows = rows;
-            setDisplayParameters(cols, rows);
-            editMode = false;
-            map = new Corner[cols + 2][rows + 2];
-            for (int x = 1; x <= cols + 1; x++) {
-                for (int y = 1; y <= rows + 1; y++) {
-                    map[x][y] = new Corner();
-                    map[x][y].wallSouth = (y == 1) || (y == rows + 1);
-                    map[x][y].wallWest = (x == 1) || (x == cols + 1);
-                    map[x][y].color = null;
-                }
-            }
-            repaint();
-        }
+        if (cols < 1 || cols > MAX_COLUMNS || rows < 1 || rows > MAX_ROWS) {
+            throw new ErrorException("Illegal world dimensions");
+        }
+        this.cols = cols;
+        this.rows = rows;
+        grid = new KarelGrid(cols, rows);
+        occupants = new Karel[grid.getTileColumns() * grid.getTileRows()][];
+        stateHash = 0;
+        for (int i = 0; i < karels.size(); i++) {
+            Karel karel = karels.get(i);
+            indexKarel(karel);
+            stateHash ^= karelHash(karel, i);
+        }
+        if (journal != null) journal.worldChanged();
+        initialState = null;
+        generation++;
+        repaint();
     }
 
     public void add(Karel karel) {
         if (karels.indexOf(karel) == -1) {
             karel.setWorld(this);
             karels.add(karel);
+            indexKarel(karel);
+            stateHash ^= karelHash(karel, karels.size() - 1);
         }
         repaint();
     }
 
     public void remove(Karel karel) {
-        karels.remove(karel);
+        int k = karels.indexOf(karel);
+        if (k != -1) {
+            for (int i = k; i < karels.size(); i++) {
+                stateHash ^= karelHash(karels.get(i), i);
+            }
+            karels.remove(k);
+            unindexKarel(karel, karel.getAvenue(), karel.getStreet());
+            for (int i = k; i < karels.size(); i++) {
+                stateHash ^= karelHash(karels.get(i), i);
+            }
+        }
         karel.setWorld(null);
         repaint();
     }
@@ -137,13 +137,9 @@ class KarelWorld extends Canvas {
     }
 
     public Karel getKarelOnSquare(int x, int y) {
-        Iterator<Karel> iterator = karels.iterator();
-        while (iterator.hasNext()) {
-            Karel karel = iterator.next();
-            Point pt = karel.getLocation();
-            if (pt.x == x && pt.y == y) return karel;
-        }
-        return null;
+        if (occupants == null || outOfBounds(x, y)) return null;
+        Karel[] tile = occupants[grid.tileIndex(x, y)];
+        return (tile == null) ? null : tile[KarelGrid.tileOffset(x, y)];
     }
 
     public void setTitle(String title) {
@@ -162,10 +158,6 @@ class KarelWorld extends Canvas {
         return pathname;
     }
 
-    public void setDisplayFlag(boolean flag) {
-        displayFlag = flag;
-    }
-
     public void setRepaintFlag(boolean flag) {
         repaintFlag = flag;
     }
@@ -174,34 +166,14 @@ class KarelWorld extends Canvas {
         return repaintFlag;
     }
 
-    public boolean getNumberSquaresFlag() {
-        return numberSquaresFlag;
-    }
-
-    public void setNumberSquaresFlag(boolean flag) {
-        numberSquaresFlag = flag;
-    }
-
-    public int getAlignment() {
-        return alignment;
-    }
-
-    public void setAlignment(int alignment) {
-        this.alignment = alignment;
-    }
-
-    public int getLook() {
-        return look;
-    }
-
-    public void setLook(int look) {
-        this.look = look;
-    }
-
     public void setDisplayOneFlag(boolean flag) {
         displayOneFlag = flag;
     }
 
+    public boolean getDisplayOneFlag() {
+        return displayOneFlag;
+    }
+
     public String getPathName() {
         return pathname;
     }
@@ -210,32 +182,10 @@ class KarelWorld extends Canvas {
         this.pathname = pathname;
     }
 
-    public boolean getEditMode() {
-        return editMode;
-    }
-
-    public void setEditMode(boolean flag) {
-        editMode = flag;
-    }
-
-    public void updateEditMode(boolean flag) {
-        if (monitor == null) throw new ErrorException("No map editor defined");
-        setEditMode(flag);
-        repaint();
-    }
-
-    public void forceSquareSize(int size) {
-        forcedSize = size;
-    }
-
     public void reset() {
         /* Empty */
     }
 
-    public int getSquareSize() {
-        return sqSize;
-    }
-
     public int getColumns() {
         return (cols);
     }
@@ -257,16 +207,19 @@ class KarelWorld extends Canvas {
     }
 
     public int getBeepersOnCorner(int x, int y) {
-        return ((map[x][y]).nBeepers);
+        return grid.getBeepers(x, y);
     }
 
     public void setBeepersOnCorner(Point pt, int nBeepers) {
-        map[pt.x][pt.y].nBeepers = nBeepers;
-        updateCorner(pt);
+        setBeepersOnCorner(pt.x, pt.y, nBeepers);
     }
 
     public void setBeepersOnCorner(int x, int y, int nBeepers) {
-        setBeepersOnCorner(new Point(x, y), nBeepers);
+        long k = positionValue(x, y);
+        stateHash ^= cornerHash(k, BEEPER_KEY, grid.getBeepers(x, y)) ^ cornerHash(k, BEEPER_KEY, nBeepers);
+        grid.setBeepers(x, y, nBeepers);
+        if (journal != null) journal.beepersChanged(x, y, nBeepers);
+        updateCorner(x, y);
     }
 
     public static int adjustBeepers(int nBeepers, int delta) {
@@ -286,16 +239,20 @@ class KarelWorld extends Canvas {
     }
 
     public Color getCornerColor(int x, int y) {
-        return (map[x][y].color);
+        return grid.getColor(x, y);
     }
 
     public void setCornerColor(Point pt, Color color) {
-        map[pt.x][pt.y].color = color;
-        updateCorner(pt);
+        setCornerColor(pt.x, pt.y, color);
     }
 
     public void setCornerColor(int x, int y, Color color) {
-        setCornerColor(new Point(x, y), color);
+        long k = positionValue(x, y);
+        stateHash ^= cornerHash(k, COLOR_KEY, grid.getColorIndex(x, y));
+        grid.setColor(x, y, color);
+        stateHash ^= cornerHash(k, COLOR_KEY, grid.getColorIndex(x, y));
+        if (journal != null) journal.colorChanged(x, y, color);
+        updateCorner(x, y);
     }
 
     public boolean checkWall(Point pt, int dir) {
@@ -303,59 +260,45 @@ class KarelWorld extends Canvas {
     }
 
     public boolean checkWall(int x, int y, int dir) {
-        switch (dir) {
-          case SOUTH: return (map[x][y].wallSouth);
-          case WEST:  return (map[x][y].wallWest);
-          case NORTH: return (map[x][y + 1].wallSouth);
-          case EAST:  return (map[x + 1][y].wallWest);
-        }
-        return (false);
+        return grid.checkWall(x, y, dir);
     }
 
     public void setWall(Point pt, int dir) {
-        switch (dir) {
-          case SOUTH: map[pt.x][pt.y].wallSouth = true; break;
-          case WEST:  map[pt.x][pt.y].wallWest = true; break;
-          case NORTH: map[pt.x][pt.y + 1].wallSouth = true; break;
-          case EAST:  map[pt.x + 1][pt.y].wallWest = true; break;
-        }
-        updateCorner(pt);
+        setWall(pt.x, pt.y, dir);
     }
 
     public void setWall(int x, int y, int dir) {
-        setWall(new Point(x, y), dir);
+        grid.setWall(x, y, dir, true);
+        if (journal != null) journal.wallChanged(x, y, dir, true);
+        updateWall(x, y, dir);
     }
 
     public void clearWall(Point pt, int dir) {
-        switch (dir) {
-          case SOUTH: map[pt.x][pt.y].wallSouth = false; break;
-          case WEST:  map[pt.x][pt.y].wallWest = false; break;
-          case NORTH: map[pt.x][pt.y + 1].wallSouth = false; break;
-          case EAST:  map[pt.x + 1][pt.y].wallWest = false; break;
-        }
-        updateCorner(pt);
-        if (sqSize >= DOUBLE_WALL_THRESHOLD) {
-            Point left = adjacentPoint(pt, leftFrom(dir));
-            Point right = adjacentPoint(pt, rightFrom(dir));
-            updateCorner(left);
-            updateCorner(right);
-            updateCorner(adjacentPoint(left, dir));
-            updateCorner(adjacentPoint(pt, dir));
-            updateCorner(adjacentPoint(right, dir));
-        }
+        clearWall(pt.x, pt.y, dir);
     }
 
     public void clearWall(int x, int y, int dir) {
-        clearWall(new Point(x, y), dir);
+        grid.setWall(x, y, dir, false);
+        if (journal != null) journal.wallChanged(x, y, dir, false);
+        updateWall(x, y, dir);
     }
 
     public void updateCorner(int x, int y) {
-        updateCorner(new Point(x, y));
+        if (repaintFlag && display != null) {
+            if (changedCount < changedCorners.length) {
+                changedCorners[changedCount++] = positionValue(x, y);
+            } else {
+                changeFlags |= ALL_CHANGED;
+            }
+        }
     }
 
     public void updateCorner(Point pt) {
-        Rectangle r = getCornerRect(pt);
-        if (repaintFlag) repaint(r.x, r.y, r.width, r.height);
+        updateCorner(pt.x, pt.y);
+    }
+
+    public void updateWall(int x, int y, int dir) {
+        if (repaintFlag && display != null) changeFlags |= WALLS_CHANGED;
     }
 
     public static String directionName(int dir) {
@@ -398,6 +341,22 @@ class KarelWorld extends Canvas {
         return -1;
     }
 
+    public static int adjacentX(int x, int dir) {
+        switch (dir) {
+          case WEST:  return x - 1;
+          case EAST:  return x + 1;
+        }
+        return x;
+    }
+
+    public static int adjacentY(int y, int dir) {
+        switch (dir) {
+          case SOUTH: return y - 1;
+          case NORTH: return y + 1;
+        }
+        return y;
+    }
+
     public static Point adjacentPoint(Point pt, int dir) {
         return adjacentPoint(pt.x, pt.y, dir);
     }
@@ -413,670 +372,705 @@ class KarelWorld extends Canvas {
     }
 
     public void repaint() {
-        if (repaintFlag) super.repaint();
+        if (repaintFlag && display != null) {
+            changeFlags |= ALL_CHANGED;
+            publishSnapshot();
+        }
     }
 
-    public void update(Graphics g) {
-        paint(g);
+    public void trace() {
+        if (display != null && (snapshotWanted || System.nanoTime() - publishTime > PUBLISH_INTERVAL)) {
+            publishChanges();
+        }
+        if (gifExporter != null) gifExporter.trace();
+        if (monitor != null) monitor.trace();
     }
 
-    public void paint(Graphics g) {
-        if (map == null || !displayFlag) return;
-        synchronized (sizeLock) {
-            if (offscreen == null) {
-                Dimension size = getSize();
-                offscreen = createImage(size.width, size.height);
-            }
-            Graphics osg = offscreen.getGraphics();
-            drawEmptyWorld(osg);
-            for (int pass = 0; pass < 2; pass++) {
-                for (int x = 1; x <= cols + 1; x++) {
-                    for (int y = 1; y <= rows + 1; y++) {
-                        boolean mustPaint = false;
-                        if (getKarelOnSquare(x, y) != null) {
-                            mustPaint = true;
-                        } else if (map[x][y].color != null) {
-                            mustPaint = true;
-                        } else if (map[x][y].nBeepers != 0) {
-                            mustPaint = true;
-                        } else if (x > 1 && map[x][y].wallWest) {
-                            mustPaint = true;
-                        } else if (y > 1 && map[x][y].wallSouth) {
-                            mustPaint = true;
-                        } else if (x < cols && map[x + 1][y].wallWest) {
-                            mustPaint = true;
-                        } else if (y < rows && map[x][y + 1].wallSouth) {
-                            mustPaint = true;
-                        }
-                        if (mustPaint) {
-                            if (pass == 0) {
-                                updateContents(osg, new Point(x, y));
-                            } else {
-                                updateWalls(osg, new Point(x, y));
-                            }
-                        }
-                    }
-                }
+/* Snapshots */
+
+/*
+ * Method: getSnapshot
+ * Usage: KarelWorldSnapshot snapshot = world.getSnapshot();
+ * ---------------------------------------------------------
+ * Returns the most recently published snapshot of the world, or null if
+ * none has been published.  Snapshots are published only while a display
+ * is attached; this method may be called from any thread.
+ */
+    public KarelWorldSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+/*
+ * Method: createSnapshot
+ * Usage: KarelWorldSnapshot snapshot = world.createSnapshot();
+ * ------------------------------------------------------------
+ * Returns a snapshot of the current state of the world without publishing
+ * it.  This method must be called from the thread that changes the world.
+ */
+    public KarelWorldSnapshot createSnapshot() {
+        if (grid == null) throw new ErrorException("World has no dimension");
+        return new KarelWorldSnapshot(grid.snapshot(), karels, 0, generation, ALL_CHANGED,
+                                      new long[0], 0, stateHash);
+    }
+
+/*
+ * Method: restoreSnapshot
+ * Usage: world.restoreSnapshot(snapshot);
+ * ---------------------------------------
+ * Returns the world to the state recorded in a snapshot of it.  The
+ * corners are restored by thawing the grid of the snapshot, which shares
+ * its tiles until they are written, so the cost does not depend on the
+ * size of the world.  Each Karel in the snapshot that is still in the
+ * world returns to its recorded position, direction, and beeper bag.
+ */
+    public void restoreSnapshot(KarelWorldSnapshot snapshot) {
+        if (snapshot.getColumns() != cols || snapshot.getRows() != rows) {
+            throw new ErrorException("Snapshot is from a world of a different size");
+        }
+        for (int i = 0; i < karels.size(); i++) {
+            Karel karel = karels.get(i);
+            unindexKarel(karel, karel.getAvenue(), karel.getStreet());
+        }
+        grid = snapshot.getGrid().thaw();
+        boolean sameKarels = snapshot.getKarelCount() == karels.size();
+        for (int k = 0; k < snapshot.getKarelCount(); k++) {
+            Karel karel = snapshot.getKarel(k);
+            if (karel.getWorld() == this) {
+                karel.restoreState(snapshot.getKarelAvenue(k), snapshot.getKarelStreet(k),
+                                   snapshot.getKarelDirection(k), snapshot.getKarelBeepers(k));
             }
-            drawWorldFrame(osg);
+            if (k >= karels.size() || karels.get(k) != karel) sameKarels = false;
         }
-        g.drawImage(offscreen, 0, 0, this);
+        for (int i = 0; i < karels.size(); i++) {
+            indexKarel(karels.get(i));
+        }
+        if (sameKarels) {
+            stateHash = snapshot.getStateHash();
+        } else {
+            rehash();
+        }
+        if (journal != null) journal.worldChanged();
+        changeFlags |= WALLS_CHANGED;
+        repaint();
     }
 
-    public void trace() {
-        if (monitor != null) monitor.trace();
+/*
+ * Method: saveInitialState
+ * Usage: world.saveInitialState();
+ * --------------------------------
+ * Records the current state of the world as the one that
+ * resetToInitialState restores.  This is done whenever a world is
+ * loaded; it costs no more than taking a snapshot.
+ */
+    public void saveInitialState() {
+        initialState = (grid == null) ? null : createSnapshot();
     }
 
-    protected void setMonitor(KarelWorldMonitor monitor) {
-        this.monitor = monitor;
+/*
+ * Method: resetToInitialState
+ * Usage: if (world.resetToInitialState()) ...
+ * -------------------------------------------
+ * Returns the world, including the position, direction, and beeper bag
+ * of each Karel, to the state it had when it was loaded, and resets the
+ * step count, time limit clock, and cancellation flag for the next run.
+ * This neither reads nor parses the world file, so a program can be run
+ * again and again at almost no cost.  Returns false, leaving the world
+ * unchanged, if no initial state has been recorded since the world was
+ * last resized.
+ */
+    public boolean resetToInitialState() {
+        if (initialState == null) return false;
+        restoreSnapshot(initialState);
+        resetStepCount();
+        cancelled = false;
+        return true;
     }
 
-    protected KarelWorldMonitor getMonitor() {
-        return monitor;
+/*
+ * Method: requestSnapshot
+ * Usage: world.requestSnapshot();
+ * -------------------------------
+ * Tells the world that the display has drawn the current snapshot and is
+ * ready for the next one, which is then published at the end of the next
+ * Karel primitive that changes the world.  Without a request, snapshots
+ * are published at most once every PUBLISH_INTERVAL, which keeps the cost
+ * of publishing small when Karel runs much faster than the display.
+ */
+    void requestSnapshot() {
+        snapshotWanted = true;
     }
 
-/* Protected hooks */
+/*
+ * Method: publishChanges
+ * Usage: world.publishChanges();
+ * ------------------------------
+ * Publishes a snapshot if the world has changed since the last one.
+ * This is called when a run ends, so that the final state of the world
+ * is shown even if it was not published by the last primitive.
+ */
+    void publishChanges() {
+        if (changedCount > 0 || changeFlags != 0) publishSnapshot();
+    }
 
-    protected void componentResizedHook() {
-        setDisplayParameters(cols, rows);
-        repaint();
+    private void publishSnapshot() {
+        if (display == null || grid == null) return;
+        KarelWorldSnapshot snap = new KarelWorldSnapshot(grid.snapshot(), karels, ++snapshotVersion,
+                                                         generation, changeFlags, changedCorners,
+                                                         changedCount, stateHash);
+        changedCount = 0;
+        changeFlags = 0;
+        publishTime = System.nanoTime();
+        snapshotWanted = false;
+        snapshot = snap;
+        display.snapshotPublished(snap);
     }
 
-    protected void mousePressedHook(MouseEvent e) {
-        if (editMode) {
-            lastClick = "";
-            Point pt = getClickCorner(e.getX(), e.getY());
-            if (pt == null) {
-                activeKarel = null;
-                checkForWallClick(e.getX(), e.getY());
-            } else {
-                activeKarel = getKarelOnSquare(pt.x, pt.y);
-                if (activeKarel == null) checkForCornerClick(pt);
-            }
-        }
+/* Step budget */
+
+    public long getStepCount() {
+        return stepCount;
     }
 
-    protected void mouseDraggedHook(MouseEvent e) {
-        if (!editMode) return;
-        if (activeKarel != null) {
-            Point pt = getClickCorner(e.getX(), e.getY());
-            if (pt != null && !pt.equals(activeKarel.getLocation())) {
-                activeKarel.setLocation(pt);
-                repaint();
-            }
-        } else {
-            if (!checkForWallClick(e.getX(), e.getY())) checkForCornerClick(e.getX(), e.getY());
-        }
+/*
+ * Method: resetStepCount
+ * Usage: world.resetStepCount();
+ * ------------------------------
+ * Prepares the step budget for a new run by clearing the step count and
+ * the cycle tables and starting the clock for the time limit, if any.
+ */
+    public void resetStepCount() {
+        stepCount = 0;
+        deadline = (timeLimit <= 0) ? 0 : System.nanoTime() + timeLimit * 1000000L;
+        clearCycleTables();
     }
 
-/* Click handling methods */
-
-    private boolean checkForWallClick(int mx, int my) {
-        double sx = (double) (mx - leftMargin + sqSize / 2) / sqSize;
-        double sy = (double) (getSize().height - my - bottomMargin - 1 + sqSize / 2) / sqSize;
-        int tx = (int) (sx + 0.5);
-        int ty = (int) (sy + 0.5);
-        int dir;
-        if (Math.abs(Math.abs(sx - tx) - 0.5) <= WALL_TOLERANCE && Math.abs(sy - ty) < WALL_FRACTION) {
-            if (tx > sx) tx--;
-            if (tx < 0 || tx > cols || ty < 1 || ty > rows) return false;
-            dir = EAST;
-        } else if (Math.abs(Math.abs(sy - ty) - 0.5) <= WALL_TOLERANCE && Math.abs(sx - tx) < WALL_FRACTION) {
-            if (ty > sy) ty--;
-            if (tx < 1 || tx > cols || ty < 0 || ty > rows) return false;
-            dir = NORTH;
-        } else {
-            return false;
-        }
-        String click = tx + "/" + ty + "/" + dir;
-        if (!click.equals(lastClick)) {
-            if (monitor != null) monitor.wallAction(new Point(tx, ty), dir);
-            lastClick = click;
-        }
-        return true;
+    public void setStepLimit(long limit) {
+        stepLimit = (limit <= 0) ? Long.MAX_VALUE : limit;
     }
 
-    private boolean checkForCornerClick(int mx, int my) {
-        return checkForCornerClick(getClickCorner(mx, my));
+    public long getStepLimit() {
+        return (stepLimit == Long.MAX_VALUE) ? 0 : stepLimit;
     }
 
-    private boolean checkForCornerClick(Point pt) {
-        if (pt == null) return false;
-        String click = pt.x + "/" + pt.y;
-        if (!click.equals(lastClick)) {
-            if (monitor != null) monitor.cornerAction(pt);
-            lastClick = click;
-        }
-        return true;
+/*
+ * Method: setTimeLimit
+ * Usage: world.setTimeLimit(millis);
+ * ----------------------------------
+ * Sets the time limit for each run in milliseconds, where 0 means no
+ * limit.  The clock starts when the step count is reset for the next run.
+ */
+    public void setTimeLimit(long millis) {
+        timeLimit = Math.max(0, millis);
     }
 
-    private Point getClickCorner(int mx, int my) {
-        double sx = (double) (mx - leftMargin + sqSize / 2) / sqSize;
-        double sy = (double) (getSize().height - my - bottomMargin - 1 + sqSize / 2) / sqSize;
-        int tx = (int) (sx + 0.5);
-        int ty = (int) (sy + 0.5);
-        if (tx < 1 || tx > cols || ty < 1 || ty > rows) return null;
-        if (Math.abs(Math.abs(sx - tx) - 0.5) * sqSize <= 1) return null;
-        if (Math.abs(Math.abs(sy - ty) - 0.5) * sqSize <= 1) return null;
-        return new Point(tx, ty);
+    public long getTimeLimit() {
+        return timeLimit;
     }
 
-    private static String encodeColor(Color color) {
-        if (color.equals(Color.BLACK)) return "BLACK";
-        if (color.equals(Color.BLUE)) return "BLUE";
-        if (color.equals(Color.CYAN)) return "CYAN";
-        if (color.equals(Color.DARK_GRAY)) return "DARK_GRAY";
-        if (color.equals(Color.GRAY)) return "GRAY";
-        if (color.equals(Color.GREEN)) return "GREEN";
-        if (color.equals(Color.LIGHT_GRAY)) return "LIGHT_GRAY";
-        if (color.equals(Color.MAGENTA)) return "MAGENTA";
-        if (color.equals(Color.ORANGE)) return "ORANGE";
-        if (color.equals(Color.PINK)) return "PINK";
-        if (color.equals(Color.RED)) return "RED";
-        if (color.equals(Color.WHITE)) return "WHITE";
-        if (color.equals(Color.YELLOW)) return "YELLOW";
-        return "0x" + Integer.toString(color.getRGB() & 0xFFFFFF).toUpperCase();
+    public void cancel() {
+        cancelled = true;
     }
 
-    private static Color decodeColor(String name) {
-        if (name.equalsIgnoreCase("black")) return Color.BLACK;
-        if (name.equalsIgnoreCase("blue")) return Color.BLUE;
-        if (name.equalsIgnoreCase("cyan")) return Color.CYAN;
-        if (name.equalsIgnoreCase("darkGray") || name.equalsIgnoreCase("DARK_GRAY")) return Color.DARK_GRAY;
-        if (name.equalsIgnoreCase("gray")) return Color.GRAY;
-        if (name.equalsIgnoreCase("green")) return Color.GREEN;
-        if (name.equalsIgnoreCase("lightGray") || name.equalsIgnoreCase("LIGHT_GRAY")) return Color.LIGHT_GRAY;
-        if (name.equalsIgnoreCase("magenta")) return Color.MAGENTA;
-        if (name.equalsIgnoreCase("orange")) return Color.ORANGE;
-        if (name.equalsIgnoreCase("pink")) return Color.PINK;
-        if (name.equalsIgnoreCase("red")) return Color.RED;
-        if (name.equalsIgnoreCase("white")) return Color.WHITE;
-        if (name.equalsIgnoreCase("yellow")) return Color.YELLOW;
-        return Color.decode(name);
+    public boolean isCancelled() {
+        return cancelled;
     }
 
-    private void setDisplayParameters(int cols, int rows) {
-        offscreen = null;
-        int usableWidth = getSize().width - ((numberSquaresFlag) ? LEFT_NUMBER_MARGIN : 2);
-        int usableHeight = getSize().height - ((numberSquaresFlag) ? BOTTOM_NUMBER_MARGIN : 0) - 2;
-        this.width = cols;
-        this.height = rows;
-        if (forcedSize == 0) {
-            sqSize = Math.min((int) (usableWidth / cols), (int) (usableHeight / rows));
-        } else {
-            sqSize = forcedSize;
+/*
+ * Method: countStep
+ * Usage: world.countStep();
+ * -------------------------
+ * Counts one Karel primitive against the step budget.  The step limit is
+ * checked on every call; the clock and the cancellation flag are checked
+ * only once every CLOCK_INTERVAL steps to keep the common path cheap.
+ */
+    void countStep() {
+        long n = ++stepCount;
+        if (n > stepLimit) {
+            throw new KarelAbortException(KarelAbortException.STEP_LIMIT,
+                                          "Step limit of " + stepLimit + " exceeded");
         }
-        width = cols * sqSize;
-        height = rows * sqSize;
-        switch (alignment) {
-          case NORTHWEST: case WEST: case SOUTHWEST:
-            leftMargin = (numberSquaresFlag) ? LEFT_NUMBER_MARGIN : 2;
-            break;
-          case NORTH: case CENTER: case SOUTH:
-            leftMargin = ((numberSquaresFlag) ? LEFT_NUMBER_MARGIN : 2) + (usableWidth - width) / 2;
-            break;
-          case NORTHEAST: case EAST: case SOUTHEAST:
-            leftMargin = getSize().width - width - 1;
-            break;
+        if ((n & (CLOCK_INTERVAL - 1)) == 0) checkClock();
+        if (cycleHashes != null) checkCycle();
+        if (journal != null) journal.stepStarted();
+    }
+
+    private void checkClock() {
+        if (cancelled) {
+            throw new KarelAbortException(KarelAbortException.CANCELLED, "Run cancelled");
         }
-        switch (alignment) {
-          case NORTHWEST: case NORTH: case NORTHEAST:
-            bottomMargin = getSize().height - height - 2;
-            break;
-          case WEST: case CENTER: case EAST:
-            bottomMargin = ((numberSquaresFlag) ? BOTTOM_NUMBER_MARGIN : 0) + (usableHeight - height) / 2;
-            break;
-          case SOUTHWEST: case SOUTH: case SOUTHEAST:
-            bottomMargin = (numberSquaresFlag) ? BOTTOM_NUMBER_MARGIN : 0;
-            break;
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            throw new KarelAbortException(KarelAbortException.TIME_LIMIT,
+                                          "Time limit of " + timeLimit + " ms exceeded");
         }
     }
 
-    private void drawEmptyWorld(Graphics g) {
-        if (g == null) return;
-        Dimension size = getSize();
-        g.setColor(Color.WHITE);
-        g.fillRect(0, 0, size.width, size.height);
-        g.setColor(Color.BLACK);
-        int x = leftMargin + sqSize / 2;
-        for (int ix = 1; ix <= cols; ix++) {
-            int y = getSize().height - bottomMargin - (sqSize + 1) / 2 - 1;
-            for (int iy = 1; iy <= rows; iy++) {
-                drawCornerMarker(g, x, y);
-                y -= sqSize;
-            }
-            x += sqSize;
-        }
+/* Method: setRecorder(recorder) */
+/**
+ * Attaches a trace recorder to this world, which then records every
+ * primitive executed by the Karels in the world.  Passing null stops
+ * recording.
+ */
+    public void setRecorder(KarelTraceRecorder recorder) {
+        if (recorder != null) recorder.start(this);
+        this.recorder = recorder;
     }
 
-    private void drawWorldFrame(Graphics g) {
-        if (g == null) return;
-        g.setColor(Color.BLACK);
-        int x = leftMargin;
-        int y = getSize().height - bottomMargin - 1 - height;
-        if (sqSize >= DOUBLE_WALL_THRESHOLD) {
-            g.drawRect(x, y, width - 1, height - 1);
-            g.drawRect(x - 1, y - 1, width + 1, height + 1);
-        } else {
-            g.drawRect(x - 1, y - 1, width, height);
-        }
-        if (sqSize > NUMBER_THRESHOLD && numberSquaresFlag) {
-            g.setFont(NUMBER_FONT);
-            FontMetrics fm = g.getFontMetrics();
-            x = leftMargin + sqSize / 2;
-            y = getSize().height - bottomMargin + 10;
-            for (int ix = 1; ix <= cols; ix++) {
-                String label = "" + ix;
-                g.drawString(label, x - fm.stringWidth(label) / 2, y);
-                x += sqSize;
-            }
-            x = leftMargin - 3;
-            y = getSize().height - bottomMargin - sqSize / 2 + 2;
-            for (int iy = 1; iy <= rows; iy++) {
-                g.drawString("" + iy, x - g.getFontMetrics().stringWidth("" + iy), y);
-                y -= sqSize;
-            }
-           }
+/* Method: setJournal(journal) */
+/**
+ * Attaches a journal to this world, which then keeps the history of the
+ * steps executed in the world so that it can be moved to any earlier
+ * step.  Passing null discards the history.
+ */
+    public void setJournal(KarelJournal journal) {
+        if (journal != null) journal.start(this);
+        this.journal = journal;
     }
 
-    public void updateContents(Graphics g, Point pt) {
-        if (g == null) return;
-        if (outOfBounds(pt)) return;
-        int x = leftMargin + (pt.x - 1) * sqSize;
-        int y = getSize().height - bottomMargin - 1 - pt.y * sqSize;
-        drawCorner(g, x, y, pt);
+/* Method: getJournal() */
+/**
+ * Returns the journal attached to this world, or null if none.
+ */
+    public KarelJournal getJournal() {
+        return journal;
     }
 
-    public void drawCorner(Graphics g, int x, int y, Point pt) {
-        if (g == null) return;
-        int sqSize = getSquareSize();
-        Color color = getCornerColor(pt);
-        g.setColor((color == null) ? Color.WHITE : color);
-        g.fillRect(x, y, sqSize, sqSize);
-        int cx = x + sqSize / 2;
-        int cy = y + sqSize / 2;
-        int nBeepers = getBeepersOnCorner(pt);
-        if (nBeepers > 0) {
-            if (nBeepers == 1 && !displayOneFlag) nBeepers = BLANKB;
-            drawBeeperForStyle(g, cx, cy, sqSize, nBeepers, 1);
-        }
-        Karel karel = getKarelOnSquare(pt.x, pt.y);
-        if (karel != null) {
-            drawKarel(g, cx, cy, karel.getDirection(), sqSize);
-        } else {
-            if (color == null && nBeepers == 0) drawCornerMarker(g, cx, cy);
-        }
+/* Method: getRecorder() */
+/**
+ * Returns the trace recorder attached to this world, or null if none.
+ */
+    public KarelTraceRecorder getRecorder() {
+        return recorder;
     }
 
-    public static void drawMarkedCorner(Graphics g, int x, int y, int size) {
-        if (g == null) return;
-        int inset = Math.max(2, size / 5);
-        g.setColor(Color.WHITE);
-        g.fillRect(x, y, size, size);
-        g.setColor(MARKED_COLOR);
-        g.fillRect(x + inset, y + inset, size - 2 * inset, size - 2 * inset);
+/* Method: setGifExporter(exporter) */
+/**
+ * Attaches an animated GIF exporter to this world, which then draws the
+ * world as Karel runs.  Passing null detaches the exporter, which should
+ * be done before the exporter is closed.
+ */
+    public void setGifExporter(KarelGifExporter exporter) {
+        if (exporter != null) exporter.start(this);
+        this.gifExporter = exporter;
     }
 
-    public void drawKarel(Graphics g, int x, int y, int dir, int size) {
-        if (g == null) return;
-        if (size < MIN_FANCY || getLook() == SIMPLE) {
-            drawSimpleKarel(g, x, y, dir, size);
-        } else {
-            drawFancyKarel(g, x, y, dir, size);
-        }
+/* Method: getGifExporter() */
+/**
+ * Returns the GIF exporter attached to this world, or null if none.
+ */
+    public KarelGifExporter getGifExporter() {
+        return gifExporter;
     }
 
-    public void drawSimpleKarel(Graphics g, int x, int y, int dir, int size) {
-        if (g == null) return;
-        size = (int) Math.round(size * SIMPLE_FRACTION);
-        if (size % 2 == 0) size--;
-        int half = (size + 1) / 2;
-        for (int pass = 1; pass <= 2; pass++) {
-            KarelRegion r = new KarelRegion();
-            r.setOrigin(x, y, -half, -half, dir);
-            r.addVector(half, 0, dir);
-            r.addVector(half, half, dir);
-            r.addVector(-half, half, dir);
-            r.addVector(-half, 0, dir);
-            r.addVector(0, -size, dir);
-            if (pass == 1) {
-                g.setColor(Color.WHITE);
-                g.fillPolygon(r.getPolygon());
-            } else {
-                g.setColor(Color.BLACK);
-                g.drawPolygon(r.getPolygon());
-            }
-        }
+/*
+ * Method: recordAction
+ * Usage: world.recordAction(karel, event);
+ * ----------------------------------------
+ * Records an action that the specified Karel has just completed, if a
+ * recorder is attached.  The overloaded form records a color as well.
+ */
+    void recordAction(Karel karel, int event) {
+        if (recorder != null) recorder.record(karel, event);
     }
 
-    public void drawFancyKarel(Graphics g, int x, int y, int dir, int size) {
-        drawFancyKarel(g, x, y, dir, size - KAREL_INSET, Color.WHITE);
-    }
-
-    public static void drawFancyKarel(Graphics g, int x, int y, int dir, int size, Color color) {
-        if (g == null) return;
-        for (int pass = 1; pass <= 2; pass++) {
-            KarelRegion r = new KarelRegion();
-            r.setOrigin(x, y, BODY_OFFSET_X * size, BODY_OFFSET_Y * size + LOWER_NOTCH * size, dir);
-            int sx = r.getCurrentX();
-            int sy = r.getCurrentY();
-            g.setColor((pass == 1) ? color : Color.BLACK);
-            r.addVector(0, BODY_HEIGHT * size - LOWER_NOTCH * size, dir);
-            r.addVector(BODY_WIDTH * size - UPPER_NOTCH * size, 0, dir);
-            r.addVector(UPPER_NOTCH * size, -UPPER_NOTCH * size, dir);
-            r.addVector(0, -(BODY_HEIGHT * size - UPPER_NOTCH * size), dir);
-            r.addVector(-(BODY_WIDTH * size - LOWER_NOTCH * size), 0, dir);
-            r.addVector(-LOWER_NOTCH * size, LOWER_NOTCH * size, dir);
-            if (pass == 1) {
-                r.getPolygon().addPoint(sx, sy);
-                r.addVector((SCREEN_OFFSET_X - BODY_OFFSET_X) * size,
-                            (SCREEN_OFFSET_Y - BODY_OFFSET_Y - LOWER_NOTCH) * size, dir);
-            } else {
-                g.drawPolygon(r.getPolygon());
-                r = new KarelRegion();
-                r.setOrigin(sx, sy, (SCREEN_OFFSET_X - BODY_OFFSET_X) * size,
-                            (SCREEN_OFFSET_Y - BODY_OFFSET_Y - LOWER_NOTCH) * size, dir);
-            }
-            r.addVector(SCREEN_WIDTH * size, 0, dir);
-            r.addVector(0, SCREEN_HEIGHT * size, dir);
-            r.addVector(-SCREEN_WIDTH * size, 0, dir);
-            r.addVector(0, -SCREEN_HEIGHT * size, dir);
-            if (pass == 1) {
-                r.getPolygon().addPoint(sx, sy);
-                g.fillPolygon(r.getPolygon());
-                r = new KarelRegion();
-                r.setOrigin(sx, sy, (SCREEN_OFFSET_X - BODY_OFFSET_X) * size - 1,
-                            (SCREEN_OFFSET_Y - BODY_OFFSET_Y - LOWER_NOTCH) * size - 1, dir);
-                r.addVector(SCREEN_WIDTH * size + 2, 0, dir);
-                r.addVector(0, SCREEN_HEIGHT * size + 2, dir);
-                r.addVector(-(SCREEN_WIDTH * size + 2), 0, dir);
-                r.addVector(0, -(SCREEN_HEIGHT * size + 2), dir);
-                g.drawPolygon(r.getPolygon());
-            } else {
-                g.drawPolygon(r.getPolygon());
-            }
-        }
-        g.setColor(Color.BLACK);
-        KarelRegion r = new KarelRegion();
-        r.setOrigin(x, y, SCREEN_OFFSET_X * size + SCREEN_WIDTH * size,
-                    (SCREEN_OFFSET_Y * size + BODY_OFFSET_Y * size) / 2, dir);
-        r.addVector(-SLOT_WIDTH * size, 0, dir);
-        g.drawPolygon(r.getPolygon());
-        r = new KarelRegion();
-        r.setOrigin(x, y, BODY_OFFSET_X * size, SCREEN_OFFSET_Y * size, dir);
-        r.addVector(-(UPPER_ANKLE * size + FOOT_WIDTH * size), 0, dir);
-        r.addVector(0, -FOOT_LENGTH * size, dir);
-        r.addVector(FOOT_WIDTH * size, 0, dir);
-        r.addVector(0, FOOT_LENGTH * size - FOOT_WIDTH * size, dir);
-        r.addVector(UPPER_ANKLE * size, 0, dir);
-        r.addVector(0, FOOT_WIDTH * size, dir);
-        g.fillPolygon(r.getPolygon());
-        g.drawPolygon(r.getPolygon());
-        r = new KarelRegion();
-        r.setOrigin(x, y, SCREEN_OFFSET_X * size + SCREEN_WIDTH * size - SLOT_WIDTH * size,
-                    BODY_OFFSET_Y * size, dir);
-        r.addVector(0, -(LOWER_ANKLE * size + FOOT_WIDTH * size), dir);
-        r.addVector(FOOT_LENGTH * size, 0, dir);
-        r.addVector(0, FOOT_WIDTH * size, dir);
-        r.addVector(-(FOOT_LENGTH * size - FOOT_WIDTH * size), 0, dir);
-        r.addVector(0, LOWER_ANKLE * size, dir);
-        r.addVector(-FOOT_WIDTH * size, 0, dir);
-        g.fillPolygon(r.getPolygon());
-        g.drawPolygon(r.getPolygon());
-    }
-
-    public void drawBeeperForStyle(Graphics g, int x, int y, int size, int n, int border) {
-        String label = "";
-        if (size > MIN_LABEL && (displayOneFlag || n != 1)) {
-            label = beeperLabel(n);
-        }
-        drawBeeper(g, x, y, size, label, border, this);
-    }
-
-    public static void drawBeeper(Graphics g, int x, int y, int size, int n, int border, Component comp) {
-        if (g == null) return;
-        int beeperSize = (int) Math.round(size * BEEPER_FRACTION);
-        if (beeperSize % 2 == 0) beeperSize--;
-        int half = (beeperSize + 1) / 2;
-        KarelRegion r = new KarelRegion();
-        r.setOrigin(x, y, 0, -half, EAST);
-        r.addVector(half, half, EAST);
-        r.addVector(-half, half, EAST);
-        r.addVector(-half, -half, EAST);
-        r.addVector(half, -half, EAST);
-        g.setColor(BEEPER_COLOR);
-        g.fillPolygon(r.getPolygon());
-        g.drawPolygon(r.getPolygon());
-        g.setColor(Color.BLACK);
-        for (int i = 0; i < border; i++) {
-            int delta = half + i;
-            g.drawLine(x - delta, y, x, y + delta);
-            g.drawLine(x, y + delta, x + delta, y);
-            g.drawLine(x + delta, y, x, y - delta);
-            g.drawLine(x, y - delta, x - delta, y);
-        }
+    void recordAction(Karel karel, int event, Color color) {
+        if (recorder != null) recorder.record(karel, event, color);
+    }
 
-        if (size > MIN_LABEL && n != 1) {
-            labelBeeper(g, x, y, size, beeperLabel(n), comp);
+/*
+ * Method: recordSense
+ * Usage: return world.recordSense(karel, predicate, result);
+ * ----------------------------------------------------------
+ * Records the result of a sensing call made by the specified Karel, if a
+ * recorder is attached, and returns that result.
+ */
+    boolean recordSense(Karel karel, int predicate, boolean result) {
+        if (recorder != null) {
+            recorder.record(karel, KarelTraceRecorder.SENSE_BASE + 2 * predicate + (result ? 1 : 0));
         }
+        return result;
     }
 
-    public static void drawBeeper(Graphics g, int x, int y, int size, String label, int border, Component comp) {
-        if (g == null) return;
-        int beeperSize = (int) Math.round(size * BEEPER_FRACTION);
-        if (beeperSize % 2 == 0) beeperSize--;
-        int half = (beeperSize + 1) / 2;
-        KarelRegion r = new KarelRegion();
-        r.setOrigin(x, y, 0, -half, EAST);
-        r.addVector(half, half, EAST);
-        r.addVector(-half, half, EAST);
-        r.addVector(-half, -half, EAST);
-        r.addVector(half, -half, EAST);
-        g.setColor(BEEPER_COLOR);
-        g.fillPolygon(r.getPolygon());
-        g.drawPolygon(r.getPolygon());
-        g.setColor(Color.BLACK);
-        for (int i = 0; i < border; i++) {
-            int delta = half + i;
-            g.drawLine(x - delta, y, x, y + delta);
-            g.drawLine(x, y + delta, x + delta, y);
-            g.drawLine(x + delta, y, x, y - delta);
-            g.drawLine(x, y - delta, x - delta, y);
+    boolean recordSense(Karel karel, int predicate, Color color, boolean result) {
+        if (recorder != null) {
+            recorder.record(karel, KarelTraceRecorder.SENSE_BASE + 2 * predicate + (result ? 1 : 0), color);
         }
+        return result;
+    }
 
-        labelBeeper(g, x, y, size, label, comp);
+    protected void setMonitor(KarelWorldMonitor monitor) {
+        this.monitor = monitor;
     }
 
-    public static void labelBeeper(Graphics g, int x, int y, int size, String label, Component comp) {
-        if (label.equals("%")) {
-            if (infinityImage == null) {
-                infinityImage = MediaTools.createImage(INFINITY);
-            }
-            g.drawImage(infinityImage, x - 4, y - 2, comp);
-        } else {
-            int psz = 7;
-            switch (label.length()) {
-              case 1: case 2: psz = 10; break;
-              default: psz = 7; break;
-            }
-            Font font = new Font(BEEPER_FONT_FAMILY, Font.PLAIN, psz);
-            g.setFont(font);
-            FontMetrics fm = g.getFontMetrics();
-            g.drawString(label, x - fm.stringWidth(label) / 2, y + fm.getAscent() / 2);
-        }
+    protected KarelWorldMonitor getMonitor() {
+        return monitor;
     }
 
-    public static String beeperLabel(int n) {
-        switch (n) {
-          case INFINITE: return "%";
-          case PLUS1: return "+1";
-          case MINUS1: return "-1";
-          case BLANKB: return "";
-          default: return "" + n;
-        }
+    protected void setDisplay(KarelWorldDisplay display) {
+        this.display = display;
+        snapshot = null;
+        if (display != null && changedCorners == null) changedCorners = new long[CHANGE_LOG_SIZE];
+        repaint();
     }
 
-    public void updateWalls(Graphics g, Point pt) {
-        if (g == null) return;
-        if (outOfBounds(pt)) return;
-        int x = leftMargin + (pt.x - 1) * sqSize;
-        int y = getSize().height - bottomMargin - 1 - pt.y * sqSize;
-        g.setColor(Color.BLACK);
-        for (int dir = NORTH; dir <= WEST; dir++) {
-            if (checkWall(pt, dir)) drawWall(g, x, y, dir);
-            if (sqSize < DOUBLE_WALL_THRESHOLD) fixCornerPoint(g, pt, dir);
-        }
+    protected KarelWorldDisplay getDisplay() {
+        return display;
     }
 
-    private void drawWall(Graphics g, int x, int y, int dir) {
-        if (g == null) return;
-        int x0, y0, x1, y1;
-        switch (dir) {
-          case NORTH:
-            x0 = x;
-            y0 = y;
-            x1 = x0 + sqSize;
-            y1 = y0;
-            break;
-          case EAST:
-            x0 = x + sqSize;
-            y0 = y;
-            x1 = x0;
-            y1 = y0 + sqSize;
-            break;
-          case SOUTH:
-            x0 = x;
-            y0 = y + sqSize;
-            x1 = x0 + sqSize;
-            y1 = y0;
-            break;
-          case WEST:
-            x0 = x;
-            y0 = y;
-            x1 = x0;
-            y1 = y0 + sqSize;
-            break;
-          default:
-            x0 = y0 = x1 = y1 = 0;
-            break;
-        }
-        if (sqSize < DOUBLE_WALL_THRESHOLD) {
-            g.drawLine(x0 - 1, y0 - 1, x1 - 1, y1 - 1);
+    KarelGrid getGrid() {
+        return grid;
+    }
+
+/* State hashing */
+
+/*
+ * Method: getStateHash
+ * Usage: long hash = world.getStateHash();
+ * ----------------------------------------
+ * Returns a 64-bit hash of the mutable state of the world: the position,
+ * direction, and beeper bag of every Karel, and the beeper count and color
+ * of every corner.  The hash is the exclusive OR of an independent random
+ * value for each of these features, Zobrist-style, and is updated
+ * incrementally whenever one of them changes.  Each Karel is identified
+ * by its position in the list of Karels, so two worlds in the same state
+ * have the same hash, even in different runs of the JVM.  Walls are not
+ * included, because Karel programs cannot change them.
+ */
+    public long getStateHash() {
+        return stateHash;
+    }
+
+/*
+ * Method: setCycleDetection
+ * Usage: world.setCycleDetection(window, repeats);
+ * ------------------------------------------------
+ * Enables the cycle detector, which aborts the run with a
+ * KarelAbortException if the same world state is seen repeats times,
+ * each time within window steps of the last.  A state counts as seen
+ * again only when it returns after having changed, so a run of sensing
+ * calls, which leave the state unchanged, is not mistaken for a cycle;
+ * four turns do restore the state, so this catches programs that spin
+ * without making progress.  The test is a heuristic, since a Karel
+ * program can also keep state in its own variables.  Calling this method
+ * with a window of 0 disables the detector.
+ */
+    public void setCycleDetection(int window, int repeats) {
+        if (window <= 0 || repeats <= 0) {
+            cycleHashes = null;
+            cycleSteps = null;
+            cycleCounts = null;
         } else {
-            if (x0 == x1) {
-                g.drawLine(x0 - 1, y0 - 1, x1 - 1, y1);
-                g.drawLine(x0, y0 - 1, x1, y1);
-            } else {
-                g.drawLine(x0 - 1, y0 - 1, x1, y1 - 1);
-                g.drawLine(x0 - 1, y0, x1, y1);
+            cycleWindow = window;
+            cycleRepeats = repeats;
+            cycleHashes = new long[CYCLE_TABLE_SIZE];
+            cycleSteps = new long[CYCLE_TABLE_SIZE];
+            cycleCounts = new int[CYCLE_TABLE_SIZE];
+            lastCycleHashValid = false;
+        }
+    }
+
+    void karelChanged(Karel karel, int dir0, int nBeepers0) {
+        long key = karelKey(karel);
+        int dir = karel.getDirection();
+        int nBeepers = karel.getBeepersInBag();
+        if (dir != dir0) {
+            stateHash ^= karelHash(key, DIRECTION_KEY, dir0) ^ karelHash(key, DIRECTION_KEY, dir);
+        }
+        if (nBeepers != nBeepers0) {
+            stateHash ^= karelHash(key, BAG_KEY, nBeepers0) ^ karelHash(key, BAG_KEY, nBeepers);
+        }
+        if (journal != null) journal.karelChanged(karel);
+    }
+
+    private void rehash() {
+        stateHash = 0;
+        for (int tx = 0; tx < grid.getTileColumns(); tx++) {
+            int[] tileRows = grid.getTileRowsInColumn(tx);
+            for (int i = 0; i < tileRows.length; i++) {
+                int ty = tileRows[i];
+                for (int x = tileMin(tx, 1); x <= tileMax(tx, cols); x++) {
+                    for (int y = tileMin(ty, 1); y <= tileMax(ty, rows); y++) {
+                        long k = positionValue(x, y);
+                        stateHash ^= cornerHash(k, BEEPER_KEY, grid.getBeepers(x, y))
+                                   ^ cornerHash(k, COLOR_KEY, grid.getColorIndex(x, y));
+                    }
+                }
             }
         }
+        for (int i = 0; i < karels.size(); i++) {
+            stateHash ^= karelHash(karels.get(i), i);
+        }
     }
 
-    public void drawCornerMarker(Graphics g, int x, int y) {
-        if (g == null) return;
-        g.setColor(Color.BLACK);
-        if (sqSize < CROSS_THRESHOLD) {
-            g.drawLine(x, y, x, y);
+    private void checkCycle() {
+        if (lastCycleHashValid && stateHash == lastCycleHash) return;
+        lastCycleHash = stateHash;
+        lastCycleHashValid = true;
+        int slot = (int) stateHash & (CYCLE_TABLE_SIZE - 1);
+        if (cycleHashes[slot] == stateHash && cycleCounts[slot] > 0
+                && stepCount - cycleSteps[slot] <= cycleWindow) {
+            if (++cycleCounts[slot] >= cycleRepeats) {
+                throw new KarelAbortException(KarelAbortException.CYCLE,
+                                              "Karel is repeating the same state");
+            }
         } else {
-            g.drawLine(x - 1, y, x + 1, y);
-            g.drawLine(x, y - 1, x, y + 1);
+            cycleHashes[slot] = stateHash;
+            cycleCounts[slot] = 1;
         }
+        cycleSteps[slot] = stepCount;
     }
 
-    private void fixCornerPoint(Graphics g, Point pt, int dir) {
-        int left = leftFrom(dir);
-        Point pUp = adjacentPoint(pt, dir);
-        Point pLeft = adjacentPoint(pt, left);
-        if (!outOfBounds(pUp) && checkWall(pUp, left)) {
-            int x = leftMargin + (pUp.x - 1) * sqSize;
-            int y = getSize().height - bottomMargin - 1 - pUp.y * sqSize;
-            drawWall(g, x, y, left);
-        } else if (!outOfBounds(pLeft) && checkWall(pLeft, dir)) {
-            int x = leftMargin + (pLeft.x - 1) * sqSize;
-            int y = getSize().height - bottomMargin - 1 - pLeft.y * sqSize;
-            drawWall(g, x, y, dir);
-        }
+/*
+ * Method: clearCycleTables
+ * Usage: clearCycleTables();
+ * --------------------------
+ * Forgets the states seen by the cycle detector.  This is called whenever
+ * the step count is reset, since the steps recorded in the tables would
+ * otherwise lie in the future of the new run.
+ */
+    private void clearCycleTables() {
+        if (cycleHashes == null) return;
+        Arrays.fill(cycleHashes, 0);
+        Arrays.fill(cycleSteps, 0);
+        Arrays.fill(cycleCounts, 0);
+        lastCycleHashValid = false;
+    }
+
+    private static long cornerHash(long position, int key, int value) {
+        if (value == 0) return 0;
+        return mix((position * 0xC2B2AE3D27D4EB4FL) ^ ((long) key << 32) ^ (value & 0xFFFFFFFFL));
+    }
+
+/*
+ * Method: karelKey
+ * Usage: long key = karelKey(karel);
+ * ----------------------------------
+ * Returns the key that identifies a Karel in the state hash, which is its
+ * index in the list of Karels.  The first Karel is checked directly, since
+ * most worlds have only one.
+ */
+    private long karelKey(Karel karel) {
+        return (karels.get(0) == karel) ? 0 : karels.indexOf(karel);
     }
 
-    private Rectangle getCornerRect(Point pt) {
-        int x = leftMargin + (pt.x - 1) * sqSize;
-        int y = getSize().height - bottomMargin - 1 - pt.y * sqSize;
-        return new Rectangle(x - 1, y - 1, sqSize + 2, sqSize + 2);
+    private static long karelHash(Karel karel, long key) {
+        return karelHash(key, POSITION_KEY, positionValue(karel.getAvenue(), karel.getStreet()))
+             ^ karelHash(key, DIRECTION_KEY, karel.getDirection())
+             ^ karelHash(key, BAG_KEY, karel.getBeepersInBag());
+    }
+
+    private static long karelHash(long key, int feature, long value) {
+        return mix((key * 0x9E3779B97F4A7C15L + feature * 0xC2B2AE3D27D4EB4FL) ^ value);
+    }
+
+    private static long positionValue(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+/*
+ * Methods: tileMin, tileMax
+ * -------------------------
+ * These methods return the range of world coordinates covered by the
+ * tile with the specified index along one axis, clipped to the range
+ * from min to max.
+ */
+    private static int tileMin(int t, int min) {
+        return Math.max(min, t << KarelGrid.TILE_SHIFT);
+    }
+
+    private static int tileMax(int t, int max) {
+        return Math.min(max, (t << KarelGrid.TILE_SHIFT) + KarelGrid.TILE_SIZE - 1);
+    }
+
+/* Occupancy index */
+
+    void karelMoved(Karel karel, int x0, int y0) {
+        unindexKarel(karel, x0, y0);
+        indexKarel(karel);
+        long key = karelKey(karel);
+        stateHash ^= karelHash(key, POSITION_KEY, positionValue(x0, y0))
+                   ^ karelHash(key, POSITION_KEY, positionValue(karel.getAvenue(), karel.getStreet()));
+        if (journal != null) journal.karelChanged(karel);
+    }
+
+/*
+ * Method: setKarelState
+ * Usage: world.setKarelState(karel, x, y, dir, nBeepers);
+ * -------------------------------------------------------
+ * Sets the position, direction, and beeper bag of a Karel in one
+ * operation, without the occupancy check in setLocation.  This is used to
+ * put a Karel back into a state that it was in earlier.
+ */
+    void setKarelState(Karel karel, int x, int y, int dir, int nBeepers) {
+        int x0 = karel.getAvenue();
+        int y0 = karel.getStreet();
+        unindexKarel(karel, x0, y0);
+        long key = karelKey(karel);
+        stateHash ^= karelHash(karel, key);
+        karel.restoreState(x, y, dir, nBeepers);
+        stateHash ^= karelHash(karel, key);
+        indexKarel(karel);
+        if (journal != null) journal.karelChanged(karel);
+        updateCorner(x0, y0);
+        updateCorner(x, y);
+    }
+
+    private void indexKarel(Karel karel) {
+        int x = karel.getAvenue();
+        int y = karel.getStreet();
+        if (occupants == null || outOfBounds(x, y)) return;
+        int t = grid.tileIndex(x, y);
+        if (occupants[t] == null) occupants[t] = new Karel[KarelGrid.TILE_AREA];
+        int k = KarelGrid.tileOffset(x, y);
+        if (occupants[t][k] == null) occupants[t][k] = karel;
+    }
+
+    private void unindexKarel(Karel karel, int x, int y) {
+        if (occupants == null || outOfBounds(x, y)) return;
+        Karel[] tile = occupants[grid.tileIndex(x, y)];
+        int k = KarelGrid.tileOffset(x, y);
+        if (tile != null && tile[k] == karel) tile[k] = null;
+    }
+
+    static String encodeColor(Color color) {
+        if (color.equals(Color.BLACK)) return "BLACK";
+        if (color.equals(Color.BLUE)) return "BLUE";
+        if (color.equals(Color.CYAN)) return "CYAN";
+        if (color.equals(Color.DARK_GRAY)) return "DARK_GRAY";
+        if (color.equals(Color.GRAY)) return "GRAY";
+        if (color.equals(Color.GREEN)) return "GREEN";
+        if (color.equals(Color.LIGHT_GRAY)) return "LIGHT_GRAY";
+        if (color.equals(Color.MAGENTA)) return "MAGENTA";
+        if (color.equals(Color.ORANGE)) return "ORANGE";
+        if (color.equals(Color.PINK)) return "PINK";
+        if (color.equals(Color.RED)) return "RED";
+        if (color.equals(Color.WHITE)) return "WHITE";
+        if (color.equals(Color.YELLOW)) return "YELLOW";
+        return "0x" + Integer.toString(color.getRGB() & 0xFFFFFF).toUpperCase();
+    }
+
+    static Color decodeColor(String name) {
+        if (name == null) return null;
+        if (name.equalsIgnoreCase("black")) return Color.BLACK;
+        if (name.equalsIgnoreCase("blue")) return Color.BLUE;
+        if (name.equalsIgnoreCase("cyan")) return Color.CYAN;
+        if (name.equalsIgnoreCase("darkGray") || name.equalsIgnoreCase("DARK_GRAY")) return Color.DARK_GRAY;
+        if (name.equalsIgnoreCase("gray")) return Color.GRAY;
+        if (name.equalsIgnoreCase("green")) return Color.GREEN;
+        if (name.equalsIgnoreCase("lightGray") || name.equalsIgnoreCase("LIGHT_GRAY")) return Color.LIGHT_GRAY;
+        if (name.equalsIgnoreCase("magenta")) return Color.MAGENTA;
+        if (name.equalsIgnoreCase("orange")) return Color.ORANGE;
+        if (name.equalsIgnoreCase("pink")) return Color.PINK;
+        if (name.equalsIgnoreCase("red")) return Color.RED;
+        if (name.equalsIgnoreCase("white")) return Color.WHITE;
+        if (name.equalsIgnoreCase("yellow")) return Color.YELLOW;
+        return Color.decode(name);
     }
 
 /* File saving */
 
     public void save() {
         if (pathname == null) return;
-        Point pt = new Point(0, 0);
         try {
             PrintWriter wr = new PrintWriter(new FileWriter(pathname));
-            wr.println("Dimension: (" + cols + ", " + rows + ")");
-            for (pt.x = 1; pt.x <= cols; pt.x++) {
-                for (pt.y = 1; pt.y <= rows; pt.y++) {
-                    if (pt.x > 1 && checkWall(pt, WEST)) {
-                        wr.println("Wall: (" + pt.x + ", " + pt.y + ") west");
-                    }
-                    if (pt.y > 1 && checkWall(pt, SOUTH)) {
-                        wr.println("Wall: (" + pt.x + ", " + pt.y + ") south");
+            save(wr);
+            wr.close();
+        } catch (IOException ex) {
+            throw new ErrorException("" + ex);
+        }
+        Platform.setFileTypeAndCreator(pathname, "TEXT", "CWIE");
+    }
+
+    public void save(PrintWriter wr) {
+        Point pt = new Point(0, 0);
+        wr.println("Dimension: (" + cols + ", " + rows + ")");
+        for (int pass = 0; pass < 2; pass++) {
+            for (int tx = 0; tx < grid.getTileColumns(); tx++) {
+                int[] tileRows = grid.getTileRowsInColumn(tx);
+                for (pt.x = tileMin(tx, 1); pt.x <= tileMax(tx, cols); pt.x++) {
+                    for (int i = 0; i < tileRows.length; i++) {
+                        int ty = tileRows[i];
+                        for (pt.y = tileMin(ty, 1); pt.y <= tileMax(ty, rows); pt.y++) {
+                            if (pass == 0) {
+                                saveWalls(wr, pt);
+                            } else {
+                                saveContents(wr, pt);
+                            }
+                        }
                     }
                 }
             }
-            for (pt.x = 1; pt.x <= cols; pt.x++) {
-                for (pt.y = 1; pt.y <= rows; pt.y++) {
-                    Color color = getCornerColor(pt);
-                    if (color != null) {
-                        wr.println("Color: (" + pt.x + ", " + pt.y + ") " + encodeColor(color));
-                    }
-                    int nBeepers = getBeepersOnCorner(pt);
-                    if (nBeepers != 0) {
-                        String str = (nBeepers == INFINITE) ? "INFINITE" : "" + nBeepers;
-                        wr.println("Beeper: (" + pt.x + ", " + pt.y + ") " + str);
-                    }
-                }
+        }
+        Iterator<Karel> iterator = karels.iterator();
+        while (iterator.hasNext()) {
+            Karel karel = iterator.next();
+            String dirName = "Error";
+            switch (karel.getDirection()) {
+              case NORTH: dirName = "north"; break;
+              case EAST:  dirName = "east"; break;
+              case SOUTH: dirName = "south"; break;
+              case WEST:  dirName = "west"; break;
             }
-            Iterator<Karel> iterator = karels.iterator();
-            while (iterator.hasNext()) {
-                Karel karel = iterator.next();
-                String dirName = "Error";
-                switch (karel.getDirection()) {
-                  case NORTH: dirName = "north"; break;
-                  case EAST:  dirName = "east"; break;
-                  case SOUTH: dirName = "south"; break;
-                  case WEST:  dirName = "west"; break;
+            Point loc = karel.getLocation();
+            wr.print("Karel: (" + loc.x + ", " + loc.y + ") " + dirName);
+            int nBeepers = karel.getBeepersInBag();
+            if (nBeepers != 0) {
+                String str = (nBeepers == INFINITE) ? "INFINITE" : "" + nBeepers;
+                if (getKarelCount() == 1) {
+                    wr.println();
+                    wr.println("BeeperBag: " + str);
+                } else {
+                    wr.println(" " + str);
                 }
-                Point loc = karel.getLocation();
-                wr.print("Karel: (" + loc.x + ", " + loc.y + ") " + dirName);
-                int nBeepers = karel.getBeepersInBag();
-                if (nBeepers != 0) {
-                    String str = (nBeepers == INFINITE) ? "INFINITE" : "" + nBeepers;
-                    if (getKarelCount() == 1) {
-                        wr.println();
-                        wr.println("BeeperBag: " + str);
-                    } else {
-                        wr.println(" " + str);
-                    }
-                }
-            }
-            if (monitor != null) {
-                wr.println("Speed: " + speedFormat.format(monitor.getSpeed()));
+            } else {
+                wr.println();
             }
-            wr.close();
-        } catch (IOException ex) {
-            throw new ErrorException("" + ex);
         }
-        Platform.setFileTypeAndCreator(pathname, "TEXT", "CWIE");
+        if (monitor != null) {
+            NumberFormat speedFormat = NumberFormat.getInstance();
+            speedFormat.setMinimumIntegerDigits(1);
+            speedFormat.setMaximumIntegerDigits(1);
+            speedFormat.setMinimumFractionDigits(2);
+            speedFormat.setMaximumFractionDigits(2);
+            wr.println("Speed: " + speedFormat.format(monitor.getSpeed()));
+        }
+    }
+
+    private void saveWalls(PrintWriter wr, Point pt) {
+        if (pt.x > 1 && checkWall(pt, WEST)) {
+            wr.println("Wall: (" + pt.x + ", " + pt.y + ") west");
+        }
+        if (pt.y > 1 && checkWall(pt, SOUTH)) {
+            wr.println("Wall: (" + pt.x + ", " + pt.y + ") south");
+        }
+    }
+
+    private void saveContents(PrintWriter wr, Point pt) {
+        Color color = getCornerColor(pt);
+        if (color != null) {
+            wr.println("Color: (" + pt.x + ", " + pt.y + ") " + encodeColor(color));
+        }
+        int nBeepers = getBeepersOnCorner(pt);
+        if (nBeepers != 0) {
+            String str = (nBeepers == INFINITE) ? "INFINITE" : "" + nBeepers;
+            wr.println("Beeper: (" + pt.x + ", " + pt.y + ") " + str);
+        }
     }
 
 /* File loading */
 
     public void load(String lines[]) {
-        String program = "";
+        StringBuilder sb = new StringBuilder();
         for (int i = 0; i < lines.length; i++) {
-            program += lines[i] + '\n';
+            sb.append(lines[i]).append('\n');
         }
-        load(new StringReader(program));
+        loadText(sb);
     }
 
     public void load(File file) {
@@ -1105,475 +1099,158 @@ class KarelWorld extends Canvas {
 
     public void load(Reader rd) {
         try {
-            setRepaintFlag(false);
-            lastBeeperCount = INFINITE;
-            tokenizer = new StreamTokenizer(rd);
-            tokenizer.eolIsSignificant(true);
-            tokenizer.lowerCaseMode(true);
-            tokenizer.resetSyntax();
-            tokenizer.wordChars('A', 'Z');
-            tokenizer.wordChars('a', 'z');
-            tokenizer.wordChars('0', '9');
-            tokenizer.wordChars('.', '.');
-            tokenizer.wordChars('_', '_');
-            tokenizer.whitespaceChars(' ', ' ');
-            tokenizer.whitespaceChars('\t', '\t');
-            tokenizer.whitespaceChars('\r', '\r');
-            while (readMapLine()) {
-                /* Empty */
+            char[] buffer = new char[LOAD_BUFFER_SIZE];
+            int length = 0;
+            while (true) {
+                if (length == buffer.length) buffer = Arrays.copyOf(buffer, 2 * length);
+                int nChars = rd.read(buffer, length, buffer.length - length);
+                if (nChars < 0) break;
+                length += nChars;
             }
             rd.close();
-            setRepaintFlag(true);
-            repaint();
+            loadText(CharBuffer.wrap(buffer, 0, length));
         } catch (IOException ex) {
-            setRepaintFlag(true);
             throw new ErrorException("I/O error reading map file");
         }
     }
 
-    private boolean readMapLine() {
-        int token = nextToken();
-        switch (token) {
-          case StreamTokenizer.TT_EOF: return false;
-          case StreamTokenizer.TT_EOL: return true;
-          case StreamTokenizer.TT_WORD:
-              String cmd = tokenizer.sval;
-              if (nextToken() != ':') {
-                  throw new ErrorException("Missing colon after " + cmd);
-              }
-            if (cmd.equals("dimension")) {
-                dimensionCommand();
-            } else if (cmd.equals("karel") || cmd.equals("turtle")) {
-                karelCommand();
-            } else if (cmd.equals("wall")) {
-                wallCommand();
-            } else if (cmd.equals("mark") || cmd.equals("color")) {
-                setColorCommand();
-            } else if (cmd.equals("speed")) {
-                speedCommand();
-            } else if (cmd.equals("beeper")) {
-                beeperCommand();
-            } else if (cmd.equals("beeperbag")) {
-                beeperBagCommand();
-            } else {
-                throw new ErrorException("Illegal command: " + cmd);
-            }
-            break;
-          default:
-              throw new ErrorException("Illegal character '" + (char) token + "'");
-        }
-        return (true);
-    }
-
-    private void dimensionCommand() {
-        verifyToken('(');
-        int cols = scanInt();
-        verifyToken(',');
-        int rows = scanInt();
-        verifyToken(')');
-        verifyToken(StreamTokenizer.TT_EOL);
-        init(cols, rows);
-    }
-
-    private void karelCommand() {
-        Point pt = new Point(0, 0);
-        int dir = EAST;
-        int nBeepers = lastBeeperCount;
-        verifyToken('(');
-        pt.x = scanInt();
-        verifyToken(',');
-        pt.y = scanInt();
-        verifyToken(')');
-        if (nextToken() != StreamTokenizer.TT_WORD) {
-            throw new ErrorException("Illegal direction");
-        }
-        if ("north".startsWith(tokenizer.sval)) {
-            dir = NORTH;
-        } else if ("east".startsWith(tokenizer.sval)) {
-            dir = EAST;
-        } else if ("south".startsWith(tokenizer.sval)) {
-            dir = SOUTH;
-        } else if ("west".startsWith(tokenizer.sval)) {
-            dir = WEST;
-        } else {
-            throw new ErrorException("Illegal direction " + tokenizer.sval);
-        }
-        int token = nextToken();
-        if (token == StreamTokenizer.TT_WORD) {
-            if ("infinite".startsWith(tokenizer.sval) || "infinity".startsWith(tokenizer.sval)) {
-                nBeepers = INFINITE;
-            } else {
-                try {
-                    nBeepers = Integer.parseInt(tokenizer.sval);
-                } catch (NumberFormatException ex) {
-                    throw new ErrorException("Illegal beeper bag value");
-                }
-            }
-            token = nextToken();
-        }
-        if (token != StreamTokenizer.TT_EOL) {
-            throw new ErrorException("Unexpected tokens at end of line");
-        }
-        lastKarel = getKarel();
-        if (lastKarel != null) {
-            lastKarel.setLocation(pt.x, pt.y);
-            lastKarel.setDirection(dir);
-            lastKarel.setBeepersInBag(nBeepers);
-        }
-    }
-
-    private void wallCommand() {
-        Point pt = new Point(0, 0);
-        int dir = EAST;
-        verifyToken('(');
-        pt.x = scanInt();
-        verifyToken(',');
-        pt.y = scanInt();
-        verifyToken(')');
-        if (nextToken() != StreamTokenizer.TT_WORD) {
-            throw new ErrorException("Illegal direction");
-        }
-        if ("north".startsWith(tokenizer.sval)) {
-            dir = NORTH;
-        } else if ("east".startsWith(tokenizer.sval)) {
-            dir = EAST;
-        } else if ("south".startsWith(tokenizer.sval)) {
-            dir = SOUTH;
-        } else if ("west".startsWith(tokenizer.sval)) {
-            dir = WEST;
-        } else {
-            throw new ErrorException("Illegal direction " + tokenizer.sval);
-        }
-        verifyToken(StreamTokenizer.TT_EOL);
-        setWall(pt, dir);
-    }
-
-    private void setColorCommand() {
-        Point pt = new Point(0, 0);
-        String colorName = null;
-        verifyToken('(');
-        pt.x = scanInt();
-        verifyToken(',');
-        pt.y = scanInt();
-        verifyToken(')');
-        int tt = nextToken();
-        if (tt != StreamTokenizer.TT_EOL) {
-            if (tt != StreamTokenizer.TT_WORD) throw new ErrorException("Missing color name");
-            colorName = tokenizer.sval.toLowerCase();
-            verifyToken(StreamTokenizer.TT_EOL);
-        }
-        setCornerColor(pt, decodeColor(colorName));
-    }
-
-    private void speedCommand() {
-        if (nextToken() != StreamTokenizer.TT_WORD) {
-            throw new ErrorException("I expected a number");
-        }
-        double speed = parseDouble(tokenizer.sval);
-        verifyToken(StreamTokenizer.TT_EOL);
-        if (monitor != null) monitor.setSpeed(speed);
-    }
-
-    protected void beeperBagCommand() {
-        if (nextToken() != StreamTokenizer.TT_WORD) {
-            throw new ErrorException("Illegal beeper count");
-        }
-        int nBeepers = 0;
-        if ("infinite".startsWith(tokenizer.sval) || "infinity".startsWith(tokenizer.sval)) {
-            nBeepers = INFINITE;
-        } else {
-            tokenizer.pushBack();
-            nBeepers = scanInt();
-        }
-        verifyToken(StreamTokenizer.TT_EOL);
-        if (lastKarel == null) {
-            lastBeeperCount = nBeepers;
-        } else {
-            lastKarel.setBeepersInBag(nBeepers);
-        }
-    }
-
-    protected void beeperCommand() {
-        Point pt = new Point(0, 0);
-        verifyToken('(');
-        pt.x = scanInt();
-        verifyToken(',');
-        pt.y = scanInt();
-        verifyToken(')');
-        int nBeepers = 1;
-        int token = nextToken();
-        if (token != StreamTokenizer.TT_EOL) {
-            if (token != StreamTokenizer.TT_WORD) {
-                throw new ErrorException("Illegal beeper count");
-            }
-            if ("infinite".startsWith(tokenizer.sval) || "infinity".startsWith(tokenizer.sval)) {
-                nBeepers = INFINITE;
-            } else {
-                tokenizer.pushBack();
-                nBeepers = scanInt();
-            }
-            verifyToken(StreamTokenizer.TT_EOL);
-        }
-        setBeepersOnCorner(pt, nBeepers);
-    }
-
-    protected void ignoreCommand() {
-        while (nextToken() != StreamTokenizer.TT_EOL) {
-            /* Empty */
+/*
+ * Method: loadText
+ * Usage: world.loadText(text);
+ * ----------------------------
+ * Loads the world from the contents of a world file, which may be held
+ * in any CharSequence.
+ */
+    public void loadText(CharSequence text) {
+        setRepaintFlag(false);
+        try {
+            new KarelWorldParser(this).parse(text);
+        } finally {
+            setRepaintFlag(true);
         }
+        saveInitialState();
+        repaint();
     }
 
-    private void verifyToken(int token) {
-        if (nextToken() != token) {
-            if (token == StreamTokenizer.TT_EOL) {
-                throw new ErrorException("Unexpected tokens at end of line");
+/*
+ * Method: load
+ * Usage: world.load(template);
+ * ----------------------------
+ * Loads the world from a parsed template.  The contents of the template
+ * are copied into a new grid, so that the world can be changed without
+ * affecting the template or other worlds created from it.
+ */
+    public void load(KarelWorldTemplate template) {
+        setRepaintFlag(false);
+        try {
+            installGrid(new KarelGrid(template.getGrid()));
+            pathname = template.getPathname();
+            if (template.hasKarel()) {
+                Karel karel = getKarel();
+                karel.setLocation(template.getKarelAvenue(), template.getKarelStreet());
+                karel.setDirection(template.getKarelDirection());
+                karel.setBeepersInBag(template.getKarelBeepers());
             }
-            throw new ErrorException("I expected a '" + (char) token + "'");
+            if (monitor != null && template.hasSpeed()) monitor.setSpeed(template.getSpeed());
+        } finally {
+            setRepaintFlag(true);
         }
+        saveInitialState();
+        repaint();
     }
 
-    private int scanInt() {
-        if (nextToken() != StreamTokenizer.TT_WORD) {
-            throw new ErrorException("I expected an integer");
-        }
+/*
+ * Method: loadBinary
+ * Usage: world.loadBinary(file);
+ * ------------------------------
+ * Loads the world from a file in the format defined by KarelBinaryFormat.
+ * The file is mapped into memory rather than read through a stream.
+ */
+    public void loadBinary(File file) {
+        setRepaintFlag(false);
         try {
-            return Integer.parseInt(tokenizer.sval);
-        } catch (NumberFormatException ex) {
-            throw new ErrorException("Illegal integer");
+            pathname = file.getPath();
+            KarelBinaryFormat.read(file, this);
+        } finally {
+            setRepaintFlag(true);
         }
+        saveInitialState();
+        repaint();
     }
 
-    private int nextToken() {
-        int token = 0;
+/*
+ * Method: saveBinary
+ * Usage: world.saveBinary(file);
+ * ------------------------------
+ * Saves the world to a file in the format defined by KarelBinaryFormat.
+ */
+    public void saveBinary(File file) {
         try {
-            token = tokenizer.nextToken();
+            OutputStream os = new FileOutputStream(file);
+            KarelBinaryFormat.write(this, os);
+            os.close();
         } catch (IOException ex) {
-            throw new ErrorException("Exception: " + ex);
-        }
-        if (TOKEN_TRACE) {
-            switch (token) {
-              case StreamTokenizer.TT_EOF: System.out.println("<EOF>"); break;
-              case StreamTokenizer.TT_EOL: System.out.println(); break;
-              case StreamTokenizer.TT_WORD:
-                  System.out.print(tokenizer.sval + " ");
-                  break;
-              default:
-                  System.out.print((char) token + " ");
-                  break;
-            }
-        }
-        return ((token == '\n') ? StreamTokenizer.TT_EOL : token);
-    }
-
-/* Private constants */
-
-    private static final String INFINITY[] = {
-        "47494638396109000600F70000FFFFFF980098339999989800111111222222000054CBFFCB003298",
-        "0033660033CC0033FE00323266330066660000659800989800CC9900FE99329800659800CC0099FE",
-        "0098659898999999CC9900FE98009800329800659900CC9800FE3399CB3399FF9999339898659832",
-        "0098650099339998659833CB9833FF9999CC0099FE00336699656698CC9898FF9999323200336600",
-        "32003233006632009833339965009866339900663300983200666600986500CC3300FE3200CC6600",
-        "FE65CCCC98CCFF99FFCC99FFFF993300CC3200FE6600CC6500FECC0033CC0066FE0032FE00653399",
-        "33339966669933669865CC00CCCB00FEFE00CBFE00FE6699CC6598FF9898CC9999FFCB9833CC9966",
-        "FF9933FF9865333333326532323265326565660033653232660066653265CC3300CC6600FE3200FE",
-        "65000066CC0099CC0066FE0098FE00CCCC00FECB00CCFE00FEFE33CC0033FE0066CC0066FE00CB33",
-        "98CC6699FF3399FF659866CC9965FF9898CC9899FF99CCCC00CCFE00FECB00FEFE00993333996633",
-        "9933669865659833CB9966CC9933FF9865FF33CBCB33FFCC33CCFF33FFFF99CB3399FF3399CC6698",
-        "FF65CC98CCCCCCCCCC99FFCBCBFFFF99CCFFCBCBFF99FFFFCBFF3333CB3366CB3333FF3366FF6533",
-        "CB6666CC6633FF6565FFCB3333CB6533CB3365CC6666FF3333FF6633FF3366FF656533CB3333FF33",
-        "33CB6633FF6666CB3366FF3366CC6665FF65CB33CBCC66CCCC33FFCC65FFFF33CCFF65CCFF33FFFF",
-        "65FF66CCCC65FFCC65CCFF65FFFF98CCCC99FFCC99CCFF99FFFFCBCB33CCFF33CCCC66CCFF65FFCC",
-        "33FFFF33FFCC65FFFF65444444656532DDDDDDCBFFFFFFFFCBEEEEEE100000980000001000660000",
-        "000098000066777777888888AAAAAABBBBBB5555556666660000100000224400005400000000CC00",
-        "00DC0000EE0000FE00003200004400880000980000AA0000BA0000CC0000DC0000EE0000FE00CC00",
-        "00DC0000EE0000FE0000004400005400006600007600220000320000AA0000BA0000002200003200",
-        "7600008800000000AA0000BA00007600008800000021F90401000090002C0000000009000600C7FF",
-        "FFFF980098339999989800111111222222000054CBFFCB0032980033660033CC0033FE0032326633",
-        "0066660000659800989800CC9900FE99329800659800CC0099FE0098659898999999CC9900FE9800",
-        "9800329800659900CC9800FE3399CB3399FF99993398986598320098650099339998659833CB9833",
-        "FF9999CC0099FE00336699656698CC9898FF99993232003366003200323300663200983333996500",
-        "9866339900663300983200666600986500CC3300FE3200CC6600FE65CCCC98CCFF99FFCC99FFFF99",
-        "3300CC3200FE6600CC6500FECC0033CC0066FE0032FE0065339933339966669933669865CC00CCCB",
-        "00FEFE00CBFE00FE6699CC6598FF9898CC9999FFCB9833CC9966FF9933FF98653333333265323232",
-        "65326565660033653232660066653265CC3300CC6600FE3200FE65000066CC0099CC0066FE0098FE",
-        "00CCCC00FECB00CCFE00FEFE33CC0033FE0066CC0066FE00CB3398CC6699FF3399FF659866CC9965",
-        "FF9898CC9899FF99CCCC00CCFE00FECB00FEFE009933339966339933669865659833CB9966CC9933",
-        "FF9865FF33CBCB33FFCC33CCFF33FFFF99CB3399FF3399CC6698FF65CC98CCCCCCCCCC99FFCBCBFF",
-        "FF99CCFFCBCBFF99FFFFCBFF3333CB3366CB3333FF3366FF6533CB6666CC6633FF6565FFCB3333CB",
-        "6533CB3365CC6666FF3333FF6633FF3366FF656533CB3333FF3333CB6633FF6666CB3366FF3366CC",
-        "6665FF65CB33CBCC66CCCC33FFCC65FFFF33CCFF65CCFF33FFFF65FF66CCCC65FFCC65CCFF65FFFF",
-        "98CCCC99FFCC99CCFF99FFFFCBCB33CCFF33CCCC66CCFF65FFCC33FFFF33FFCC65FFFF6544444465",
-        "6532DDDDDDCBFFFFFFFFCBEEEEEE100000980000001000660000000098000066777777888888AAAA",
-        "AABBBBBB5555556666660000100000224400005400000000CC0000DC0000EE0000FE000032000044",
-        "00880000980000AA0000BA0000CC0000DC0000EE0000FE00CC0000DC0000EE0000FE000000440000",
-        "5400006600007600220000320000AA0000BA00000022000032007600008800000000AA0000BA0000",
-        "7600008800000008190021091C4810D2BF7F06110A54C870E0C1840E174A2C4830200021FF0B4D41",
-        "4347436F6E2004031039000000015772697474656E20627920474946436F6E76657274657220322E",
-        "342E33206F66204D6F6E6461792C204D61792032352C2031393938003B"
-    };
-
-    private static final int KAREL_INSET = 6;
-    private static final double BODY_OFFSET_X = -0.20;
-    private static final double BODY_OFFSET_Y = -0.33;
-    private static final double BODY_WIDTH = 0.60;
-    private static final double BODY_HEIGHT = 0.80;
-    private static final double UPPER_NOTCH = 0.15;
-    private static final double LOWER_NOTCH = 0.10;
-    private static final double SCREEN_OFFSET_X = -0.07;
-    private static final double SCREEN_OFFSET_Y = -0.05;
-    private static final double SCREEN_WIDTH = 0.30;
-    private static final double SCREEN_HEIGHT = 0.40;
-    private static final double SLOT_WIDTH = 0.15;
-    private static final double FOOT_WIDTH = 0.08;
-    private static final double FOOT_LENGTH = 0.20;
-    private static final double UPPER_ANKLE = 0.08;
-    private static final double LOWER_ANKLE = 0.08;
-
-    private static Image infinityImage;
-
-    private StreamTokenizer tokenizer;
-    private KarelWorldMonitor monitor;
-    private Karel activeKarel, lastKarel;
-    private boolean repaintFlag, displayFlag, editMode, numberSquaresFlag, displayOneFlag;
-    private int cols, rows, sqSize, forcedSize, alignment;
-    private int width, height, leftMargin, bottomMargin;
-    private String lastClick;
-    private String pathname, title;
-    private Corner map[][];
-    private int look;
-    private int lastBeeperCount;
-    private NumberFormat speedFormat;
-    private ArrayList<Karel> karels;
-    private Object sizeLock;
-    private Image offscreen;
-}
-
-class Corner {
-    public Color color;
-    public boolean wallSouth;
-    public boolean wallWest;
-    public int nBeepers;
-}
-
-class KarelWorldListener implements MouseListener, MouseMotionListener, ComponentListener {
-
-    public KarelWorldListener(KarelWorld world) {
-        this.world = world;
-    }
-
-    public void mousePressed(MouseEvent e) { world.mousePressedHook(e); }
-    public void mouseClicked(MouseEvent e) { }
-    public void mouseReleased(MouseEvent e) { }
-    public void mouseEntered(MouseEvent e) { }
-    public void mouseExited(MouseEvent e) { }
-
-    public void mouseDragged(MouseEvent e) { world.mouseDraggedHook(e); }
-    public void mouseMoved(MouseEvent e) { }
-
-    public void componentResized(ComponentEvent e) { world.componentResizedHook();  }
-    public void componentMoved(ComponentEvent e) { }
-    public void componentShown(ComponentEvent e) { }
-    public void componentHidden(ComponentEvent e) { }
-
-    private KarelWorld world;
-
-}
-
-class KarelRegion {
-    public static final double EPSILON = 0.00000000001;
-
-    public KarelRegion() {
-        p = new Polygon();
-        x = y = 0;
-    }
-
-    public Polygon getPolygon() {
-        return p;
-    }
-
-    public void setOrigin(int x, int y, double dx, double dy, int dir) {
-        if (p.npoints != 0) {
-            throw new ErrorException("setOrigin called on nonempty region");
+            throw new ErrorException("" + ex);
         }
-        this.x = x;
-        this.y = y;
-        addVector(dx, dy, dir);
     }
 
-    public void addVector(double dx, double dy, int dir) {
-        switch (dir) {
-          case KarelWorld.EAST:  x += dx; y -= dy; break;
-          case KarelWorld.NORTH: x -= dy; y -= dx; break;
-          case KarelWorld.WEST:  x -= dx; y += dy; break;
-          case KarelWorld.SOUTH: x += dy; y += dx; break;
+    void installGrid(KarelGrid grid) {
+        cols = grid.getColumns();
+        rows = grid.getRows();
+        this.grid = grid;
+        occupants = new Karel[grid.getTileColumns() * grid.getTileRows()][];
+        for (int i = 0; i < karels.size(); i++) {
+            indexKarel(karels.get(i));
         }
-        p.addPoint((int) Math.round(x + EPSILON), (int) Math.round(y + EPSILON));
+        rehash();
+        if (journal != null) journal.worldChanged();
+        initialState = null;
+        generation++;
+        repaint();
     }
 
-    public int getCurrentX() {
-        return p.xpoints[p.npoints - 1];
-    }
+/* Private constants */
 
-    public int getCurrentY() {
-        return p.ypoints[p.npoints - 1];
-    }
+    private static final int CLOCK_INTERVAL = 1024;
+    private static final int LOAD_BUFFER_SIZE = 4096;
+    private static final int CYCLE_TABLE_SIZE = 4096;
+    private static final int BEEPER_KEY = 1;
+    private static final int COLOR_KEY = 2;
+    private static final int POSITION_KEY = 1;
+    private static final int DIRECTION_KEY = 2;
+    private static final int BAG_KEY = 3;
+    private static final int CHANGE_LOG_SIZE = 1024;
+    private static final long PUBLISH_INTERVAL = 10000000L;
 
 /* Private state */
 
-    private Polygon p;
-    private double x, y;
-
-}
-
-interface KarelWorldMonitor {
-
-/*
- * Method: startWorldEdit
- * Usage: startWorldEdit();
- * ------------------------
- * This action is invoked at the beginning of an editing session.
- */
-    public void startWorldEdit();
-
-/* Method: endWorldEdit */
-/**
- * This action is invoked at the end of an editing session.
- */
-    public void endWorldEdit();
-
-/* Method: wallAction */
-/**
- * This action is invoked when the mouse is clicked on a wall, which
- * is the wall in the indicated direction from the Karel coordinates
- * given by pt.
- */
-    public void wallAction(Point pt, int dir);
-
-/* Method: cornerAction */
-/**
- * This action is invoked when the mouse is clicked on a corner, which
- * is the wall in the indicated direction from the given point.
- */
-    public void cornerAction(Point pt);
-
-/* Method: trace */
-/**
- * This action is invoked when karel executes an instruction.
- */
-    public void trace();
-
-/* Method: setSpeed */
-/**
- * This method is invoked when a world map file needs to set the simulation
- * speed.
- */
-    public void setSpeed(double speed);
-
-/* Method: getSpeed */
-/**
- * This method is invoked when the KarelWorld class needs to get the simulation
- * speed.
- */
-    public double getSpeed();
-
+    private KarelWorldMonitor monitor;
+    private KarelWorldDisplay display;
+    private KarelTraceRecorder recorder;
+    private KarelJournal journal;
+    private KarelGifExporter gifExporter;
+    private KarelWorldSnapshot initialState;
+    private boolean repaintFlag, displayOneFlag;
+    private int cols, rows;
+    private String pathname, title;
+    private KarelGrid grid;
+    private Karel[][] occupants;
+    private long stepCount;
+    private long stepLimit = Long.MAX_VALUE;
+    private long timeLimit, deadline;
+    private volatile boolean cancelled;
+    private long stateHash;
+    private long[] cycleHashes;
+    private long[] cycleSteps;
+    private int[] cycleCounts;
+    private int cycleWindow, cycleRepeats;
+    private long lastCycleHash;
+    private boolean lastCycleHashValid;
+    private ArrayList<Karel> karels;
+    private volatile KarelWorldSnapshot snapshot;
+    private volatile boolean snapshotWanted;
+    private long snapshotVersion, publishTime;
+    private int generation;
+    private long[] changedCorners;
+    private int changedCount, changeFlags;
 }
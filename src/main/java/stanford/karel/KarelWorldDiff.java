@@ -0,0 +1,328 @@
+/*
+ * File: KarelWorldDiff.java
+ * -------------------------
+ * This file implements the structured comparison of two Karel worlds,
+ * which lists the walls, corners, and Karels in which they differ.
+ */
+
+package stanford.karel;
+
+import java.awt.*;
+import java.util.*;
+
+/* Class: KarelWorldDiff */
+/**
+ * A <code>KarelWorldDiff</code> lists the differences between an expected
+ * and an actual world.  Each difference has a kind, a corner, and a
+ * description of the expected and actual values:
+ *
+ * <p><pre><code>
+ * &nbsp;    KarelWorldDiff diff = KarelWorldDiff.compare(expected, actual);
+ * &nbsp;    for (int i = 0; i < diff.getCount(); i++) {
+ * &nbsp;        println(diff.getDescription(i));
+ * &nbsp;    }
+ * </code></pre>
+ *
+ * <p>The worlds are compared a tile at a time.  Tiles that the two worlds
+ * share, as a world and a snapshot of it do until the tile changes, are
+ * skipped; wall planes are compared a 64-bit word at a time; and beeper
+ * and color planes are compared as whole arrays first, so individual
+ * corners are examined only in tiles that actually differ.
+ */
+public class KarelWorldDiff {
+
+/* Kinds of differences */
+
+    public static final int DIMENSION = 0;
+    public static final int WALL = 1;
+    public static final int BEEPERS = 2;
+    public static final int COLOR = 3;
+    public static final int KAREL = 4;
+
+    public static final int DEFAULT_LIMIT = 1000;
+
+/* Static method: compare(expected, actual) */
+/**
+ * Compares two worlds, reporting at most DEFAULT_LIMIT differences.  This
+ * method must be called from the threads that change the worlds.
+ */
+    public static KarelWorldDiff compare(KarelWorld expected, KarelWorld actual) {
+        return compare(expected.createSnapshot(), actual.createSnapshot(), DEFAULT_LIMIT);
+    }
+
+/* Static method: compare(expected, actual, limit) */
+/**
+ * Compares two snapshots, reporting at most limit differences.  If the
+ * dimensions differ, that is the only difference reported.
+ */
+    public static KarelWorldDiff compare(KarelWorldSnapshot expected, KarelWorldSnapshot actual,
+                                         int limit) {
+        KarelWorldDiff diff = new KarelWorldDiff(limit);
+        KarelGrid a = expected.getGrid();
+        KarelGrid b = actual.getGrid();
+        if (a.getColumns() != b.getColumns() || a.getRows() != b.getRows()) {
+            diff.add(DIMENSION, 0, 0, -1, a.getColumns() + "x" + a.getRows(),
+                     b.getColumns() + "x" + b.getRows());
+            return diff;
+        }
+        diff.compareGrids(a, b);
+        diff.compareKarels(expected, actual);
+        return diff;
+    }
+
+/* Method: isEmpty() */
+/**
+ * Returns true if the worlds are the same.
+ */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+/* Method: getCount() */
+/**
+ * Returns the number of differences reported.
+ */
+    public int getCount() {
+        return count;
+    }
+
+/* Method: isTruncated() */
+/**
+ * Returns true if there were more differences than the limit allowed.
+ */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public int getKind(int i) {
+        return entries[4 * i];
+    }
+
+/* Method: getAvenue(i) */
+/**
+ * Returns the avenue of the corner at which difference i occurs.  For a
+ * Karel, this is the expected position, and getDirection returns the
+ * index of the Karel.
+ */
+    public int getAvenue(int i) {
+        return entries[4 * i + 1];
+    }
+
+    public int getStreet(int i) {
+        return entries[4 * i + 2];
+    }
+
+/* Method: getDirection(i) */
+/**
+ * Returns the side of the corner on which a differing wall lies, the
+ * index of a differing Karel, or -1 for other differences.
+ */
+    public int getDirection(int i) {
+        return entries[4 * i + 3];
+    }
+
+    public String getExpected(int i) {
+        return expectedValues.get(i);
+    }
+
+    public String getActual(int i) {
+        return actualValues.get(i);
+    }
+
+/* Method: getDescription(i) */
+/**
+ * Returns a line of text that describes difference i.
+ */
+    public String getDescription(int i) {
+        String where = "(" + getAvenue(i) + ", " + getStreet(i) + ")";
+        String what;
+        switch (getKind(i)) {
+          case DIMENSION: return "Dimension: expected " + getExpected(i) + ", found " + getActual(i);
+          case WALL: what = "Wall " + where + " " + KarelWorld.directionName(getDirection(i)); break;
+          case BEEPERS: what = "Beepers " + where; break;
+          case COLOR: what = "Color " + where; break;
+          default: what = "Karel " + getDirection(i); break;
+        }
+        return what + ": expected " + getExpected(i) + ", found " + getActual(i);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(getDescription(i)).append('\n');
+        }
+        if (truncated) sb.append("...\n");
+        return sb.toString();
+    }
+
+/* Private methods */
+
+    private KarelWorldDiff(int limit) {
+        this.limit = limit;
+        entries = new int[64];
+        expectedValues = new ArrayList<String>();
+        actualValues = new ArrayList<String>();
+    }
+
+    private void compareGrids(KarelGrid a, KarelGrid b) {
+        int cols = a.getColumns();
+        int rows = a.getRows();
+        int[] remap = remapPalette(a, b);
+        boolean samePalette = isIdentity(remap, a.getPaletteSize());
+        for (int ty = 0; ty < a.getTileRows(); ty++) {
+            int y0 = ty << KarelGrid.TILE_SHIFT;
+            for (int tx = 0; tx < a.getTileColumns(); tx++) {
+                KarelTile ta = a.getTile(tx, ty);
+                KarelTile tb = b.getTile(tx, ty);
+                if (ta == tb && samePalette) continue;
+                if (ta == null) ta = EMPTY_TILE;
+                if (tb == null) tb = EMPTY_TILE;
+                int x0 = tx << KarelGrid.TILE_SHIFT;
+                compareWalls(ta, tb, x0, y0, cols, rows);
+                if (!Arrays.equals(ta.beepers, tb.beepers)) {
+                    for (int k = 0; k < KarelGrid.TILE_AREA; k++) {
+                        if (ta.beepers[k] != tb.beepers[k]) {
+                            int x = x0 + (k & TILE_MASK);
+                            int y = y0 + (k >> KarelGrid.TILE_SHIFT);
+                            if (x < 1 || x > cols || y < 1 || y > rows) continue;
+                            add(BEEPERS, x, y, -1, beeperString(ta.beepers[k]),
+                                beeperString(tb.beepers[k]));
+                        }
+                    }
+                }
+                if (!samePalette || !Arrays.equals(ta.colors, tb.colors)) {
+                    for (int k = 0; k < KarelGrid.TILE_AREA; k++) {
+                        int ca = ta.colors[k] & 0xFF;
+                        int cb = tb.colors[k] & 0xFF;
+                        if (remap[ca] != cb) {
+                            int x = x0 + (k & TILE_MASK);
+                            int y = y0 + (k >> KarelGrid.TILE_SHIFT);
+                            if (x < 1 || x > cols || y < 1 || y > rows) continue;
+                            add(COLOR, x, y, -1, colorString(a.getPaletteColor(ca)),
+                                colorString(b.getPaletteColor(cb)));
+                        }
+                    }
+                }
+                if (truncated) return;
+            }
+        }
+    }
+
+    private void compareWalls(KarelTile ta, KarelTile tb, int x0, int y0, int cols, int rows) {
+        if (ta.wallCount == 0 && tb.wallCount == 0) return;
+        for (int r = 0; r < KarelGrid.TILE_SIZE; r++) {
+            int y = y0 + r;
+            if (y < 1 || y > rows) continue;
+            long south = (y >= 2) ? (ta.southWalls[r] ^ tb.southWalls[r]) : 0;
+            long west = ta.westWalls[r] ^ tb.westWalls[r];
+            while (south != 0) {
+                int i = Long.numberOfTrailingZeros(south);
+                south &= south - 1;
+                int x = x0 + i;
+                if (x < 1 || x > cols) continue;
+                boolean flag = (ta.southWalls[r] & (1L << i)) != 0;
+                add(WALL, x, y, KarelWorld.SOUTH, wallString(flag), wallString(!flag));
+            }
+            while (west != 0) {
+                int i = Long.numberOfTrailingZeros(west);
+                west &= west - 1;
+                int x = x0 + i;
+                if (x < 2 || x > cols) continue;
+                boolean flag = (ta.westWalls[r] & (1L << i)) != 0;
+                add(WALL, x, y, KarelWorld.WEST, wallString(flag), wallString(!flag));
+            }
+        }
+    }
+
+    private void compareKarels(KarelWorldSnapshot expected, KarelWorldSnapshot actual) {
+        int n = Math.max(expected.getKarelCount(), actual.getKarelCount());
+        for (int i = 0; i < n; i++) {
+            String es = (i < expected.getKarelCount()) ? karelString(expected, i) : "none";
+            String as = (i < actual.getKarelCount()) ? karelString(actual, i) : "none";
+            if (!es.equals(as)) {
+                int k = (i < expected.getKarelCount()) ? i : -1;
+                int x = (k < 0) ? actual.getKarelAvenue(i) : expected.getKarelAvenue(i);
+                int y = (k < 0) ? actual.getKarelStreet(i) : expected.getKarelStreet(i);
+                add(KAREL, x, y, i, es, as);
+            }
+        }
+    }
+
+/*
+ * Method: remapPalette
+ * Usage: int[] remap = remapPalette(a, b);
+ * ----------------------------------------
+ * Returns an array that maps each color index of grid a to the index of
+ * the same color in grid b, or to -1 if b has no such color, so that
+ * color planes can be compared without looking up the colors.
+ */
+    private static int[] remapPalette(KarelGrid a, KarelGrid b) {
+        int[] remap = new int[KarelGrid.MAX_COLORS + 1];
+        Arrays.fill(remap, -1);
+        remap[0] = 0;
+        for (int i = 1; i < a.getPaletteSize(); i++) {
+            Color color = a.getPaletteColor(i);
+            for (int j = 1; j < b.getPaletteSize(); j++) {
+                if (color.equals(b.getPaletteColor(j))) {
+                    remap[i] = j;
+                    break;
+                }
+            }
+        }
+        return remap;
+    }
+
+    private static boolean isIdentity(int[] remap, int n) {
+        for (int i = 0; i < n; i++) {
+            if (remap[i] != i) return false;
+        }
+        return true;
+    }
+
+    private void add(int kind, int x, int y, int dir, String expected, String actual) {
+        if (count == limit) {
+            truncated = true;
+            return;
+        }
+        if (4 * count + 4 > entries.length) entries = Arrays.copyOf(entries, 2 * entries.length);
+        entries[4 * count] = kind;
+        entries[4 * count + 1] = x;
+        entries[4 * count + 2] = y;
+        entries[4 * count + 3] = dir;
+        expectedValues.add(expected);
+        actualValues.add(actual);
+        count++;
+    }
+
+    private static String beeperString(int nBeepers) {
+        return (nBeepers == KarelWorld.INFINITE) ? "INFINITE" : "" + nBeepers;
+    }
+
+    private static String colorString(Color color) {
+        return (color == null) ? "none" : KarelWorld.encodeColor(color);
+    }
+
+    private static String wallString(boolean flag) {
+        return flag ? "wall" : "no wall";
+    }
+
+    private static String karelString(KarelWorldSnapshot snapshot, int i) {
+        return "(" + snapshot.getKarelAvenue(i) + ", " + snapshot.getKarelStreet(i) + ") "
+             + KarelWorld.directionName(snapshot.getKarelDirection(i)) + " bag "
+             + beeperString(snapshot.getKarelBeepers(i));
+    }
+
+/* Private constants */
+
+    private static final int TILE_MASK = KarelGrid.TILE_SIZE - 1;
+    private static final KarelTile EMPTY_TILE = new KarelTile();
+
+/* Private state */
+
+    private int limit;
+    private int count;
+    private boolean truncated;
+    private int[] entries;
+    private ArrayList<String> expectedValues;
+    private ArrayList<String> actualValues;
+}
@@ -0,0 +1,190 @@
+/*
+ * File: KarelWorldDigest.java
+ * ---------------------------
+ * This file implements a canonical 128-bit digest of the state of a
+ * Karel world, which lets two worlds be compared in constant time once
+ * their digests are known.
+ */
+
+package stanford.karel;
+
+import java.awt.*;
+
+/* Class: KarelWorldDigest */
+/**
+ * A <code>KarelWorldDigest</code> summarizes the dimensions, walls,
+ * beepers, corner colors, and Karels of a world in 128 bits.  Two worlds
+ * in the same state have equal digests however they were built: the
+ * digest is a sum of independent hashes of each wall, corner, and Karel,
+ * so it depends neither on the order in which a world file lists them
+ * nor on the order of the Karels, and colors are hashed by value rather
+ * than by their place in the world's palette.  Worlds in different
+ * states have different digests except with negligible probability.
+ *
+ * <p>Walls are hashed one 64-bit word of a wall plane at a time, and
+ * beepers and colors are hashed only in the parts of the world that hold
+ * something, so computing a digest costs time in proportion to the
+ * contents of the world rather than its area.
+ */
+public final class KarelWorldDigest {
+
+/* Static method: of(world) */
+/**
+ * Returns the digest of the current state of a world.  This method must
+ * be called from the thread that changes the world.
+ */
+    public static KarelWorldDigest of(KarelWorld world) {
+        return of(world.createSnapshot());
+    }
+
+/* Static method: of(snapshot) */
+/**
+ * Returns the digest of a snapshot.  Since snapshots never change, this
+ * method may be called from any thread.
+ */
+    public static KarelWorldDigest of(KarelWorldSnapshot snapshot) {
+        KarelWorldDigest digest = new KarelWorldDigest();
+        KarelGrid grid = snapshot.getGrid();
+        int cols = grid.getColumns();
+        int rows = grid.getRows();
+        digest.add(DIMENSION_KEY, cols, rows, 0);
+        for (int tx = 0; tx < grid.getTileColumns(); tx++) {
+            int x0 = tx << KarelGrid.TILE_SHIFT;
+            long southMask = columnMask(x0, 1, cols);
+            long westMask = columnMask(x0, 2, cols);
+            for (int ty = 0; ty < grid.getTileRows(); ty++) {
+                KarelTile tile = grid.getTile(tx, ty);
+                if (tile == null) continue;
+                int y0 = ty << KarelGrid.TILE_SHIFT;
+                if (tile.wallCount > 0) {
+                    for (int r = 0; r < KarelGrid.TILE_SIZE; r++) {
+                        int y = y0 + r;
+                        long south = (y >= 2 && y <= rows) ? tile.southWalls[r] & southMask : 0;
+                        long west = (y >= 1 && y <= rows) ? tile.westWalls[r] & westMask : 0;
+                        if (south != 0) digest.add(SOUTH_WALL_KEY, x0, y, south);
+                        if (west != 0) digest.add(WEST_WALL_KEY, x0, y, west);
+                    }
+                }
+                for (int k = 0; k < KarelGrid.TILE_AREA; k++) {
+                    int nBeepers = tile.beepers[k];
+                    int colorIndex = tile.colors[k] & 0xFF;
+                    if (nBeepers == 0 && colorIndex == 0) continue;
+                    int x = x0 + (k & (KarelGrid.TILE_SIZE - 1));
+                    int y = y0 + (k >> KarelGrid.TILE_SHIFT);
+                    if (x < 1 || x > cols || y < 1 || y > rows) continue;
+                    if (nBeepers != 0) digest.add(BEEPER_KEY, x, y, nBeepers);
+                    if (colorIndex != 0) {
+                        Color color = grid.getPaletteColor(colorIndex);
+                        digest.add(COLOR_KEY, x, y, color.getRGB());
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < snapshot.getKarelCount(); i++) {
+            long state = ((long) snapshot.getKarelDirection(i) << 32)
+                       | (snapshot.getKarelBeepers(i) & 0xFFFFFFFFL);
+            digest.add(KAREL_KEY, snapshot.getKarelAvenue(i), snapshot.getKarelStreet(i), state);
+        }
+        return digest;
+    }
+
+/* Method: getHigh() */
+/**
+ * Returns the high 64 bits of the digest.
+ */
+    public long getHigh() {
+        return high;
+    }
+
+/* Method: getLow() */
+/**
+ * Returns the low 64 bits of the digest, which can serve as a 64-bit
+ * digest by itself.
+ */
+    public long getLow() {
+        return low;
+    }
+
+    public boolean equals(Object obj) {
+        if (!(obj instanceof KarelWorldDigest)) return false;
+        KarelWorldDigest digest = (KarelWorldDigest) obj;
+        return high == digest.high && low == digest.low;
+    }
+
+    public int hashCode() {
+        return (int) (low ^ (low >>> 32));
+    }
+
+/* Method: toString() */
+/**
+ * Returns the digest as 32 hexadecimal digits.
+ */
+    public String toString() {
+        return hex(high) + hex(low);
+    }
+
+/* Private methods */
+
+    private KarelWorldDigest() {
+        /* Empty */
+    }
+
+/*
+ * Method: add
+ * Usage: add(key, x, y, value);
+ * -----------------------------
+ * Adds one item of the world to the digest.  Each half of the digest is
+ * a sum of items hashed with a different seed, and addition commutes, so
+ * the order in which items are added does not matter.
+ */
+    private void add(int key, int x, int y, long value) {
+        long item = ((long) key << 56) ^ ((long) x << 28) ^ y;
+        low += mix(mix(item ^ LOW_SEED) ^ value);
+        high += mix(mix(item ^ HIGH_SEED) ^ value);
+    }
+
+/*
+ * Method: columnMask
+ * Usage: long mask = columnMask(x0, min, max);
+ * --------------------------------------------
+ * Returns the mask for a row of a wall plane in the tile whose first
+ * column is x0 that keeps the bits for the columns from min to max.
+ * Walls outside that range are either the boundary of the world, which
+ * is not stored, or lie beyond it, and are left out of the digest.
+ */
+    private static long columnMask(int x0, int min, int max) {
+        long mask = 0;
+        for (int i = 0; i < KarelGrid.TILE_SIZE; i++) {
+            int x = x0 + i;
+            if (x >= min && x <= max) mask |= 1L << i;
+        }
+        return mask;
+    }
+
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static String hex(long n) {
+        String str = Long.toHexString(n);
+        return "0000000000000000".substring(str.length()) + str;
+    }
+
+/* Private constants */
+
+    private static final int DIMENSION_KEY = 1;
+    private static final int SOUTH_WALL_KEY = 2;
+    private static final int WEST_WALL_KEY = 3;
+    private static final int BEEPER_KEY = 4;
+    private static final int COLOR_KEY = 5;
+    private static final int KAREL_KEY = 6;
+    private static final long LOW_SEED = 0x5851F42D4C957F2DL;
+    private static final long HIGH_SEED = 0x14057B7EF767814FL;
+
+/* Private state */
+
+    private long high, low;
+}
@@ -0,0 +1,25 @@
+/*
+ * File: KarelWorldDisplay.java
+ * ----------------------------
+ * This file defines the interface through which a KarelWorld hands the
+ * snapshots it publishes to the view that shows them.
+ */
+
+package stanford.karel;
+
+/* Interface: KarelWorldDisplay */
+/**
+ * A <code>KarelWorldDisplay</code> is told each time a
+ * <code>KarelWorld</code> publishes a snapshot of its state.
+ */
+interface KarelWorldDisplay {
+
+/* Method: snapshotPublished */
+/**
+ * This method is invoked, on the thread that changed the world, each time
+ * the world publishes a new snapshot.  The display should not draw the
+ * snapshot on this thread, but only arrange for it to be drawn.
+ */
+    public void snapshotPublished(KarelWorldSnapshot snapshot);
+
+}
@@ -13,8 +13,9 @@ import java.util.*;
 
 class KarelWorldEditor extends Canvas implements MouseListener {
 
-    public KarelWorldEditor(KarelWorld world) {
-        this.world = world;
+    public KarelWorldEditor(KarelWorldView view) {
+        this.view = view;
+        world = view.getWorld();
         initEditorCanvas();
         addMouseListener(this);
     }
@@ -77,12 +78,12 @@ class KarelWorldEditor extends Canvas implements MouseListener {
     }
 
     public void drawKarelTool(Graphics g, MapTool tool) {
-        world.drawFancyKarel(g, tool.x + tool.size / 2, tool.y + tool.size / 2, tool.dir, tool.size);
+        view.drawFancyKarel(g, tool.x + tool.size / 2, tool.y + tool.size / 2, tool.dir, tool.size);
     }
 
     public void drawBeeperTool(Graphics g, MapTool tool) {
         int border = (tool == getSelectedTool()) ? SELECTED_PIXELS : 1;
-        KarelWorld.drawBeeper(g, tool.x + tool.size / 2, tool.y + tool.size / 2, BEEPER_TOOL_SIZE, tool.beeperDelta, border, this);
+        KarelWorldView.drawBeeper(g, tool.x + tool.size / 2, tool.y + tool.size / 2, BEEPER_TOOL_SIZE, tool.beeperDelta, border, this);
     }
 
     public void drawBeeperBag(Graphics g) {
@@ -96,7 +97,7 @@ class KarelWorldEditor extends Canvas implements MouseListener {
         y += BAG_LABEL_DELTA_Y;
         Karel karel = world.getKarel();
         int nBeepers = (karel == null) ? 0 : karel.getBeepersInBag();
-        KarelWorld.drawBeeper(g, x, y, BEEPER_TOOL_SIZE, nBeepers, 1, this);
+        KarelWorldView.drawBeeper(g, x, y, BEEPER_TOOL_SIZE, nBeepers, 1, this);
     }
 
     public void defineTool(MapTool tool) {
@@ -358,6 +359,7 @@ class KarelWorldEditor extends Canvas implements MouseListener {
 
     private ArrayList<MapTool> tools;
     private KarelWorld world;
+    private KarelWorldView view;
     private MapTool selectedTool, oldTool, beeperBagTool;
     private Image beeperBagImage;
 
@@ -0,0 +1,455 @@
+/*
+ * File: KarelWorldGenerator.java
+ * ------------------------------
+ * This file implements the generator that builds random Karel worlds,
+ * such as mazes and worlds strewn with walls and beepers, reproducibly
+ * from a seed.
+ */
+
+package stanford.karel;
+
+import acm.util.*;
+import java.io.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+
+/* Class: KarelWorldGenerator */
+/**
+ * A <code>KarelWorldGenerator</code> builds worlds from seeds according
+ * to its settings.  Each world is built directly into the grid of a
+ * <code>KarelWorldTemplate</code>, from which any number of worlds can be
+ * loaded:
+ *
+ * <p><pre><code>
+ * &nbsp;    KarelWorldGenerator generator = new KarelWorldGenerator();
+ * &nbsp;    generator.setSize(20, 20);
+ * &nbsp;    generator.setMaze(true);
+ * &nbsp;    generator.setBeeperDensity(0.1);
+ * &nbsp;    world.load(generator.generate(seed));
+ * </code></pre>
+ *
+ * <p>The same settings and seed always produce the same world.  Every
+ * random choice that concerns a wall or corner is made from a hash of the
+ * seed and the position of the wall or corner rather than from a sequence
+ * of random numbers, so the worlds that <code>generate(seed, cols,
+ * rows)</code> makes from one seed at different sizes form a family: a
+ * smaller world matches the lower left part of a larger one, except that
+ * a maze is completed differently where it meets the edge.  Mazes are
+ * perfect, which means that there is exactly one path between any two
+ * corners; they are built by Kruskal's algorithm with wall weights taken
+ * from the same hashes.
+ *
+ * <p>The <code>generateAll</code> and <code>saveAll</code> methods build
+ * many worlds at once on the generator's threads.  The settings must not
+ * be changed while they run.
+ */
+public class KarelWorldGenerator {
+
+/* Beeper distributions */
+
+    public static final int SINGLE = 0;
+    public static final int UNIFORM = 1;
+    public static final int GEOMETRIC = 2;
+
+    public static final int DEFAULT_SIZE = 10;
+    public static final int MAX_MAZE_AREA = 1 << 22;
+
+/* Constructor: KarelWorldGenerator() */
+/**
+ * Creates a generator that uses as many threads as there are processors.
+ */
+    public KarelWorldGenerator() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+/* Constructor: KarelWorldGenerator(nThreads) */
+/**
+ * Creates a generator that uses the specified number of threads in
+ * generateAll and saveAll.  A new generator makes empty worlds of
+ * DEFAULT_SIZE with Karel at (1, 1) facing east.
+ */
+    public KarelWorldGenerator(int nThreads) {
+        if (nThreads < 1) throw new ErrorException("KarelWorldGenerator: Illegal thread count");
+        this.nThreads = nThreads;
+        setSize(DEFAULT_SIZE, DEFAULT_SIZE);
+        beeperDistribution = SINGLE;
+        maxBeepers = 1;
+    }
+
+/* Method: setSize(cols, rows) */
+/**
+ * Makes every world the specified size.
+ */
+    public void setSize(int cols, int rows) {
+        setSizeRange(cols, cols, rows, rows);
+    }
+
+/* Method: setSizeRange(minCols, maxCols, minRows, maxRows) */
+/**
+ * Makes each world a size chosen from the seed within the specified
+ * ranges.
+ */
+    public void setSizeRange(int minCols, int maxCols, int minRows, int maxRows) {
+        if (minCols < 1 || maxCols < minCols || maxCols > KarelWorld.MAX_COLUMNS
+                || minRows < 1 || maxRows < minRows || maxRows > KarelWorld.MAX_ROWS) {
+            throw new ErrorException("setSizeRange: Illegal world dimensions");
+        }
+        this.minCols = minCols;
+        this.maxCols = maxCols;
+        this.minRows = minRows;
+        this.maxRows = maxRows;
+    }
+
+/* Method: setMaze(flag) */
+/**
+ * Sets whether the walls form a perfect maze.  If so, the wall density is
+ * ignored.
+ */
+    public void setMaze(boolean flag) {
+        mazeFlag = flag;
+    }
+
+    public boolean isMaze() {
+        return mazeFlag;
+    }
+
+/* Method: setWallDensity(density) */
+/**
+ * Sets the probability that each wall between two corners is present.
+ */
+    public void setWallDensity(double density) {
+        wallDensity = checkProbability(density);
+    }
+
+    public double getWallDensity() {
+        return wallDensity;
+    }
+
+/* Method: setBeeperDensity(density) */
+/**
+ * Sets the probability that each corner holds a pile of beepers.
+ */
+    public void setBeeperDensity(double density) {
+        beeperDensity = checkProbability(density);
+    }
+
+    public double getBeeperDensity() {
+        return beeperDensity;
+    }
+
+/* Method: setBeeperDistribution(distribution, max) */
+/**
+ * Sets the distribution of the number of beepers in each pile, which is
+ * at most max.  With SINGLE, each pile has one beeper; with UNIFORM, all
+ * sizes from 1 to max are equally likely; and with GEOMETRIC, each size
+ * is half as likely as the one before it.
+ */
+    public void setBeeperDistribution(int distribution, int max) {
+        if (distribution < SINGLE || distribution > GEOMETRIC || max < 1) {
+            throw new ErrorException("setBeeperDistribution: Illegal distribution");
+        }
+        beeperDistribution = distribution;
+        maxBeepers = max;
+    }
+
+/* Method: setRandomKarel(flag) */
+/**
+ * Sets whether Karel starts on a corner and facing a direction chosen
+ * from the seed, instead of at (1, 1) facing east.
+ */
+    public void setRandomKarel(boolean flag) {
+        randomKarelFlag = flag;
+    }
+
+/* Method: setKarelBeepers(nBeepers) */
+/**
+ * Sets the number of beepers in Karel's bag, which may be INFINITE.
+ */
+    public void setKarelBeepers(int nBeepers) {
+        karelBeepers = nBeepers;
+    }
+
+/* Method: generate(seed) */
+/**
+ * Generates the world for the specified seed.
+ */
+    public KarelWorldTemplate generate(long seed) {
+        int cols = minCols + (int) Long.remainderUnsigned(hash(seed, SIZE_KEY, 0, 0),
+                                                          maxCols - minCols + 1);
+        int rows = minRows + (int) Long.remainderUnsigned(hash(seed, SIZE_KEY, 1, 0),
+                                                          maxRows - minRows + 1);
+        return generate(seed, cols, rows);
+    }
+
+/* Method: generate(seed, cols, rows) */
+/**
+ * Generates the world for the specified seed at the specified size,
+ * ignoring the size settings.  Worlds generated from one seed at
+ * different sizes share their layout as described above.
+ */
+    public KarelWorldTemplate generate(long seed, int cols, int rows) {
+        KarelGrid grid = new KarelGrid(cols, rows);
+        if (mazeFlag) {
+            buildMaze(grid, seed);
+        } else if (wallDensity > 0) {
+            for (int y = 1; y <= rows; y++) {
+                for (int x = 1; x <= cols; x++) {
+                    if (x > 1 && chance(seed, WEST_WALL_KEY, x, y, wallDensity)) {
+                        grid.setWall(x, y, KarelWorld.WEST, true);
+                    }
+                    if (y > 1 && chance(seed, SOUTH_WALL_KEY, x, y, wallDensity)) {
+                        grid.setWall(x, y, KarelWorld.SOUTH, true);
+                    }
+                }
+            }
+        }
+        if (beeperDensity > 0) {
+            for (int y = 1; y <= rows; y++) {
+                for (int x = 1; x <= cols; x++) {
+                    if (chance(seed, BEEPER_KEY, x, y, beeperDensity)) {
+                        grid.setBeepers(x, y, pileSize(hash(seed, PILE_KEY, x, y)));
+                    }
+                }
+            }
+        }
+        int x = 1;
+        int y = 1;
+        int dir = KarelWorld.EAST;
+        if (randomKarelFlag) {
+            x = 1 + (int) Long.remainderUnsigned(hash(seed, KAREL_KEY, 0, 0), cols);
+            y = 1 + (int) Long.remainderUnsigned(hash(seed, KAREL_KEY, 1, 0), rows);
+            dir = DIRECTIONS[(int) (hash(seed, KAREL_KEY, 2, 0) >>> 62)];
+        }
+        return new KarelWorldTemplate(grid, x, y, dir, karelBeepers);
+    }
+
+/* Method: generateAll(firstSeed, count) */
+/**
+ * Generates the worlds for count consecutive seeds starting with
+ * firstSeed, in parallel, and returns them in the order of their seeds.
+ */
+    public List<KarelWorldTemplate> generateAll(final long firstSeed, int count) {
+        final KarelWorldTemplate[] templates = new KarelWorldTemplate[count];
+        runAll(count, new KarelGeneratorTask() {
+            public void run(int i) {
+                templates[i] = generate(firstSeed + i);
+            }
+        });
+        return Arrays.asList(templates);
+    }
+
+/* Method: saveAll(firstSeed, count, dir) */
+/**
+ * Generates the worlds for count consecutive seeds starting with
+ * firstSeed, in parallel, and saves each with <code>KarelWorld.save</code>
+ * to a file in the specified directory named by getFileName.
+ */
+    public void saveAll(final long firstSeed, int count, final File dir) {
+        runAll(count, new KarelGeneratorTask() {
+            public void run(int i) {
+                long seed = firstSeed + i;
+                save(generate(seed), new File(dir, getFileName(seed)));
+            }
+        });
+    }
+
+/* Static method: save(template, file) */
+/**
+ * Saves a template to a world file in the text format.
+ */
+    public static void save(KarelWorldTemplate template, File file) {
+        KarelWorld world = template.createWorld();
+        try {
+            PrintWriter wr = new PrintWriter(new BufferedWriter(new FileWriter(file)));
+            world.save(wr);
+            wr.close();
+        } catch (IOException ex) {
+            throw new ErrorException("" + ex);
+        }
+    }
+
+/* Static method: getFileName(seed) */
+/**
+ * Returns the name of the file to which saveAll saves the world for the
+ * specified seed.
+ */
+    public static String getFileName(long seed) {
+        return "world-" + seed + ".w";
+    }
+
+/* Private methods */
+
+/*
+ * Method: buildMaze
+ * Usage: buildMaze(grid, seed);
+ * -----------------------------
+ * Fills the grid with a perfect maze.  Each wall between two corners is
+ * given a weight from the hash of its position, and the walls are taken
+ * in order of weight: a wall is removed if the corners on either side
+ * are not yet connected and kept otherwise.  Each entry of the edge array
+ * packs the weight above the index of the wall so that a single sort of
+ * primitive values puts the walls in order.
+ */
+    private static void buildMaze(KarelGrid grid, long seed) {
+        int cols = grid.getColumns();
+        int rows = grid.getRows();
+        if ((long) cols * rows > MAX_MAZE_AREA) {
+            throw new ErrorException("Maze is too large");
+        }
+        int nCorners = cols * rows;
+        long[] edges = new long[(cols - 1) * rows + cols * (rows - 1)];
+        int nEdges = 0;
+        for (int y = 1; y <= rows; y++) {
+            for (int x = 1; x <= cols; x++) {
+                int corner = (y - 1) * cols + (x - 1);
+                if (x > 1) {
+                    long weight = hash(seed, WEST_WALL_KEY, x, y) >>> (64 - WEIGHT_BITS);
+                    edges[nEdges++] = (weight << INDEX_BITS) | (2 * corner);
+                }
+                if (y > 1) {
+                    long weight = hash(seed, SOUTH_WALL_KEY, x, y) >>> (64 - WEIGHT_BITS);
+                    edges[nEdges++] = (weight << INDEX_BITS) | (2 * corner + 1);
+                }
+            }
+        }
+        Arrays.sort(edges);
+        int[] parent = new int[nCorners];
+        for (int i = 0; i < nCorners; i++) {
+            parent[i] = i;
+        }
+        for (int i = 0; i < nEdges; i++) {
+            int index = (int) (edges[i] & INDEX_MASK);
+            int corner = index >> 1;
+            boolean south = (index & 1) != 0;
+            int other = south ? corner - cols : corner - 1;
+            int a = find(parent, corner);
+            int b = find(parent, other);
+            if (a != b) {
+                parent[a] = b;
+            } else {
+                int x = corner % cols + 1;
+                int y = corner / cols + 1;
+                grid.setWall(x, y, south ? KarelWorld.SOUTH : KarelWorld.WEST, true);
+            }
+        }
+    }
+
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
+    private int pileSize(long h) {
+        switch (beeperDistribution) {
+          case UNIFORM:
+            return 1 + (int) Long.remainderUnsigned(h, maxBeepers);
+          case GEOMETRIC:
+            int n = 1;
+            while (n < maxBeepers && n < 64 && (h & 1) != 0) {
+                n++;
+                h >>>= 1;
+            }
+            return n;
+          default:
+            return 1;
+        }
+    }
+
+    private static boolean chance(long seed, int key, int x, int y, double p) {
+        return (hash(seed, key, x, y) >>> 11) * 0x1.0p-53 < p;
+    }
+
+    private static long hash(long seed, int key, int x, int y) {
+        long h = mix(seed ^ ((long) key * 0x9E3779B97F4A7C15L));
+        return mix(h ^ (((long) x << 32) | (y & 0xFFFFFFFFL)));
+    }
+
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static double checkProbability(double p) {
+        if (p < 0 || p > 1) throw new ErrorException("Density must be between 0 and 1");
+        return p;
+    }
+
+    private void runAll(int count, final KarelGeneratorTask task) {
+        final int n = count;
+        final int chunk = Math.max(1, count / (8 * nThreads));
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int start = 0; start < n; start += chunk) {
+                final int first = start;
+                futures.add(executor.submit(new Callable<Object>() {
+                    public Object call() {
+                        for (int i = first; i < Math.min(n, first + chunk); i++) {
+                            task.run(i);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Object> future : futures) {
+                try {
+                    future.get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new ErrorException("KarelWorldGenerator: Interrupted");
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof ErrorException) throw (ErrorException) cause;
+                    throw new ErrorException("" + cause);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+/* Private constants */
+
+    private static final int SIZE_KEY = 1;
+    private static final int WEST_WALL_KEY = 2;
+    private static final int SOUTH_WALL_KEY = 3;
+    private static final int BEEPER_KEY = 4;
+    private static final int PILE_KEY = 5;
+    private static final int KAREL_KEY = 6;
+
+    private static final int INDEX_BITS = 23;
+    private static final int WEIGHT_BITS = 63 - INDEX_BITS;
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    private static final int[] DIRECTIONS = {
+        KarelWorld.NORTH, KarelWorld.EAST, KarelWorld.SOUTH, KarelWorld.WEST
+    };
+
+/* Private state */
+
+    private int nThreads;
+    private int minCols, maxCols, minRows, maxRows;
+    private boolean mazeFlag;
+    private double wallDensity;
+    private double beeperDensity;
+    private int beeperDistribution;
+    private int maxBeepers;
+    private boolean randomKarelFlag;
+    private int karelBeepers;
+}
+
+/*
+ * Interface: KarelGeneratorTask
+ * -----------------------------
+ * This interface describes the work done for each seed by generateAll
+ * and saveAll.
+ */
+interface KarelGeneratorTask {
+    public void run(int i);
+}
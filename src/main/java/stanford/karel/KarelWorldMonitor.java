@@ -0,0 +1,69 @@
+/*
+ * File: KarelWorldMonitor.java
+ * ----------------------------
+ * This file defines the interface through which a KarelWorld reports
+ * editing actions and Karel's steps to the control panel.
+ */
+
+package stanford.karel;
+
+import java.awt.*;
+
+/* Interface: KarelWorldMonitor */
+/**
+ * A <code>KarelWorldMonitor</code> is told about the editing actions and
+ * steps of a <code>KarelWorld</code>, and supplies the speed at which the
+ * world runs.
+ */
+interface KarelWorldMonitor {
+
+/*
+ * Method: startWorldEdit
+ * Usage: startWorldEdit();
+ * ------------------------
+ * This action is invoked at the beginning of an editing session.
+ */
+    public void startWorldEdit();
+
+/* Method: endWorldEdit */
+/**
+ * This action is invoked at the end of an editing session.
+ */
+    public void endWorldEdit();
+
+/* Method: wallAction */
+/**
+ * This action is invoked when the mouse is clicked on a wall, which
+ * is the wall in the indicated direction from the Karel coordinates
+ * given by pt.
+ */
+    public void wallAction(Point pt, int dir);
+
+/* Method: cornerAction */
+/**
+ * This action is invoked when the mouse is clicked on a corner, which
+ * is the wall in the indicated direction from the given point.
+ */
+    public void cornerAction(Point pt);
+
+/* Method: trace */
+/**
+ * This action is invoked when karel executes an instruction.
+ */
+    public void trace();
+
+/* Method: setSpeed */
+/**
+ * This method is invoked when a world map file needs to set the simulation
+ * speed.
+ */
+    public void setSpeed(double speed);
+
+/* Method: getSpeed */
+/**
+ * This method is invoked when the KarelWorld class needs to get the simulation
+ * speed.
+ */
+    public double getSpeed();
+
+}
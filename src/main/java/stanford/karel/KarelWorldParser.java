@@ -0,0 +1,386 @@
+/*
+ * File: KarelWorldParser.java
+ * ---------------------------
+ * This file implements the parser for the text format of Karel world
+ * files.  The parser makes a single pass over the characters of the
+ * file, recognizing tokens in place instead of building strings, and
+ * applies each command to the world as soon as its line is complete.
+ * Errors are reported with the line and column at which they occur.
+ */
+
+package stanford.karel;
+
+import acm.util.*;
+import java.awt.*;
+import java.nio.*;
+
+class KarelWorldParser {
+
+/* Constructor */
+
+    public KarelWorldParser(KarelWorld world) {
+        this.world = world;
+    }
+
+/*
+ * Method: parse
+ * Usage: parser.parse(text);
+ * --------------------------
+ * Parses the text of a world file and applies its commands to the world.
+ * The text may be a String, a StringBuilder, or a CharBuffer wrapping a
+ * char array.  A missing newline at the end of the last line is allowed.
+ */
+    public void parse(CharSequence text) {
+        this.text = text;
+        pos = 0;
+        end = text.length();
+        line = 1;
+        lineStart = 0;
+        lastKarel = null;
+        lastBeeperCount = KarelWorld.INFINITE;
+        while (readLine()) {
+            /* Empty */
+        }
+        this.text = null;
+    }
+
+/*
+ * Method: hasKarel
+ * Usage: if (parser.hasKarel()) ...
+ * ---------------------------------
+ * Returns true if the last text parsed contained a Karel line.
+ */
+    public boolean hasKarel() {
+        return lastKarel != null;
+    }
+
+/*
+ * Method: parse
+ * Usage: parser.parse(buffer);
+ * ----------------------------
+ * Parses a world file held in a byte buffer.  World files are ASCII, so
+ * each byte is treated as one character.
+ */
+    public void parse(ByteBuffer buffer) {
+        parse(new ByteSequence(buffer));
+    }
+
+/* Commands */
+
+    private boolean readLine() {
+        int token = nextToken();
+        if (token == EOF) return false;
+        if (token == EOL) return true;
+        if (token != WORD) throw error("Illegal character '" + (char) token + "'");
+        int cmdStart = tokenStart;
+        int cmdLength = tokenLength;
+        if (nextToken() != ':') {
+            throw error("Missing colon after " + lowerCase(cmdStart, cmdLength), cmdStart);
+        }
+        if (matches(cmdStart, cmdLength, "dimension")) {
+            dimensionCommand();
+        } else if (matches(cmdStart, cmdLength, "karel") || matches(cmdStart, cmdLength, "turtle")) {
+            karelCommand();
+        } else if (matches(cmdStart, cmdLength, "wall")) {
+            wallCommand();
+        } else if (matches(cmdStart, cmdLength, "mark") || matches(cmdStart, cmdLength, "color")) {
+            colorCommand();
+        } else if (matches(cmdStart, cmdLength, "speed")) {
+            speedCommand();
+        } else if (matches(cmdStart, cmdLength, "beeper")) {
+            beeperCommand();
+        } else if (matches(cmdStart, cmdLength, "beeperbag")) {
+            beeperBagCommand();
+        } else {
+            throw error("Illegal command: " + lowerCase(cmdStart, cmdLength), cmdStart);
+        }
+        return true;
+    }
+
+    private void dimensionCommand() {
+        verifyToken('(');
+        int cols = scanInt();
+        verifyToken(',');
+        int rows = scanInt();
+        verifyToken(')');
+        verifyEndOfLine();
+        world.init(cols, rows);
+    }
+
+    private void karelCommand() {
+        int x = scanX();
+        int y = scanY();
+        int dir = scanDirection();
+        int nBeepers = lastBeeperCount;
+        int token = nextToken();
+        if (token == WORD) {
+            if (isInfinite()) {
+                nBeepers = KarelWorld.INFINITE;
+            } else {
+                nBeepers = tokenInt("Illegal beeper bag value");
+            }
+            token = nextToken();
+        }
+        if (token != EOL && token != EOF) throw error("Unexpected tokens at end of line");
+        lastKarel = world.getKarel();
+        lastKarel.setLocation(x, y);
+        lastKarel.setDirection(dir);
+        lastKarel.setBeepersInBag(nBeepers);
+    }
+
+    private void wallCommand() {
+        int x = scanX();
+        int y = scanY();
+        int dir = scanDirection();
+        verifyEndOfLine();
+        world.setWall(x, y, dir);
+    }
+
+    private void colorCommand() {
+        int x = scanX();
+        int y = scanY();
+        Color color = null;
+        int token = nextToken();
+        if (token != EOL && token != EOF) {
+            if (token != WORD) throw error("Missing color name");
+            color = KarelWorld.decodeColor(lowerCase(tokenStart, tokenLength));
+            verifyEndOfLine();
+        }
+        world.setCornerColor(x, y, color);
+    }
+
+    private void speedCommand() {
+        if (nextToken() != WORD) throw error("I expected a number");
+        double speed;
+        try {
+            speed = Double.parseDouble(text.subSequence(tokenStart, tokenStart + tokenLength).toString());
+        } catch (NumberFormatException ex) {
+            throw error("Illegal speed");
+        }
+        verifyEndOfLine();
+        KarelWorldMonitor monitor = world.getMonitor();
+        if (monitor != null) monitor.setSpeed(speed);
+    }
+
+    private void beeperBagCommand() {
+        if (nextToken() != WORD) throw error("Illegal beeper count");
+        int nBeepers = isInfinite() ? KarelWorld.INFINITE : tokenInt("Illegal integer");
+        verifyEndOfLine();
+        if (lastKarel == null) {
+            lastBeeperCount = nBeepers;
+        } else {
+            lastKarel.setBeepersInBag(nBeepers);
+        }
+    }
+
+    private void beeperCommand() {
+        int x = scanX();
+        int y = scanY();
+        int nBeepers = 1;
+        int token = nextToken();
+        if (token != EOL && token != EOF) {
+            if (token != WORD) throw error("Illegal beeper count");
+            nBeepers = isInfinite() ? KarelWorld.INFINITE : tokenInt("Illegal integer");
+            verifyEndOfLine();
+        }
+        world.setBeepersOnCorner(x, y, nBeepers);
+    }
+
+/* Token helpers */
+
+    private int scanX() {
+        verifyToken('(');
+        int x = scanInt();
+        if (x < 1 || x > world.getColumns()) throw error("Avenue out of range", tokenStart);
+        return x;
+    }
+
+    private int scanY() {
+        verifyToken(',');
+        int y = scanInt();
+        if (y < 1 || y > world.getRows()) throw error("Street out of range", tokenStart);
+        verifyToken(')');
+        return y;
+    }
+
+    private int scanDirection() {
+        if (nextToken() != WORD) throw error("Illegal direction");
+        if (isPrefixOf("north")) return KarelWorld.NORTH;
+        if (isPrefixOf("east")) return KarelWorld.EAST;
+        if (isPrefixOf("south")) return KarelWorld.SOUTH;
+        if (isPrefixOf("west")) return KarelWorld.WEST;
+        throw error("Illegal direction " + lowerCase(tokenStart, tokenLength));
+    }
+
+    private int scanInt() {
+        if (nextToken() != WORD) throw error("I expected an integer");
+        return tokenInt("Illegal integer");
+    }
+
+    private int tokenInt(String msg) {
+        long value = 0;
+        for (int i = 0; i < tokenLength; i++) {
+            char ch = text.charAt(tokenStart + i);
+            if (ch < '0' || ch > '9') throw error(msg);
+            value = value * 10 + (ch - '0');
+            if (value > Integer.MAX_VALUE) throw error(msg);
+        }
+        return (int) value;
+    }
+
+    private boolean isInfinite() {
+        return isPrefixOf("infinite") || isPrefixOf("infinity");
+    }
+
+    private void verifyToken(int expected) {
+        if (nextToken() != expected) throw error("I expected a '" + (char) expected + "'");
+    }
+
+    private void verifyEndOfLine() {
+        int token = nextToken();
+        if (token != EOL && token != EOF) throw error("Unexpected tokens at end of line");
+    }
+
+/*
+ * Method: nextToken
+ * Usage: int token = nextToken();
+ * -------------------------------
+ * Reads the next token, which is WORD for a run of letters, digits,
+ * periods, and underscores, EOL for a newline, EOF at the end of the
+ * text, or the character itself for anything else.  Spaces, tabs, and
+ * carriage returns are skipped.  For words, the position and length
+ * of the token are left in tokenStart and tokenLength.
+ */
+    private int nextToken() {
+        while (pos < end) {
+            char ch = text.charAt(pos);
+            if (ch != ' ' && ch != '\t' && ch != '\r') break;
+            pos++;
+        }
+        tokenStart = pos;
+        if (pos == end) {
+            tokenLength = 0;
+            return EOF;
+        }
+        char ch = text.charAt(pos++);
+        if (ch == '\n') {
+            tokenLength = 1;
+            line++;
+            lineStart = pos;
+            return EOL;
+        }
+        if (!isWordChar(ch)) {
+            tokenLength = 1;
+            return ch;
+        }
+        while (pos < end && isWordChar(text.charAt(pos))) {
+            pos++;
+        }
+        tokenLength = pos - tokenStart;
+        return WORD;
+    }
+
+    private static boolean isWordChar(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9')
+            || ch == '.' || ch == '_';
+    }
+
+    private boolean matches(int start, int length, String word) {
+        return length == word.length() && regionMatches(start, length, word);
+    }
+
+    private boolean isPrefixOf(String word) {
+        return tokenLength <= word.length() && regionMatches(tokenStart, tokenLength, word);
+    }
+
+    private boolean regionMatches(int start, int length, String word) {
+        for (int i = 0; i < length; i++) {
+            if (Character.toLowerCase(text.charAt(start + i)) != word.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private String lowerCase(int start, int length) {
+        return text.subSequence(start, start + length).toString().toLowerCase();
+    }
+
+/* Error reporting */
+
+    private ErrorException error(String msg) {
+        return error(msg, tokenStart);
+    }
+
+    private ErrorException error(String msg, int where) {
+        int errorLine = line;
+        int errorLineStart = lineStart;
+        if (where < lineStart) {
+            errorLine--;
+            errorLineStart = where;
+            while (errorLineStart > 0 && text.charAt(errorLineStart - 1) != '\n') {
+                errorLineStart--;
+            }
+        }
+        return new ErrorException(msg + " (line " + errorLine + ", column "
+                                  + (where - errorLineStart + 1) + ")");
+    }
+
+/* Private constants */
+
+    private static final int EOF = -1;
+    private static final int EOL = -2;
+    private static final int WORD = -3;
+
+/* Private state */
+
+    private KarelWorld world;
+    private CharSequence text;
+    private int pos, end;
+    private int line, lineStart;
+    private int tokenStart, tokenLength;
+    private Karel lastKarel;
+    private int lastBeeperCount;
+}
+
+/*
+ * Class: ByteSequence
+ * -------------------
+ * This class presents the remaining bytes of a ByteBuffer as a sequence
+ * of ASCII characters without copying them.
+ */
+class ByteSequence implements CharSequence {
+
+    public ByteSequence(ByteBuffer buffer) {
+        this(buffer, buffer.position(), buffer.limit());
+    }
+
+    private ByteSequence(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    public char charAt(int index) {
+        return (char) (buffer.get(start + index) & 0xFF);
+    }
+
+    public CharSequence subSequence(int from, int to) {
+        return new ByteSequence(buffer, start + from, start + to);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder(length());
+        for (int i = start; i < end; i++) {
+            sb.append((char) (buffer.get(i) & 0xFF));
+        }
+        return sb.toString();
+    }
+
+/* Private state */
+
+    private ByteBuffer buffer;
+    private int start, end;
+}
@@ -0,0 +1,386 @@
+/*
+ * File: KarelWorldRenderer.java
+ * -----------------------------
+ * This file implements the off-screen renderer for Karel worlds, which
+ * draws a world into an image without a window or any other component.
+ */
+
+package stanford.karel;
+
+import acm.util.*;
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/* Class: KarelWorldRenderer */
+/**
+ * A <code>KarelWorldRenderer</code> draws the state of a world into a
+ * <code>BufferedImage</code> with the same routines that
+ * <code>KarelWorldView</code> uses on the screen, so that pictures of
+ * worlds can be made where there is no display at all:
+ *
+ * <p><pre><code>
+ * &nbsp;    KarelWorldRenderer renderer = new KarelWorldRenderer(30);
+ * &nbsp;    MediaTools.saveImage(renderer.render(world), "before.png");
+ * </code></pre>
+ *
+ * <p>The image holds the whole world at a fixed square size, with the
+ * numbers of the avenues and streets along the bottom and left edges.
+ * Renderers work from snapshots, which never change, so many snapshots
+ * can be rendered at once; <code>saveImages</code> renders a list of
+ * snapshots across all available processors and saves each image to its
+ * own file.  A single renderer, however, caches the images of Karel and
+ * the beepers it draws and must not be used by more than one thread at a
+ * time.
+ */
+public class KarelWorldRenderer {
+
+    public static final int DEFAULT_SQUARE_SIZE = 30;
+
+/* Constructor: KarelWorldRenderer() */
+/**
+ * Creates a renderer that draws corners DEFAULT_SQUARE_SIZE pixels wide.
+ */
+    public KarelWorldRenderer() {
+        this(DEFAULT_SQUARE_SIZE);
+    }
+
+/* Constructor: KarelWorldRenderer(sqSize) */
+/**
+ * Creates a renderer that draws corners of the specified size in pixels.
+ */
+    public KarelWorldRenderer(int sqSize) {
+        if (sqSize < 1) throw new ErrorException("KarelWorldRenderer: Illegal square size");
+        this.sqSize = sqSize;
+        look = KarelWorld.FANCY;
+        numberSquaresFlag = true;
+        displayOneFlag = false;
+    }
+
+    public int getSquareSize() {
+        return sqSize;
+    }
+
+    public void setLook(int look) {
+        this.look = look;
+    }
+
+    public int getLook() {
+        return look;
+    }
+
+    public void setNumberSquaresFlag(boolean flag) {
+        numberSquaresFlag = flag;
+    }
+
+    public boolean getNumberSquaresFlag() {
+        return numberSquaresFlag;
+    }
+
+/* Method: setDisplayOneFlag(flag) */
+/**
+ * Sets whether a corner with a single beeper shows the number 1, as the
+ * method of the same name in <code>KarelWorld</code> does for views.
+ */
+    public void setDisplayOneFlag(boolean flag) {
+        displayOneFlag = flag;
+    }
+
+    public boolean getDisplayOneFlag() {
+        return displayOneFlag;
+    }
+
+/* Method: getImageWidth(cols) */
+/**
+ * Returns the width of the image that this renderer makes for a world
+ * with the specified number of columns.
+ */
+    public int getImageWidth(int cols) {
+        return leftMargin() + cols * sqSize + 2;
+    }
+
+/* Method: getImageHeight(rows) */
+/**
+ * Returns the height of the image that this renderer makes for a world
+ * with the specified number of rows.
+ */
+    public int getImageHeight(int rows) {
+        return bottomMargin() + rows * sqSize + 2;
+    }
+
+/* Method: render(world) */
+/**
+ * Renders the current state of a world.  This method must be called from
+ * the thread that changes the world.
+ */
+    public BufferedImage render(KarelWorld world) {
+        return render(world.createSnapshot());
+    }
+
+/* Method: render(snapshot) */
+/**
+ * Renders a snapshot into a new image.
+ */
+    public BufferedImage render(KarelWorldSnapshot snapshot) {
+        BufferedImage image = new BufferedImage(getImageWidth(snapshot.getColumns()),
+                                                getImageHeight(snapshot.getRows()),
+                                                BufferedImage.TYPE_INT_RGB);
+        Graphics g = image.getGraphics();
+        try {
+            render(snapshot, g, image.getHeight());
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+
+/* Method: render(snapshot, g, imageHeight) */
+/**
+ * Renders a snapshot through the graphics context of an image of the
+ * specified height, which must be at least getImageHeight(rows).  The
+ * world is drawn in the lower left corner of the image.
+ */
+    public void render(KarelWorldSnapshot snapshot, Graphics g, int imageHeight) {
+        int cols = snapshot.getColumns();
+        int rows = snapshot.getRows();
+        int left = leftMargin();
+        int base = imageHeight - bottomMargin();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, getImageWidth(cols), imageHeight);
+        Point pt = new Point();
+        for (int x = 1; x <= cols; x++) {
+            for (int y = 1; y <= rows; y++) {
+                KarelWorldView.drawCornerMarker(g, left + (x - 1) * sqSize + sqSize / 2,
+                                                base - 1 - (y - 1) * sqSize - (sqSize + 1) / 2, sqSize);
+            }
+        }
+        for (int x = 1; x <= cols; x++) {
+            for (int y = 1; y <= rows; y++) {
+                if (hasWalls(snapshot, x, y)) {
+                    pt.setLocation(x, y);
+                    KarelWorldView.drawWalls(g, snapshot, pt, left + (x - 1) * sqSize,
+                                             base - 1 - y * sqSize, sqSize);
+                }
+            }
+        }
+        KarelWorldView.drawWorldFrame(g, left, base, cols, rows, sqSize, numberSquaresFlag,
+                                      1, 1, cols, rows);
+        for (int pass = 0; pass < 2; pass++) {
+            for (int x = 1; x <= cols; x++) {
+                for (int y = 1; y <= rows; y++) {
+                    int sx = left + (x - 1) * sqSize;
+                    int sy = base - 1 - y * sqSize;
+                    pt.setLocation(x, y);
+                    if (pass == 0) {
+                        if (hasContents(snapshot, x, y)) drawCorner(g, snapshot, pt, sx, sy);
+                    } else {
+                        if (hasContents(snapshot, x, y)
+                                || (hasWalls(snapshot, x, y) && nearContents(snapshot, x, y))) {
+                            KarelWorldView.drawWalls(g, snapshot, pt, sx, sy, sqSize);
+                        }
+                    }
+                }
+            }
+        }
+        KarelWorldView.drawWorldFrame(g, left, base, cols, rows, sqSize, numberSquaresFlag,
+                                      1, 1, cols, rows);
+    }
+
+/* Method: saveImages(snapshots, files) */
+/**
+ * Renders each snapshot in the list and saves it to the corresponding
+ * file using <code>MediaTools.saveImage</code>, which chooses the format
+ * from the suffix of the file name.  The snapshots are rendered in
+ * parallel on as many threads as there are processors.
+ */
+    public void saveImages(List<KarelWorldSnapshot> snapshots, List<File> files) {
+        saveImages(snapshots, files, Runtime.getRuntime().availableProcessors());
+    }
+
+/* Method: saveImages(snapshots, files, nThreads) */
+/**
+ * Renders and saves the snapshots on the specified number of threads.
+ * Each thread renders with its own copy of this renderer and saves its
+ * images as soon as they are drawn, so at most one image per thread is
+ * held in memory at a time.  If any image cannot be saved, the first such
+ * error is thrown after the remaining images have been written.
+ */
+    public void saveImages(final List<KarelWorldSnapshot> snapshots, final List<File> files,
+                           int nThreads) {
+        if (snapshots.size() != files.size()) {
+            throw new ErrorException("saveImages: Lists have different lengths");
+        }
+        if (nThreads < 1) throw new ErrorException("saveImages: Illegal thread count");
+        nThreads = Math.min(nThreads, Math.max(1, snapshots.size()));
+        final AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<ErrorException>> futures = new ArrayList<Future<ErrorException>>();
+            for (int t = 0; t < nThreads; t++) {
+                final KarelWorldRenderer renderer = copy();
+                futures.add(executor.submit(new Callable<ErrorException>() {
+                    public ErrorException call() {
+                        ErrorException error = null;
+                        for (int i = next.getAndIncrement(); i < snapshots.size();
+                             i = next.getAndIncrement()) {
+                            try {
+                                MediaTools.saveImage(renderer.render(snapshots.get(i)), files.get(i));
+                            } catch (ErrorException ex) {
+                                if (error == null) error = ex;
+                            }
+                        }
+                        return error;
+                    }
+                }));
+            }
+            ErrorException error = null;
+            for (Future<ErrorException> future : futures) {
+                try {
+                    ErrorException ex = future.get();
+                    if (error == null) error = ex;
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new ErrorException("saveImages: Interrupted");
+                } catch (ExecutionException ex) {
+                    throw new ErrorException("saveImages: " + ex.getCause());
+                }
+            }
+            if (error != null) throw error;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+/* Private methods */
+
+    private KarelWorldRenderer copy() {
+        KarelWorldRenderer renderer = new KarelWorldRenderer(sqSize);
+        renderer.look = look;
+        renderer.numberSquaresFlag = numberSquaresFlag;
+        renderer.displayOneFlag = displayOneFlag;
+        return renderer;
+    }
+
+    private int leftMargin() {
+        return (numberSquaresFlag) ? KarelWorldView.LEFT_NUMBER_MARGIN : 2;
+    }
+
+    private int bottomMargin() {
+        return (numberSquaresFlag) ? KarelWorldView.BOTTOM_NUMBER_MARGIN : 0;
+    }
+
+    private void drawCorner(Graphics g, KarelWorldSnapshot snapshot, Point pt, int x, int y) {
+        Color color = snapshot.getCornerColor(pt.x, pt.y);
+        g.setColor((color == null) ? Color.WHITE : color);
+        g.fillRect(x, y, sqSize, sqSize);
+        int nBeepers = snapshot.getBeepersOnCorner(pt.x, pt.y);
+        if (nBeepers > 0) {
+            if (nBeepers == 1 && !displayOneFlag) nBeepers = KarelWorld.BLANKB;
+            g.drawImage(getBeeperSprite(nBeepers), x - SPRITE_MARGIN, y - SPRITE_MARGIN, null);
+        }
+        int k = snapshot.getKarelOnSquare(pt.x, pt.y);
+        if (k >= 0) {
+            g.drawImage(getKarelSprite(snapshot.getKarelDirection(k)), x - SPRITE_MARGIN,
+                        y - SPRITE_MARGIN, null);
+        } else if (color == null && nBeepers == 0) {
+            KarelWorldView.drawCornerMarker(g, x + sqSize / 2, y + sqSize / 2, sqSize);
+        }
+    }
+
+/*
+ * Methods: getKarelSprite, getBeeperSprite
+ * ----------------------------------------
+ * These methods return images of Karel and of beeper piles, drawn once
+ * and then copied into place as in KarelWorldView.  The settings of a
+ * renderer do not change what is already cached, so the cache is
+ * discarded whenever the look or the labeling of single beepers changes.
+ */
+    private Image getKarelSprite(int dir) {
+        checkSpriteCache();
+        Image sprite = karelSprites[dir];
+        if (sprite == null) {
+            sprite = createSprite();
+            Graphics g = sprite.getGraphics();
+            int c = SPRITE_MARGIN + sqSize / 2;
+            KarelWorldView.drawKarelForLook(g, c, c, dir, sqSize, look);
+            g.dispose();
+            karelSprites[dir] = sprite;
+        }
+        return sprite;
+    }
+
+    private Image getBeeperSprite(int nBeepers) {
+        checkSpriteCache();
+        Image sprite = beeperSprites.get(nBeepers);
+        if (sprite == null) {
+            if (beeperSprites.size() >= MAX_BEEPER_SPRITES) beeperSprites.clear();
+            sprite = createSprite();
+            Graphics g = sprite.getGraphics();
+            int c = SPRITE_MARGIN + sqSize / 2;
+            String label = "";
+            if (sqSize > KarelWorldView.MIN_LABEL && (displayOneFlag || nBeepers != 1)) {
+                label = KarelWorldView.beeperLabel(nBeepers);
+            }
+            KarelWorldView.drawBeeper(g, c, c, sqSize, label, 1, null);
+            g.dispose();
+            beeperSprites.put(nBeepers, sprite);
+        }
+        return sprite;
+    }
+
+    private void checkSpriteCache() {
+        if (karelSprites != null && spriteLook == look && spriteDisplayOne == displayOneFlag) return;
+        spriteLook = look;
+        spriteDisplayOne = displayOneFlag;
+        karelSprites = new Image[4];
+        beeperSprites = new HashMap<Integer, Image>();
+    }
+
+    private Image createSprite() {
+        int size = sqSize + 2 * SPRITE_MARGIN;
+        return new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    private static boolean hasContents(KarelWorldSnapshot snapshot, int x, int y) {
+        return snapshot.getKarelOnSquare(x, y) >= 0 || snapshot.getCornerColor(x, y) != null
+            || snapshot.getBeepersOnCorner(x, y) != 0;
+    }
+
+    private static boolean hasWalls(KarelWorldSnapshot snapshot, int x, int y) {
+        return (x > 1 && snapshot.checkWall(x, y, KarelWorld.WEST))
+            || (y > 1 && snapshot.checkWall(x, y, KarelWorld.SOUTH))
+            || (x < snapshot.getColumns() && snapshot.checkWall(x, y, KarelWorld.EAST))
+            || (y < snapshot.getRows() && snapshot.checkWall(x, y, KarelWorld.NORTH));
+    }
+
+    private static boolean nearContents(KarelWorldSnapshot snapshot, int x, int y) {
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                if (!snapshot.outOfBounds(x + dx, y + dy) && hasContents(snapshot, x + dx, y + dy)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+/* Private constants */
+
+    private static final int SPRITE_MARGIN = 4;
+    private static final int MAX_BEEPER_SPRITES = 256;
+
+/* Private state */
+
+    private int sqSize;
+    private int look;
+    private boolean numberSquaresFlag;
+    private boolean displayOneFlag;
+    private Image[] karelSprites;
+    private HashMap<Integer, Image> beeperSprites;
+    private int spriteLook;
+    private boolean spriteDisplayOne;
+}
@@ -0,0 +1,218 @@
+/*
+ * File: KarelWorldSnapshot.java
+ * -----------------------------
+ * This file contains the class that holds an immutable copy of the state
+ * of a KarelWorld.  Snapshots let a thread other than the one running
+ * Karel look at the world without locking it: the world publishes each
+ * snapshot through a volatile field, and a snapshot never changes once
+ * it has been published.
+ */
+
+package stanford.karel;
+
+import java.awt.*;
+import java.util.*;
+
+/* Class: KarelWorldSnapshot */
+/**
+ * A <code>KarelWorldSnapshot</code> records the walls, beepers, corner
+ * colors, and robots of a world at one moment.  The grid of the snapshot
+ * shares its tiles with the world until the world changes them, so a
+ * snapshot costs little more than the state of its Karels.  The state of
+ * each Karel is copied, since <code>Karel</code> objects change as they
+ * run; the methods that describe a Karel take its index in the world.
+ */
+public class KarelWorldSnapshot {
+
+/* Package-private constructor */
+
+    KarelWorldSnapshot(KarelGrid grid, ArrayList<Karel> karelList, long version, int generation,
+                       int changeFlags, long[] changedCorners, int nChanges, long stateHash) {
+        this.grid = grid;
+        this.stateHash = stateHash;
+        this.version = version;
+        this.generation = generation;
+        this.changeFlags = changeFlags;
+        this.changedCorners = Arrays.copyOf(changedCorners, nChanges);
+        cols = grid.getColumns();
+        rows = grid.getRows();
+        int n = karelList.size();
+        karels = new Karel[n];
+        avenues = new int[n];
+        streets = new int[n];
+        directions = new int[n];
+        bags = new int[n];
+        long[] keys = new long[n];
+        int nKeys = 0;
+        for (int i = 0; i < n; i++) {
+            Karel karel = karelList.get(i);
+            karels[i] = karel;
+            avenues[i] = karel.getAvenue();
+            streets[i] = karel.getStreet();
+            directions[i] = karel.getDirection();
+            bags[i] = karel.getBeepersInBag();
+            if (!outOfBounds(avenues[i], streets[i])) {
+                keys[nKeys++] = squareKey(avenues[i], streets[i]) | i;
+            }
+        }
+        squares = Arrays.copyOf(keys, nKeys);
+        Arrays.sort(squares);
+    }
+
+    public int getColumns() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+/* Method: getVersion() */
+/**
+ * Returns the sequence number of this snapshot.  Each snapshot published
+ * by a world has a version one greater than the one before it.
+ */
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean outOfBounds(int x, int y) {
+        return x < 1 || x > cols || y < 1 || y > rows;
+    }
+
+    public boolean checkWall(int x, int y, int dir) {
+        return grid.checkWall(x, y, dir);
+    }
+
+    public int getBeepersOnCorner(int x, int y) {
+        return grid.getBeepers(x, y);
+    }
+
+    public Color getCornerColor(int x, int y) {
+        return grid.getColor(x, y);
+    }
+
+/* Karels */
+
+    public int getKarelCount() {
+        return karels.length;
+    }
+
+    public Karel getKarel(int k) {
+        return karels[k];
+    }
+
+    public int getKarelAvenue(int k) {
+        return avenues[k];
+    }
+
+    public int getKarelStreet(int k) {
+        return streets[k];
+    }
+
+    public int getKarelDirection(int k) {
+        return directions[k];
+    }
+
+    public int getKarelBeepers(int k) {
+        return bags[k];
+    }
+
+/* Method: indexOf(karel) */
+/**
+ * Returns the index of the specified Karel in this snapshot, or -1 if it
+ * was not in the world when the snapshot was taken.
+ */
+    public int indexOf(Karel karel) {
+        for (int i = 0; i < karels.length; i++) {
+            if (karels[i] == karel) return i;
+        }
+        return -1;
+    }
+
+/* Method: getKarelOnSquare(x, y) */
+/**
+ * Returns the index of the Karel on the specified square, or -1 if the
+ * square is empty.  If several Karels share a square, the one that was
+ * added to the world first is returned, as in <code>KarelWorld</code>.
+ */
+    public int getKarelOnSquare(int x, int y) {
+        if (outOfBounds(x, y)) return -1;
+        long key = squareKey(x, y);
+        int lo = 0;
+        int hi = squares.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (squares[mid] < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo < squares.length && (squares[lo] & ~INDEX_MASK) == key) {
+            return (int) (squares[lo] & INDEX_MASK);
+        }
+        return -1;
+    }
+
+/* Package-private methods */
+
+    KarelGrid getGrid() {
+        return grid;
+    }
+
+    long getStateHash() {
+        return stateHash;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    int getChangeFlags() {
+        return changeFlags;
+    }
+
+    int getChangeCount() {
+        return changedCorners.length;
+    }
+
+    int getChangedX(int i) {
+        return (int) (changedCorners[i] >> 32);
+    }
+
+    int getChangedY(int i) {
+        return (int) changedCorners[i];
+    }
+
+/* Private methods */
+
+/*
+ * Method: squareKey
+ * Usage: long key = squareKey(x, y);
+ * ----------------------------------
+ * Packs a square into the high bits of a long whose low bits hold the
+ * index of a Karel, so that sorting the keys groups the Karels by square
+ * and orders the Karels on each square by index.
+ */
+    private static long squareKey(int x, int y) {
+        return ((long) x << 47) | ((long) y << 30);
+    }
+
+/* Private constants */
+
+    private static final long INDEX_MASK = (1L << 30) - 1;
+
+/* Private state */
+
+    private final KarelGrid grid;
+    private final int cols, rows;
+    private final long version;
+    private final int generation;
+    private final long stateHash;
+    private final int changeFlags;
+    private final long[] changedCorners;
+    private final Karel[] karels;
+    private final int[] avenues, streets, directions, bags;
+    private final long[] squares;
+}
@@ -0,0 +1,228 @@
+/*
+ * File: KarelWorldTemplate.java
+ * -----------------------------
+ * This file contains the class that holds a parsed world file in a form
+ * from which any number of independent worlds can be created quickly.
+ */
+
+package stanford.karel;
+
+import acm.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+/* Class: KarelWorldTemplate */
+/**
+ * A <code>KarelWorldTemplate</code> is an immutable, parsed copy of a
+ * world file.  Loading a template into a <code>KarelWorld</code> copies
+ * its grid arrays in bulk instead of parsing the file again, which makes
+ * it cheap to run many programs against the same world:
+ *
+ * <p><pre><code>
+ * &nbsp;    KarelWorldTemplate template = KarelWorldTemplate.load(file);
+ * &nbsp;    ...
+ * &nbsp;    world.load(template);
+ * </code></pre>
+ *
+ * <p>Templates loaded from files are kept in a process-wide cache, keyed
+ * by path and checked against a hash of the file contents, so that a
+ * file is parsed again only when it changes.  Files may be in either the
+ * text format or the format defined by <code>KarelBinaryFormat</code>.
+ */
+public class KarelWorldTemplate {
+
+/* Static method: load(file) */
+/**
+ * Returns the template for the specified world file, parsing the file
+ * only if it is not already in the cache or if its contents have changed.
+ */
+    public static KarelWorldTemplate load(File file) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file.toPath());
+        } catch (IOException ex) {
+            throw new ErrorException("I/O error reading map file");
+        }
+        String path = file.getAbsolutePath();
+        long hash = contentHash(bytes);
+        KarelWorldTemplate template = cache.get(path);
+        if (template == null || template.contentHash != hash) {
+            template = new KarelWorldTemplate(ByteBuffer.wrap(bytes), file.getPath(), hash);
+            cache.put(path, template);
+        }
+        return template;
+    }
+
+/* Static method: parse(text) */
+/**
+ * Parses the text of a world file into a template.  Templates created in
+ * this way are not cached.
+ */
+    public static KarelWorldTemplate parse(CharSequence text) {
+        return new KarelWorldTemplate(text, null, 0);
+    }
+
+/* Static method: read(buffer) */
+/**
+ * Reads a template from a buffer holding a world in either the text or the
+ * binary format.  Templates created in this way are not cached.
+ */
+    public static KarelWorldTemplate read(ByteBuffer buffer) {
+        return new KarelWorldTemplate(buffer, null, 0);
+    }
+
+/* Static method: clearCache() */
+/**
+ * Removes all templates from the cache.
+ */
+    public static void clearCache() {
+        cache.clear();
+    }
+
+/* Method: createWorld() */
+/**
+ * Creates a new world containing a new <code>Karel</code> and loads it
+ * from this template.
+ */
+    public KarelWorld createWorld() {
+        return createWorld(new Karel());
+    }
+
+/* Method: createWorld(karel) */
+/**
+ * Creates a new world containing the specified Karel and loads it from
+ * this template.
+ */
+    public KarelWorld createWorld(Karel karel) {
+        KarelWorld world = new KarelWorld();
+        world.add(karel);
+        world.load(this);
+        return world;
+    }
+
+    public int getColumns() {
+        return grid.getColumns();
+    }
+
+    public int getRows() {
+        return grid.getRows();
+    }
+
+    public String getPathname() {
+        return pathname;
+    }
+
+/* Package-private methods */
+
+    KarelGrid getGrid() {
+        return grid;
+    }
+
+    boolean hasKarel() {
+        return hasKarel;
+    }
+
+    int getKarelAvenue() {
+        return karelAvenue;
+    }
+
+    int getKarelStreet() {
+        return karelStreet;
+    }
+
+    int getKarelDirection() {
+        return karelDirection;
+    }
+
+    int getKarelBeepers() {
+        return karelBeepers;
+    }
+
+    boolean hasSpeed() {
+        return hasSpeed;
+    }
+
+    double getSpeed() {
+        return speed;
+    }
+
+/* Package-private constructor */
+
+/*
+ * Constructor: KarelWorldTemplate(grid, x, y, dir, nBeepers)
+ * ----------------------------------------------------------
+ * Creates a template that holds the specified grid, which must not be
+ * changed afterwards, and places Karel as specified.  This is used by
+ * KarelWorldGenerator to build templates without going through the text
+ * of a world file.
+ */
+    KarelWorldTemplate(KarelGrid grid, int x, int y, int dir, int nBeepers) {
+        this.grid = grid;
+        pathname = null;
+        contentHash = 0;
+        hasKarel = true;
+        karelAvenue = x;
+        karelStreet = y;
+        karelDirection = dir;
+        karelBeepers = nBeepers;
+        hasSpeed = false;
+        speed = 0;
+    }
+
+/* Private constructor */
+
+    private KarelWorldTemplate(Object source, String pathname, long contentHash) {
+        this.pathname = pathname;
+        this.contentHash = contentHash;
+        KarelWorld world = new KarelWorld();
+        Karel karel = new Karel();
+        world.add(karel);
+        SpeedRecorder recorder = new SpeedRecorder();
+        world.setMonitor(recorder);
+        if (source instanceof ByteBuffer && KarelBinaryFormat.isBinary((ByteBuffer) source)) {
+            KarelBinaryFormat.read((ByteBuffer) source, world);
+            hasKarel = true;
+        } else {
+            KarelWorldParser parser = new KarelWorldParser(world);
+            if (source instanceof ByteBuffer) {
+                parser.parse((ByteBuffer) source);
+            } else {
+                parser.parse((CharSequence) source);
+            }
+            hasKarel = parser.hasKarel();
+        }
+        if (world.getGrid() == null) throw new ErrorException("World file has no dimension");
+        grid = new KarelGrid(world.getGrid());
+        karelAvenue = karel.getAvenue();
+        karelStreet = karel.getStreet();
+        karelDirection = karel.getDirection();
+        karelBeepers = karel.getBeepersInBag();
+        hasSpeed = recorder.hasSpeed;
+        speed = recorder.speed;
+    }
+
+/* Private methods */
+
+    private static long contentHash(byte[] bytes) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < bytes.length; i++) {
+            hash = (hash ^ (bytes[i] & 0xFF)) * 0x100000001B3L;
+        }
+        return hash;
+    }
+
+/* Private state */
+
+    private static ConcurrentHashMap<String, KarelWorldTemplate> cache =
+        new ConcurrentHashMap<String, KarelWorldTemplate>();
+
+    private final KarelGrid grid;
+    private final String pathname;
+    private final long contentHash;
+    private final boolean hasKarel;
+    private final int karelAvenue, karelStreet, karelDirection, karelBeepers;
+    private final boolean hasSpeed;
+    private final double speed;
+}
@@ -0,0 +1,1526 @@
+/*
+ * File: KarelWorldView.java
+ * -------------------------
+ * This file contains the canvas that displays a KarelWorld.  The view
+ * attaches itself to the world as its display and is created only when
+ * there is a screen on which to show the world.
+ *
+ * By default, the view shrinks the world to fit the canvas.  Setting a
+ * zoom turns the canvas into a viewport onto a world that may be much
+ * larger than the screen: the viewport can be scrolled, zoomed with the
+ * mouse wheel, or made to follow a Karel, and only the corners that lie
+ * within it are drawn.  When the corners become smaller than
+ * DENSITY_THRESHOLD pixels, the view switches to a density map that
+ * shades each pixel by the walls and beepers it covers.
+ *
+ * The view draws only the snapshots that the world publishes, never the
+ * world itself, so painting takes no lock that the thread running Karel
+ * could be waiting for and never shows a half-finished step.
+ */
+
+package stanford.karel;
+
+import acm.util.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.awt.image.*;
+import java.util.*;
+
+/* Class: KarelWorldView */
+/**
+ * A <code>KarelWorldView</code> is the canvas on which a
+ * <code>KarelProgram</code> shows its world.  Programs can reach it with
+ * <code>getWorldView</code> to change how the world is drawn, and can
+ * supply a subclass by overriding <code>createWorldView</code>.
+ */
+public class KarelWorldView extends Canvas implements KarelWorldDisplay {
+
+    public static final int LEFT_NUMBER_MARGIN = 16;
+    public static final int BOTTOM_NUMBER_MARGIN = 15;
+    public static final int DOUBLE_WALL_THRESHOLD = 24;
+    public static final int CROSS_THRESHOLD = 11;
+    public static final int NUMBER_THRESHOLD = 15;
+    public static final Font NUMBER_FONT = new Font("Times", Font.PLAIN, 9);
+    public static final double WALL_FRACTION = 0.30;
+    public static final double WALL_TOLERANCE = 0.15;
+
+/** @deprecated This is the display width of a world of the old maximum size. */
+    @Deprecated
+    public static final int MAX_DISPLAY_WIDTH = (6 * KarelWorld.MAX_WIDTH) + LEFT_NUMBER_MARGIN;
+
+/** @deprecated This is the display height of a world of the old maximum size. */
+    @Deprecated
+    public static final int MAX_DISPLAY_HEIGHT = (6 * KarelWorld.MAX_HEIGHT) + BOTTOM_NUMBER_MARGIN;
+
+    public static final Color BEEPER_COLOR = Color.YELLOW;
+    public static final Color MARKED_COLOR = Color.DARK_GRAY;
+    public static final int BEEPER_BORDER = 1;
+    public static final String BEEPER_FONT_FAMILY = "Times";
+    public static final int MIN_FANCY = 20;
+    public static final int MIN_BEEPER = 4;
+    public static final int MIN_LABEL = 15;
+    public static final double BEEPER_FRACTION = 0.70;
+    public static final double SIMPLE_FRACTION = 0.70;
+    public static final int DENSITY_THRESHOLD = 4;
+    public static final double MAX_ZOOM = 200;
+    public static final double ZOOM_FACTOR = 1.25;
+
+/* Constructor */
+
+    public KarelWorldView(KarelWorld world) {
+        this.world = world;
+        setBackground(Color.WHITE);
+        listener = new KarelWorldListener(this);
+        addMouseListener(listener);
+        addMouseMotionListener(listener);
+        addMouseWheelListener(listener);
+        addComponentListener(listener);
+        forcedSize = 0;
+        numberSquaresFlag = true;
+        look = FANCY;
+        alignment = CENTER;
+        setDisplayFlag(true);
+        world.setDisplay(this);
+    }
+
+    public KarelWorld getWorld() {
+        return world;
+    }
+
+    public void setDisplayFlag(boolean flag) {
+        displayFlag = flag;
+    }
+
+    public boolean getNumberSquaresFlag() {
+        return numberSquaresFlag;
+    }
+
+    public void setNumberSquaresFlag(boolean flag) {
+        numberSquaresFlag = flag;
+    }
+
+    public int getAlignment() {
+        return alignment;
+    }
+
+    public void setAlignment(int alignment) {
+        this.alignment = alignment;
+    }
+
+    public int getLook() {
+        return look;
+    }
+
+    public void setLook(int look) {
+        this.look = look;
+    }
+
+    public boolean getEditMode() {
+        return editMode;
+    }
+
+    public void setEditMode(boolean flag) {
+        editMode = flag;
+    }
+
+    public void updateEditMode(boolean flag) {
+        if (world.getMonitor() == null) throw new ErrorException("No map editor defined");
+        setEditMode(flag);
+        repaint();
+    }
+
+    public void forceSquareSize(int size) {
+        forcedSize = size;
+    }
+
+    public int getSquareSize() {
+        return sqSize;
+    }
+
+/*
+ * Method: setZoom
+ * Usage: view.setZoom(pixelsPerCorner);
+ * -------------------------------------
+ * Sets the size of a corner in pixels and turns the view into a viewport
+ * centered on the corner that is currently in the middle of the canvas.
+ * The size may be fractional; sizes below DENSITY_THRESHOLD show the
+ * world as a density map.  A zoom of zero makes the whole world fit the
+ * canvas again.
+ */
+    public void setZoom(double pixelsPerCorner) {
+        synchronized (viewLock) {
+            if (zoom == 0 && pixelsPerCorner > 0) setCenterFromView();
+            zoom = Math.min(pixelsPerCorner, MAX_ZOOM);
+            if (cols > 0 && rows > 0) computeViewport();
+        }
+        repaint();
+    }
+
+    public double getZoom() {
+        return zoom;
+    }
+
+/*
+ * Method: scrollTo
+ * Usage: view.scrollTo(x, y);
+ * ---------------------------
+ * Centers the viewport on the corner (x, y).  If the view is showing the
+ * whole world, it keeps its current corner size and becomes a viewport.
+ */
+    public void scrollTo(int x, int y) {
+        synchronized (viewLock) {
+            if (zoom == 0) zoom = scale;
+            centerX = x;
+            centerY = y;
+            if (cols > 0 && rows > 0) computeViewport();
+        }
+        repaint();
+    }
+
+/*
+ * Method: setFollowedKarel
+ * Usage: view.setFollowedKarel(karel);
+ * ------------------------------------
+ * Makes the viewport follow the specified Karel, scrolling to center it
+ * whenever it moves off the screen.  Passing null stops following.
+ * KarelProgram makes the view follow the Karel it runs for as long as
+ * the run lasts; following has an effect only while the view is zoomed.
+ */
+    public void setFollowedKarel(Karel karel) {
+        followedKarel = karel;
+        repaint();
+    }
+
+    public Karel getFollowedKarel() {
+        return followedKarel;
+    }
+
+/*
+ * Method: setFrameRate
+ * Usage: view.setFrameRate(fps);
+ * ------------------------------
+ * Switches the view between immediate and sampled updating.  With a
+ * frame rate of zero, every snapshot the world publishes requests a
+ * repaint of the corners that changed in it.  With a positive frame
+ * rate, a timer picks up the latest snapshot at most fps times per
+ * second, so intermediate states are dropped when Karel runs faster
+ * than the display.
+ */
+    public void setFrameRate(int fps) {
+        if (fps == frameRate) return;
+        frameRate = fps;
+        if (frameTimer != null) {
+            frameTimer.stop();
+            frameTimer = null;
+        }
+        if (fps > 0) {
+            frameTimer = new SwingTimer(Math.max(1, 1000 / fps), listener);
+            frameTimer.start();
+        }
+        repaint();
+    }
+
+    public int getFrameRate() {
+        return frameRate;
+    }
+
+/* KarelWorldDisplay interface */
+
+/*
+ * Method: snapshotPublished
+ * Usage: (called by the world)
+ * ----------------------------
+ * Requests a repaint for a newly published snapshot.  This method runs
+ * on the thread that changed the world, so it only asks AWT to repaint
+ * the squares that changed, or the whole canvas when the snapshot does
+ * not list individual corners; paint adopts the snapshot on the event
+ * thread.
+ */
+    public void snapshotPublished(KarelWorldSnapshot snapshot) {
+        if (frameRate > 0) return;
+        int n = snapshot.getChangeCount();
+        boolean full = densityMode || snapshot.getChangeFlags() != 0
+                       || snapshot.getGeneration() != generation || n > MAX_CORNER_REPAINTS;
+        int k = snapshot.indexOf(followedKarel);
+        if (k >= 0 && zoom > 0 && !isVisible(snapshot.getKarelAvenue(k), snapshot.getKarelStreet(k))) {
+            full = true;
+        }
+        if (full) {
+            repaint(0, 0, getWidth(), getHeight());
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            int sx = leftMargin + (snapshot.getChangedX(i) - 1) * sqSize;
+            int sy = getHeight() - bottomMargin - 1 - snapshot.getChangedY(i) * sqSize;
+            repaint(sx - 1, sy - 1, sqSize + 2, sqSize + 2);
+        }
+    }
+
+/* Painting */
+
+    public void repaint() {
+        if (world.getRepaintFlag()) {
+            synchronized (dirtyLock) {
+                rebuildFlag = true;
+            }
+            super.repaint();
+        }
+    }
+
+    public void update(Graphics g) {
+        paint(g);
+    }
+
+    public void paint(Graphics g) {
+        KarelWorldSnapshot snap = world.getSnapshot();
+        if (snap == null || !displayFlag) return;
+        Image image;
+        synchronized (viewLock) {
+            adoptSnapshot(snap);
+            int k = snapshot.indexOf(followedKarel);
+            if (k >= 0 && zoom > 0 && !isVisible(snapshot.getKarelAvenue(k), snapshot.getKarelStreet(k))) {
+                centerX = snapshot.getKarelAvenue(k);
+                centerY = snapshot.getKarelStreet(k);
+                computeViewport();
+            }
+            boolean rebuild, rebuildStatic;
+            int nCorners;
+            synchronized (dirtyLock) {
+                rebuild = rebuildFlag || offscreen == null;
+                rebuildStatic = staticFlag || staticLayer == null;
+                rebuildFlag = false;
+                staticFlag = false;
+                nCorners = takeDirtyCorners();
+            }
+            if (offscreen == null) {
+                Dimension size = getSize();
+                offscreen = createImage(size.width, size.height);
+                staticLayer = createImage(size.width, size.height);
+                rebuildStatic = true;
+            }
+            if (rebuildStatic && !densityMode) {
+                drawStaticLayer(staticLayer.getGraphics());
+                rebuild = true;
+            }
+            Graphics osg = offscreen.getGraphics();
+            if (rebuild) {
+                drawWorld(osg);
+            } else {
+                redrawCorners(osg, pendingCorners, nCorners);
+            }
+            image = offscreen;
+        }
+        world.requestSnapshot();
+        g.drawImage(image, 0, 0, this);
+    }
+
+/*
+ * Method: adoptSnapshot
+ * Usage: adoptSnapshot(snapshot);
+ * -------------------------------
+ * Makes the specified snapshot the one that the view draws.  If the world
+ * has been resized or reloaded since the last snapshot, the layout is
+ * computed again.  Otherwise, the corners listed in the snapshot are
+ * marked dirty, unless the snapshot does not directly follow the last
+ * one or does not list its changes, in which case the world is redrawn.
+ */
+    private void adoptSnapshot(KarelWorldSnapshot snap) {
+        KarelWorldSnapshot last = snapshot;
+        if (snap == last) return;
+        snapshot = snap;
+        if (last == null || snap.getGeneration() != generation) {
+            generation = snap.getGeneration();
+            layoutWorld();
+            return;
+        }
+        int flags = snap.getChangeFlags();
+        if (snap.getVersion() != last.getVersion() + 1) {
+            flags = KarelWorld.ALL_CHANGED | KarelWorld.WALLS_CHANGED;
+        }
+        if (flags == 0) {
+            for (int i = 0; i < snap.getChangeCount(); i++) {
+                markDirty(snap.getChangedX(i), snap.getChangedY(i));
+            }
+        } else {
+            synchronized (dirtyLock) {
+                rebuildFlag = true;
+                if ((flags & KarelWorld.WALLS_CHANGED) != 0) staticFlag = true;
+            }
+        }
+    }
+
+    private void layoutWorld() {
+        synchronized (dirtyLock) {
+            cols = snapshot.getColumns();
+            rows = snapshot.getRows();
+            vx0 = vy0 = 1;
+            vx1 = vy1 = 0;
+            dirtyCount = 0;
+            rebuildFlag = true;
+        }
+        centerX = (cols + 1) / 2.0;
+        centerY = (rows + 1) / 2.0;
+        editMode = false;
+        setDisplayParameters(cols, rows);
+    }
+
+/*
+ * Method: drawStaticLayer
+ * Usage: drawStaticLayer(g);
+ * --------------------------
+ * Draws the parts of the world that do not change while Karel runs: the
+ * background, the corner markers, the walls, and the frame with its
+ * numbers.  The result is kept in a separate image that is redrawn only
+ * when a wall changes, the world is loaded or resized, or the viewport
+ * moves.
+ */
+    private void drawStaticLayer(Graphics g) {
+        drawEmptyWorld(g);
+        for (int x = vx0; x <= vx1; x++) {
+            for (int y = vy0; y <= vy1; y++) {
+                if (hasWalls(x, y)) updateWalls(g, new Point(x, y));
+            }
+        }
+        drawWorldFrame(g);
+    }
+
+/*
+ * Method: drawWorld
+ * Usage: drawWorld(g);
+ * --------------------
+ * Redraws the entire world into the offscreen image by copying the static
+ * layer and drawing the beepers, colors, and Karels over it.  Filling a
+ * corner erases the parts of the walls that overlap it, which may belong
+ * to the corners around it, so the walls of those corners are drawn
+ * again afterwards.  This happens only when the world is loaded, resized,
+ * or explicitly repainted; the rest of the time, paint redraws just the
+ * corners that have changed.
+ */
+    private void drawWorld(Graphics osg) {
+        if (densityMode) {
+            drawDensityMap(osg);
+            return;
+        }
+        osg.drawImage(staticLayer, 0, 0, this);
+        for (int pass = 0; pass < 2; pass++) {
+            for (int x = vx0; x <= vx1; x++) {
+                for (int y = vy0; y <= vy1; y++) {
+                    if (pass == 0) {
+                        if (hasContents(x, y)) updateContents(osg, new Point(x, y));
+                    } else {
+                        if (hasContents(x, y) || (hasWalls(x, y) && nearContents(x, y))) {
+                            updateWalls(osg, new Point(x, y));
+                        }
+                    }
+                }
+            }
+        }
+        drawWorldFrame(osg);
+    }
+
+/*
+ * Method: redrawCorners
+ * Usage: redrawCorners(g, corners, n);
+ * ------------------------------------
+ * Redraws the listed corners over the existing offscreen image.  A corner
+ * that is now empty is restored by copying its square from the static
+ * layer; any other corner is filled and drawn again, after which the
+ * walls around it are drawn again as in drawWorld.
+ */
+    private void redrawCorners(Graphics osg, int[] corners, int n) {
+        boolean edge = false;
+        for (int i = 0; i < n; i++) {
+            int x = vx0 + corners[i] % vcols;
+            int y = vy0 + corners[i] / vcols;
+            if (hasContents(x, y)) {
+                updateContents(osg, new Point(x, y));
+                edge |= (x == 1 || y == 1 || x == cols || y == rows);
+            } else {
+                int sx = leftMargin + (x - 1) * sqSize;
+                int sy = getHeight() - bottomMargin - 1 - y * sqSize;
+                osg.drawImage(staticLayer, sx, sy, sx + sqSize, sy + sqSize,
+                              sx, sy, sx + sqSize, sy + sqSize, this);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            int x = vx0 + corners[i] % vcols;
+            int y = vy0 + corners[i] / vcols;
+            if (!hasContents(x, y)) continue;
+            for (int dx = -1; dx <= 1; dx++) {
+                for (int dy = -1; dy <= 1; dy++) {
+                    updateWalls(osg, new Point(x + dx, y + dy));
+                }
+            }
+        }
+        if (edge) drawWorldFrame(osg);
+    }
+
+    private boolean hasContents(int x, int y) {
+        return snapshot.getKarelOnSquare(x, y) >= 0 || snapshot.getCornerColor(x, y) != null
+            || snapshot.getBeepersOnCorner(x, y) != 0;
+    }
+
+    private boolean hasWalls(int x, int y) {
+        return (x > 1 && snapshot.checkWall(x, y, WEST)) || (y > 1 && snapshot.checkWall(x, y, SOUTH))
+            || (x < cols && snapshot.checkWall(x, y, EAST)) || (y < rows && snapshot.checkWall(x, y, NORTH));
+    }
+
+    private boolean nearContents(int x, int y) {
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                if (!snapshot.outOfBounds(x + dx, y + dy) && hasContents(x + dx, y + dy)) return true;
+            }
+        }
+        return false;
+    }
+
+    private void markDirty(int x, int y) {
+        synchronized (dirtyLock) {
+            if (densityMode) {
+                rebuildFlag = true;
+                return;
+            }
+            if (x < vx0 || x > vx1 || y < vy0 || y > vy1) return;
+            int k = (x - vx0) + (y - vy0) * vcols;
+            if (!dirtyFlags[k]) {
+                dirtyFlags[k] = true;
+                dirtyCorners[dirtyCount++] = k;
+            }
+        }
+    }
+
+    private int takeDirtyCorners() {
+        int n = dirtyCount;
+        int[] corners = dirtyCorners;
+        for (int i = 0; i < n; i++) {
+            dirtyFlags[corners[i]] = false;
+        }
+        dirtyCorners = pendingCorners;
+        pendingCorners = corners;
+        dirtyCount = 0;
+        return n;
+    }
+
+/*
+ * Method: drawDensityMap
+ * Usage: drawDensityMap(g);
+ * -------------------------
+ * Draws the visible part of the world when the corners are too small to
+ * show individually.  Each pixel is shaded by the fraction of the corners
+ * it covers that have walls or beepers.  Only the allocated tiles of the
+ * grid are visited, reading their planes directly, and when a whole tile
+ * falls within one pixel, the counts kept by the tile are used instead
+ * of its corners.  The walls around the edge of the world are not stored
+ * in the tiles, so they are drawn only as the frame.
+ */
+    private void drawDensityMap(Graphics osg) {
+        int w = getWidth();
+        int h = getHeight();
+        if (w <= 0 || h <= 0) return;
+        if (wallDensity == null || wallDensity.length != w * h) {
+            wallDensity = new int[w * h];
+            beeperDensity = new int[w * h];
+            densityImage = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        }
+        Arrays.fill(wallDensity, 0);
+        Arrays.fill(beeperDensity, 0);
+        KarelGrid grid = snapshot.getGrid();
+        int shift = KarelGrid.TILE_SHIFT;
+        boolean summarize = scale * KarelGrid.TILE_SIZE <= 1;
+        for (int ty = vy0 >> shift; ty <= vy1 >> shift; ty++) {
+            for (int tx = vx0 >> shift; tx <= vx1 >> shift; tx++) {
+                KarelTile tile = grid.getTile(tx, ty);
+                if (tile == null) continue;
+                int x0 = Math.max(vx0, tx << shift);
+                int x1 = Math.min(vx1, (tx << shift) + KarelGrid.TILE_SIZE - 1);
+                int y0 = Math.max(vy0, ty << shift);
+                int y1 = Math.min(vy1, (ty << shift) + KarelGrid.TILE_SIZE - 1);
+                if (summarize) {
+                    addDensity((x0 + x1) / 2, (y0 + y1) / 2, tile.wallCount, tile.beeperCount);
+                } else {
+                    for (int y = y0; y <= y1; y++) {
+                        int row = y & (KarelGrid.TILE_SIZE - 1);
+                        long walls = tile.southWalls[row] | tile.westWalls[row];
+                        if (walls == 0 && tile.beeperCount == 0) continue;
+                        for (int x = x0; x <= x1; x++) {
+                            long bit = 1L << (x & (KarelGrid.TILE_SIZE - 1));
+                            int nWalls = 0;
+                            if ((walls & bit) != 0) {
+                                if ((tile.southWalls[row] & bit) != 0) nWalls++;
+                                if ((tile.westWalls[row] & bit) != 0) nWalls++;
+                            }
+                            int nBeepers = (tile.beepers[KarelGrid.tileOffset(x, y)] == 0) ? 0 : 1;
+                            if (nWalls + nBeepers > 0) addDensity(x, y, nWalls, nBeepers);
+                        }
+                    }
+                }
+            }
+        }
+        double perPixel = Math.max(1.0, 1.0 / (scale * scale));
+        for (int k = 0; k < wallDensity.length; k++) {
+            int rgb = 0xFFFFFF;
+            if (wallDensity[k] > 0) {
+                int gray = (int) (160 * (1 - Math.min(1.0, wallDensity[k] / perPixel)));
+                rgb = (gray << 16) | (gray << 8) | gray;
+            } else if (beeperDensity[k] > 0) {
+                int blue = (int) (160 * (1 - Math.min(1.0, beeperDensity[k] / perPixel)));
+                rgb = 0xFFD000 | blue;
+            }
+            wallDensity[k] = rgb;
+        }
+        densityImage.setRGB(0, 0, w, h, wallDensity, 0, w);
+        osg.drawImage(densityImage, 0, 0, this);
+        osg.setColor(Color.BLACK);
+        for (int i = 0; i < snapshot.getKarelCount(); i++) {
+            int x = snapshot.getKarelAvenue(i);
+            int y = snapshot.getKarelStreet(i);
+            if (x < vx0 || x > vx1 || y < vy0 || y > vy1) continue;
+            osg.fillRect(screenX(x) - 1, screenY(y) - 1, 3, 3);
+        }
+        osg.drawRect(screenX(1) - 1, screenY(rows) - 1, screenX(cols) - screenX(1) + 2,
+                     screenY(1) - screenY(rows) + 2);
+    }
+
+    private void addDensity(int x, int y, int nWalls, int nBeepers) {
+        int w = getWidth();
+        int h = getHeight();
+        int px0 = leftMargin + (int) Math.floor((x - 1) * scale);
+        int px1 = Math.max(px0 + 1, leftMargin + (int) Math.floor(x * scale));
+        int py1 = getHeight() - bottomMargin - (int) Math.floor((y - 1) * scale);
+        int py0 = Math.min(py1 - 1, getHeight() - bottomMargin - (int) Math.floor(y * scale));
+        for (int py = Math.max(0, py0); py < Math.min(h, py1); py++) {
+            for (int px = Math.max(0, px0); px < Math.min(w, px1); px++) {
+                wallDensity[px + py * w] += nWalls;
+                beeperDensity[px + py * w] += nBeepers;
+            }
+        }
+    }
+
+    private int screenX(int x) {
+        return leftMargin + (int) Math.floor((x - 0.5) * scale);
+    }
+
+    private int screenY(int y) {
+        return getHeight() - bottomMargin - 1 - (int) Math.floor((y - 0.5) * scale);
+    }
+
+    private boolean isVisible(int x, int y) {
+        int sx = screenX(x);
+        int sy = screenY(y);
+        int margin = (int) Math.ceil(scale);
+        return sx >= margin && sy >= margin && sx < getWidth() - margin && sy < getHeight() - margin;
+    }
+
+/* Protected hooks */
+
+    protected void frameTimerHook() {
+        boolean changed;
+        synchronized (dirtyLock) {
+            changed = rebuildFlag || dirtyCount > 0;
+        }
+        changed |= world.getSnapshot() != snapshot;
+        if (changed) repaint(0, 0, getWidth(), getHeight());
+    }
+
+    protected void componentResizedHook() {
+        synchronized (viewLock) {
+            if (cols > 0 && rows > 0) setDisplayParameters(cols, rows);
+        }
+        repaint();
+    }
+
+    protected void mousePressedHook(MouseEvent e) {
+        dragX = e.getX();
+        dragY = e.getY();
+        if (editMode) {
+            lastClick = "";
+            Point pt = getClickCorner(e.getX(), e.getY());
+            if (pt == null) {
+                activeKarel = null;
+                checkForWallClick(e.getX(), e.getY());
+            } else {
+                activeKarel = world.getKarelOnSquare(pt.x, pt.y);
+                if (activeKarel == null) checkForCornerClick(pt);
+            }
+        }
+    }
+
+    protected void mouseDraggedHook(MouseEvent e) {
+        if (!editMode) {
+            if (zoom > 0) {
+                synchronized (viewLock) {
+                    centerX -= (e.getX() - dragX) / scale;
+                    centerY += (e.getY() - dragY) / scale;
+                    computeViewport();
+                }
+                dragX = e.getX();
+                dragY = e.getY();
+                repaint();
+            }
+            return;
+        }
+        if (activeKarel != null) {
+            Point pt = getClickCorner(e.getX(), e.getY());
+            if (pt != null && !pt.equals(activeKarel.getLocation())) {
+                activeKarel.setLocation(pt);
+                world.repaint();
+            }
+        } else {
+            if (!checkForWallClick(e.getX(), e.getY())) checkForCornerClick(e.getX(), e.getY());
+        }
+    }
+
+/*
+ * Method: mouseWheelHook
+ * Usage: mouseWheelHook(e);
+ * -------------------------
+ * Zooms in or out around the mouse position, so that the corner under
+ * the mouse stays where it is.  Zooming out as far as the whole world
+ * returns the view to its default fitted layout.
+ */
+    protected void mouseWheelHook(MouseWheelEvent e) {
+        if (editMode || cols == 0) return;
+        synchronized (viewLock) {
+            if (zoom == 0) setCenterFromView();
+            double newScale = scale * Math.pow(ZOOM_FACTOR, -e.getWheelRotation());
+            double dx = e.getX() - getWidth() / 2;
+            double dy = e.getY() - getHeight() / 2;
+            double wx = centerX + dx / scale;
+            double wy = centerY - dy / scale;
+            if (newScale <= fitScale()) {
+                zoom = 0;
+            } else {
+                zoom = Math.min(newScale, MAX_ZOOM);
+                centerX = wx - dx / zoom;
+                centerY = wy + dy / zoom;
+            }
+            computeViewport();
+        }
+        repaint();
+    }
+
+/* Click handling methods */
+
+    private boolean checkForWallClick(int mx, int my) {
+        if (densityMode) return false;
+        double sx = (double) (mx - leftMargin + sqSize / 2) / sqSize;
+        double sy = (double) (getHeight() - my - bottomMargin - 1 + sqSize / 2) / sqSize;
+        int tx = (int) (sx + 0.5);
+        int ty = (int) (sy + 0.5);
+        int dir;
+        if (Math.abs(Math.abs(sx - tx) - 0.5) <= WALL_TOLERANCE && Math.abs(sy - ty) < WALL_FRACTION) {
+            if (tx > sx) tx--;
+            if (tx < 0 || tx > cols || ty < 1 || ty > rows) return false;
+            dir = EAST;
+        } else if (Math.abs(Math.abs(sy - ty) - 0.5) <= WALL_TOLERANCE && Math.abs(sx - tx) < WALL_FRACTION) {
+            if (ty > sy) ty--;
+            if (tx < 1 || tx > cols || ty < 0 || ty > rows) return false;
+            dir = NORTH;
+        } else {
+            return false;
+        }
+        String click = tx + "/" + ty + "/" + dir;
+        if (!click.equals(lastClick)) {
+            KarelWorldMonitor monitor = world.getMonitor();
+            if (monitor != null) monitor.wallAction(new Point(tx, ty), dir);
+            lastClick = click;
+        }
+        return true;
+    }
+
+    private boolean checkForCornerClick(int mx, int my) {
+        return checkForCornerClick(getClickCorner(mx, my));
+    }
+
+    private boolean checkForCornerClick(Point pt) {
+        if (pt == null) return false;
+        String click = pt.x + "/" + pt.y;
+        if (!click.equals(lastClick)) {
+            KarelWorldMonitor monitor = world.getMonitor();
+            if (monitor != null) monitor.cornerAction(pt);
+            lastClick = click;
+        }
+        return true;
+    }
+
+    private Point getClickCorner(int mx, int my) {
+        if (densityMode) return null;
+        double sx = (double) (mx - leftMargin + sqSize / 2) / sqSize;
+        double sy = (double) (getHeight() - my - bottomMargin - 1 + sqSize / 2) / sqSize;
+        int tx = (int) (sx + 0.5);
+        int ty = (int) (sy + 0.5);
+        if (tx < 1 || tx > cols || ty < 1 || ty > rows) return null;
+        if (Math.abs(Math.abs(sx - tx) - 0.5) * sqSize <= 1) return null;
+        if (Math.abs(Math.abs(sy - ty) - 0.5) * sqSize <= 1) return null;
+        return new Point(tx, ty);
+    }
+
+/* Drawing methods */
+
+    private void setDisplayParameters(int cols, int rows) {
+        offscreen = null;
+        computeViewport();
+    }
+
+/*
+ * Method: computeViewport
+ * Usage: computeViewport();
+ * -------------------------
+ * Computes the corner size and the position of the world on the canvas,
+ * followed by the range of corners that are visible.  The dirty corners
+ * are tracked only within that range, so the tracking arrays depend on
+ * the size of the canvas rather than the size of the world.
+ */
+    private void computeViewport() {
+        int usableWidth = getSize().width - ((numberSquaresFlag) ? LEFT_NUMBER_MARGIN : 2);
+        int usableHeight = getHeight() - ((numberSquaresFlag) ? BOTTOM_NUMBER_MARGIN : 0) - 2;
+        if (zoom > 0) {
+            scale = zoom;
+        } else if (forcedSize > 0) {
+            scale = forcedSize;
+        } else {
+            scale = fitScale();
+        }
+        densityMode = scale < DENSITY_THRESHOLD;
+        sqSize = (int) scale;
+        if (!densityMode) scale = sqSize;
+        width = cols * sqSize;
+        height = rows * sqSize;
+        if (zoom > 0 || densityMode) {
+            if (zoom == 0) {
+                centerX = (cols + 1) / 2.0;
+                centerY = (rows + 1) / 2.0;
+            }
+            leftMargin = getWidth() / 2 - (int) Math.round((centerX - 0.5) * scale);
+            bottomMargin = getHeight() - getHeight() / 2 - 1 - (int) Math.round((centerY - 0.5) * scale);
+        } else {
+            switch (alignment) {
+              case NORTHWEST: case WEST: case SOUTHWEST:
+                leftMargin = (numberSquaresFlag) ? LEFT_NUMBER_MARGIN : 2;
+                break;
+              case NORTH: case CENTER: case SOUTH:
+                leftMargin = ((numberSquaresFlag) ? LEFT_NUMBER_MARGIN : 2) + (usableWidth - width) / 2;
+                break;
+              case NORTHEAST: case EAST: case SOUTHEAST:
+                leftMargin = getSize().width - width - 1;
+                break;
+            }
+            switch (alignment) {
+              case NORTHWEST: case NORTH: case NORTHEAST:
+                bottomMargin = getHeight() - height - 2;
+                break;
+              case WEST: case CENTER: case EAST:
+                bottomMargin = ((numberSquaresFlag) ? BOTTOM_NUMBER_MARGIN : 0) + (usableHeight - height) / 2;
+                break;
+              case SOUTHWEST: case SOUTH: case SOUTHEAST:
+                bottomMargin = (numberSquaresFlag) ? BOTTOM_NUMBER_MARGIN : 0;
+                break;
+            }
+        }
+        synchronized (dirtyLock) {
+            vx0 = Math.max(1, (int) Math.floor(-leftMargin / scale));
+            vx1 = Math.min(cols, (int) Math.floor((getWidth() - 1 - leftMargin) / scale) + 2);
+            vy0 = Math.max(1, (int) Math.floor((-bottomMargin - 1) / scale));
+            vy1 = Math.min(rows, (int) Math.floor((getHeight() - bottomMargin - 2) / scale) + 2);
+            vcols = Math.max(0, vx1 - vx0 + 1);
+            int size = densityMode ? 0 : vcols * Math.max(0, vy1 - vy0 + 1);
+            if (dirtyFlags == null || dirtyFlags.length != size) {
+                dirtyFlags = new boolean[size];
+                dirtyCorners = new int[size];
+                pendingCorners = new int[size];
+            } else {
+                Arrays.fill(dirtyFlags, false);
+            }
+            dirtyCount = 0;
+            rebuildFlag = true;
+            staticFlag = true;
+        }
+    }
+
+    private double fitScale() {
+        int usableWidth = getSize().width - ((numberSquaresFlag) ? LEFT_NUMBER_MARGIN : 2);
+        int usableHeight = getHeight() - ((numberSquaresFlag) ? BOTTOM_NUMBER_MARGIN : 0) - 2;
+        return Math.min((double) usableWidth / cols, (double) usableHeight / rows);
+    }
+
+    private void setCenterFromView() {
+        centerX = (getWidth() / 2 - leftMargin) / scale + 0.5;
+        centerY = (getHeight() - bottomMargin - 1 - getHeight() / 2) / scale + 0.5;
+    }
+
+    private void drawEmptyWorld(Graphics g) {
+        if (g == null) return;
+        Dimension size = getSize();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, size.width, size.height);
+        g.setColor(Color.BLACK);
+        int x = leftMargin + sqSize / 2 + (vx0 - 1) * sqSize;
+        for (int ix = vx0; ix <= vx1; ix++) {
+            int y = getHeight() - bottomMargin - (sqSize + 1) / 2 - 1 - (vy0 - 1) * sqSize;
+            for (int iy = vy0; iy <= vy1; iy++) {
+                drawCornerMarker(g, x, y);
+                y -= sqSize;
+            }
+            x += sqSize;
+        }
+    }
+
+    private void drawWorldFrame(Graphics g) {
+        if (g == null) return;
+        drawWorldFrame(g, leftMargin, getHeight() - bottomMargin, cols, rows, sqSize,
+                       numberSquaresFlag, vx0, vy0, vx1, vy1);
+    }
+
+/*
+ * Method: drawWorldFrame
+ * Usage: drawWorldFrame(g, x, y, cols, rows, sqSize, numbered, x0, y0, x1, y1);
+ * -----------------------------------------------------------------------------
+ * Draws the frame around a world of the specified size whose lower left
+ * corner lies at (x, y), numbering the avenues from x0 to x1 and the
+ * streets from y0 to y1 if numbered is true and the squares are large
+ * enough to hold the numbers.
+ */
+    static void drawWorldFrame(Graphics g, int x, int y, int cols, int rows, int sqSize,
+                               boolean numbered, int x0, int y0, int x1, int y1) {
+        int width = cols * sqSize;
+        int height = rows * sqSize;
+        int top = y - 1 - height;
+        g.setColor(Color.BLACK);
+        if (sqSize >= DOUBLE_WALL_THRESHOLD) {
+            g.drawRect(x, top, width - 1, height - 1);
+            g.drawRect(x - 1, top - 1, width + 1, height + 1);
+        } else {
+            g.drawRect(x - 1, top - 1, width, height);
+        }
+        if (sqSize > NUMBER_THRESHOLD && numbered) {
+            g.setFont(NUMBER_FONT);
+            FontMetrics fm = g.getFontMetrics();
+            int lx = x + sqSize / 2 + (x0 - 1) * sqSize;
+            for (int ix = x0; ix <= x1; ix++) {
+                String label = "" + ix;
+                g.drawString(label, lx - fm.stringWidth(label) / 2, y + 10);
+                lx += sqSize;
+            }
+            int ly = y - sqSize / 2 + 2 - (y0 - 1) * sqSize;
+            for (int iy = y0; iy <= y1; iy++) {
+                g.drawString("" + iy, x - 3 - fm.stringWidth("" + iy), ly);
+                ly -= sqSize;
+            }
+        }
+    }
+
+    public void updateContents(Graphics g, Point pt) {
+        if (g == null) return;
+        if (snapshot.outOfBounds(pt.x, pt.y)) return;
+        int x = leftMargin + (pt.x - 1) * sqSize;
+        int y = getHeight() - bottomMargin - 1 - pt.y * sqSize;
+        drawCorner(g, x, y, pt);
+    }
+
+    public void drawCorner(Graphics g, int x, int y, Point pt) {
+        if (g == null) return;
+        int sqSize = getSquareSize();
+        Color color = snapshot.getCornerColor(pt.x, pt.y);
+        g.setColor((color == null) ? Color.WHITE : color);
+        g.fillRect(x, y, sqSize, sqSize);
+        int cx = x + sqSize / 2;
+        int cy = y + sqSize / 2;
+        int nBeepers = snapshot.getBeepersOnCorner(pt.x, pt.y);
+        if (nBeepers > 0) {
+            if (nBeepers == 1 && !world.getDisplayOneFlag()) nBeepers = BLANKB;
+            g.drawImage(getBeeperSprite(nBeepers), x - SPRITE_MARGIN, y - SPRITE_MARGIN, this);
+        }
+        int k = snapshot.getKarelOnSquare(pt.x, pt.y);
+        if (k >= 0) {
+            g.drawImage(getKarelSprite(snapshot.getKarelDirection(k)), x - SPRITE_MARGIN, y - SPRITE_MARGIN, this);
+        } else {
+            if (color == null && nBeepers == 0) drawCornerMarker(g, cx, cy);
+        }
+    }
+
+/*
+ * Methods: getKarelSprite, getBeeperSprite
+ * ----------------------------------------
+ * These methods return images of Karel facing in the specified direction
+ * and of a beeper pile of the specified size, drawn for the current
+ * square size and look.  Each image is drawn once, with the same code
+ * that would otherwise run for every corner, and then copied into place;
+ * the center of the square lies at (SPRITE_MARGIN + sqSize / 2) in both
+ * coordinates.  The cache is discarded when the square size, the look,
+ * or the labeling of single beepers changes.
+ */
+    private Image getKarelSprite(int dir) {
+        checkSpriteCache();
+        Image sprite = karelSprites[dir];
+        if (sprite == null) {
+            sprite = createSprite();
+            Graphics g = sprite.getGraphics();
+            int c = SPRITE_MARGIN + sqSize / 2;
+            drawKarel(g, c, c, dir, sqSize);
+            g.dispose();
+            karelSprites[dir] = sprite;
+        }
+        return sprite;
+    }
+
+    private Image getBeeperSprite(int nBeepers) {
+        checkSpriteCache();
+        Image sprite = beeperSprites.get(nBeepers);
+        if (sprite == null) {
+            if (beeperSprites.size() >= MAX_BEEPER_SPRITES) beeperSprites.clear();
+            sprite = createSprite();
+            Graphics g = sprite.getGraphics();
+            int c = SPRITE_MARGIN + sqSize / 2;
+            drawBeeperForStyle(g, c, c, sqSize, nBeepers, 1);
+            g.dispose();
+            beeperSprites.put(nBeepers, sprite);
+        }
+        return sprite;
+    }
+
+    private void checkSpriteCache() {
+        if (spriteSize == sqSize && spriteLook == look && spriteDisplayOne == world.getDisplayOneFlag()) {
+            return;
+        }
+        spriteSize = sqSize;
+        spriteLook = look;
+        spriteDisplayOne = world.getDisplayOneFlag();
+        karelSprites = new Image[4];
+        beeperSprites = new HashMap<Integer, Image>();
+    }
+
+    private Image createSprite() {
+        int size = sqSize + 2 * SPRITE_MARGIN;
+        GraphicsConfiguration gc = getGraphicsConfiguration();
+        if (gc != null) return gc.createCompatibleImage(size, size, Transparency.BITMASK);
+        return new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    public static void drawMarkedCorner(Graphics g, int x, int y, int size) {
+        if (g == null) return;
+        int inset = Math.max(2, size / 5);
+        g.setColor(Color.WHITE);
+        g.fillRect(x, y, size, size);
+        g.setColor(MARKED_COLOR);
+        g.fillRect(x + inset, y + inset, size - 2 * inset, size - 2 * inset);
+    }
+
+/*
+ * Method: drawKarelForLook
+ * Usage: drawKarelForLook(g, x, y, dir, size, look);
+ * --------------------------------------------------
+ * Draws Karel as drawKarel does in a view with the specified look, for
+ * callers that have no view.
+ */
+    static void drawKarelForLook(Graphics g, int x, int y, int dir, int size, int look) {
+        if (size < MIN_FANCY || look == SIMPLE) {
+            drawSimpleKarel(g, x, y, dir, size, Color.WHITE);
+        } else {
+            drawFancyKarel(g, x, y, dir, size - KAREL_INSET, Color.WHITE);
+        }
+    }
+
+    public void drawKarel(Graphics g, int x, int y, int dir, int size) {
+        if (g == null) return;
+        drawKarelForLook(g, x, y, dir, size, getLook());
+    }
+
+    public void drawSimpleKarel(Graphics g, int x, int y, int dir, int size) {
+        drawSimpleKarel(g, x, y, dir, size, Color.WHITE);
+    }
+
+    public static void drawSimpleKarel(Graphics g, int x, int y, int dir, int size, Color color) {
+        if (g == null) return;
+        size = (int) Math.round(size * SIMPLE_FRACTION);
+        if (size % 2 == 0) size--;
+        int half = (size + 1) / 2;
+        for (int pass = 1; pass <= 2; pass++) {
+            KarelRegion r = new KarelRegion();
+            r.setOrigin(x, y, -half, -half, dir);
+            r.addVector(half, 0, dir);
+            r.addVector(half, half, dir);
+            r.addVector(-half, half, dir);
+            r.addVector(-half, 0, dir);
+            r.addVector(0, -size, dir);
+            if (pass == 1) {
+                g.setColor(color);
+                g.fillPolygon(r.getPolygon());
+            } else {
+                g.setColor(Color.BLACK);
+                g.drawPolygon(r.getPolygon());
+            }
+        }
+    }
+
+    public void drawFancyKarel(Graphics g, int x, int y, int dir, int size) {
+        drawFancyKarel(g, x, y, dir, size - KAREL_INSET, Color.WHITE);
+    }
+
+    public static void drawFancyKarel(Graphics g, int x, int y, int dir, int size, Color color) {
+        if (g == null) return;
+        for (int pass = 1; pass <= 2; pass++) {
+            KarelRegion r = new KarelRegion();
+            r.setOrigin(x, y, BODY_OFFSET_X * size, BODY_OFFSET_Y * size + LOWER_NOTCH * size, dir);
+            int sx = r.getCurrentX();
+            int sy = r.getCurrentY();
+            g.setColor((pass == 1) ? color : Color.BLACK);
+            r.addVector(0, BODY_HEIGHT * size - LOWER_NOTCH * size, dir);
+            r.addVector(BODY_WIDTH * size - UPPER_NOTCH * size, 0, dir);
+            r.addVector(UPPER_NOTCH * size, -UPPER_NOTCH * size, dir);
+            r.addVector(0, -(BODY_HEIGHT * size - UPPER_NOTCH * size), dir);
+            r.addVector(-(BODY_WIDTH * size - LOWER_NOTCH * size), 0, dir);
+            r.addVector(-LOWER_NOTCH * size, LOWER_NOTCH * size, dir);
+            if (pass == 1) {
+                r.getPolygon().addPoint(sx, sy);
+                r.addVector((SCREEN_OFFSET_X - BODY_OFFSET_X) * size,
+                            (SCREEN_OFFSET_Y - BODY_OFFSET_Y - LOWER_NOTCH) * size, dir);
+            } else {
+                g.drawPolygon(r.getPolygon());
+                r = new KarelRegion();
+                r.setOrigin(sx, sy, (SCREEN_OFFSET_X - BODY_OFFSET_X) * size,
+                            (SCREEN_OFFSET_Y - BODY_OFFSET_Y - LOWER_NOTCH) * size, dir);
+            }
+            r.addVector(SCREEN_WIDTH * size, 0, dir);
+            r.addVector(0, SCREEN_HEIGHT * size, dir);
+            r.addVector(-SCREEN_WIDTH * size, 0, dir);
+            r.addVector(0, -SCREEN_HEIGHT * size, dir);
+            if (pass == 1) {
+                r.getPolygon().addPoint(sx, sy);
+                g.fillPolygon(r.getPolygon());
+                r = new KarelRegion();
+                r.setOrigin(sx, sy, (SCREEN_OFFSET_X - BODY_OFFSET_X) * size - 1,
+                            (SCREEN_OFFSET_Y - BODY_OFFSET_Y - LOWER_NOTCH) * size - 1, dir);
+                r.addVector(SCREEN_WIDTH * size + 2, 0, dir);
+                r.addVector(0, SCREEN_HEIGHT * size + 2, dir);
+                r.addVector(-(SCREEN_WIDTH * size + 2), 0, dir);
+                r.addVector(0, -(SCREEN_HEIGHT * size + 2), dir);
+                g.drawPolygon(r.getPolygon());
+            } else {
+                g.drawPolygon(r.getPolygon());
+            }
+        }
+        g.setColor(Color.BLACK);
+        KarelRegion r = new KarelRegion();
+        r.setOrigin(x, y, SCREEN_OFFSET_X * size + SCREEN_WIDTH * size,
+                    (SCREEN_OFFSET_Y * size + BODY_OFFSET_Y * size) / 2, dir);
+        r.addVector(-SLOT_WIDTH * size, 0, dir);
+        g.drawPolygon(r.getPolygon());
+        r = new KarelRegion();
+        r.setOrigin(x, y, BODY_OFFSET_X * size, SCREEN_OFFSET_Y * size, dir);
+        r.addVector(-(UPPER_ANKLE * size + FOOT_WIDTH * size), 0, dir);
+        r.addVector(0, -FOOT_LENGTH * size, dir);
+        r.addVector(FOOT_WIDTH * size, 0, dir);
+        r.addVector(0, FOOT_LENGTH * size - FOOT_WIDTH * size, dir);
+        r.addVector(UPPER_ANKLE * size, 0, dir);
+        r.addVector(0, FOOT_WIDTH * size, dir);
+        g.fillPolygon(r.getPolygon());
+        g.drawPolygon(r.getPolygon());
+        r = new KarelRegion();
+        r.setOrigin(x, y, SCREEN_OFFSET_X * size + SCREEN_WIDTH * size - SLOT_WIDTH * size,
+                    BODY_OFFSET_Y * size, dir);
+        r.addVector(0, -(LOWER_ANKLE * size + FOOT_WIDTH * size), dir);
+        r.addVector(FOOT_LENGTH * size, 0, dir);
+        r.addVector(0, FOOT_WIDTH * size, dir);
+        r.addVector(-(FOOT_LENGTH * size - FOOT_WIDTH * size), 0, dir);
+        r.addVector(0, LOWER_ANKLE * size, dir);
+        r.addVector(-FOOT_WIDTH * size, 0, dir);
+        g.fillPolygon(r.getPolygon());
+        g.drawPolygon(r.getPolygon());
+    }
+
+    public void drawBeeperForStyle(Graphics g, int x, int y, int size, int n, int border) {
+        String label = "";
+        if (size > MIN_LABEL && (world.getDisplayOneFlag() || n != 1)) {
+            label = beeperLabel(n);
+        }
+        drawBeeper(g, x, y, size, label, border, this);
+    }
+
+    public static void drawBeeper(Graphics g, int x, int y, int size, int n, int border, Component comp) {
+        if (g == null) return;
+        int beeperSize = (int) Math.round(size * BEEPER_FRACTION);
+        if (beeperSize % 2 == 0) beeperSize--;
+        int half = (beeperSize + 1) / 2;
+        KarelRegion r = new KarelRegion();
+        r.setOrigin(x, y, 0, -half, EAST);
+        r.addVector(half, half, EAST);
+        r.addVector(-half, half, EAST);
+        r.addVector(-half, -half, EAST);
+        r.addVector(half, -half, EAST);
+        g.setColor(BEEPER_COLOR);
+        g.fillPolygon(r.getPolygon());
+        g.drawPolygon(r.getPolygon());
+        g.setColor(Color.BLACK);
+        for (int i = 0; i < border; i++) {
+            int delta = half + i;
+            g.drawLine(x - delta, y, x, y + delta);
+            g.drawLine(x, y + delta, x + delta, y);
+            g.drawLine(x + delta, y, x, y - delta);
+            g.drawLine(x, y - delta, x - delta, y);
+        }
+
+        if (size > MIN_LABEL && n != 1) {
+            labelBeeper(g, x, y, size, beeperLabel(n), comp);
+        }
+    }
+
+    public static void drawBeeper(Graphics g, int x, int y, int size, String label, int border, Component comp) {
+        if (g == null) return;
+        int beeperSize = (int) Math.round(size * BEEPER_FRACTION);
+        if (beeperSize % 2 == 0) beeperSize--;
+        int half = (beeperSize + 1) / 2;
+        KarelRegion r = new KarelRegion();
+        r.setOrigin(x, y, 0, -half, EAST);
+        r.addVector(half, half, EAST);
+        r.addVector(-half, half, EAST);
+        r.addVector(-half, -half, EAST);
+        r.addVector(half, -half, EAST);
+        g.setColor(BEEPER_COLOR);
+        g.fillPolygon(r.getPolygon());
+        g.drawPolygon(r.getPolygon());
+        g.setColor(Color.BLACK);
+        for (int i = 0; i < border; i++) {
+            int delta = half + i;
+            g.drawLine(x - delta, y, x, y + delta);
+            g.drawLine(x, y + delta, x + delta, y);
+            g.drawLine(x + delta, y, x, y - delta);
+            g.drawLine(x, y - delta, x - delta, y);
+        }
+
+        labelBeeper(g, x, y, size, label, comp);
+    }
+
+    public static void labelBeeper(Graphics g, int x, int y, int size, String label, Component comp) {
+        if (label.equals("%")) {
+            if (infinityImage == null) {
+                infinityImage = MediaTools.createImage(INFINITY);
+            }
+            g.drawImage(infinityImage, x - 4, y - 2, comp);
+        } else {
+            int psz = 7;
+            switch (label.length()) {
+              case 1: case 2: psz = 10; break;
+              default: psz = 7; break;
+            }
+            Font font = new Font(BEEPER_FONT_FAMILY, Font.PLAIN, psz);
+            g.setFont(font);
+            FontMetrics fm = g.getFontMetrics();
+            g.drawString(label, x - fm.stringWidth(label) / 2, y + fm.getAscent() / 2);
+        }
+    }
+
+    public static String beeperLabel(int n) {
+        switch (n) {
+          case INFINITE: return "%";
+          case PLUS1: return "+1";
+          case MINUS1: return "-1";
+          case BLANKB: return "";
+          default: return "" + n;
+        }
+    }
+
+    public void updateWalls(Graphics g, Point pt) {
+        if (g == null) return;
+        if (snapshot.outOfBounds(pt.x, pt.y)) return;
+        int x = leftMargin + (pt.x - 1) * sqSize;
+        int y = getHeight() - bottomMargin - 1 - pt.y * sqSize;
+        drawWalls(g, snapshot, pt, x, y, sqSize);
+    }
+
+/*
+ * Method: drawWalls
+ * Usage: drawWalls(g, snapshot, pt, x, y, sqSize);
+ * ------------------------------------------------
+ * Draws the walls of the corner pt in the snapshot, whose square has its
+ * upper left corner at (x, y).  Single-pixel walls leave a gap where two
+ * walls meet at a corner point, so at small sizes the walls of the
+ * neighboring corners that meet there are drawn again.
+ */
+    static void drawWalls(Graphics g, KarelWorldSnapshot snapshot, Point pt, int x, int y, int sqSize) {
+        g.setColor(Color.BLACK);
+        for (int dir = NORTH; dir <= WEST; dir++) {
+            if (snapshot.checkWall(pt.x, pt.y, dir)) drawWall(g, x, y, dir, sqSize);
+            if (sqSize < DOUBLE_WALL_THRESHOLD) fixCornerPoint(g, snapshot, pt, x, y, dir, sqSize);
+        }
+    }
+
+    static void drawWall(Graphics g, int x, int y, int dir, int sqSize) {
+        if (g == null) return;
+        int x0, y0, x1, y1;
+        switch (dir) {
+          case NORTH:
+            x0 = x;
+            y0 = y;
+            x1 = x0 + sqSize;
+            y1 = y0;
+            break;
+          case EAST:
+            x0 = x + sqSize;
+            y0 = y;
+            x1 = x0;
+            y1 = y0 + sqSize;
+            break;
+          case SOUTH:
+            x0 = x;
+            y0 = y + sqSize;
+            x1 = x0 + sqSize;
+            y1 = y0;
+            break;
+          case WEST:
+            x0 = x;
+            y0 = y;
+            x1 = x0;
+            y1 = y0 + sqSize;
+            break;
+          default:
+            x0 = y0 = x1 = y1 = 0;
+            break;
+        }
+        if (sqSize < DOUBLE_WALL_THRESHOLD) {
+            g.drawLine(x0 - 1, y0 - 1, x1 - 1, y1 - 1);
+        } else {
+            if (x0 == x1) {
+                g.drawLine(x0 - 1, y0 - 1, x1 - 1, y1);
+                g.drawLine(x0, y0 - 1, x1, y1);
+            } else {
+                g.drawLine(x0 - 1, y0 - 1, x1, y1 - 1);
+                g.drawLine(x0 - 1, y0, x1, y1);
+            }
+        }
+    }
+
+    public void drawCornerMarker(Graphics g, int x, int y) {
+        drawCornerMarker(g, x, y, sqSize);
+    }
+
+    static void drawCornerMarker(Graphics g, int x, int y, int sqSize) {
+        if (g == null) return;
+        g.setColor(Color.BLACK);
+        if (sqSize < CROSS_THRESHOLD) {
+            g.drawLine(x, y, x, y);
+        } else {
+            g.drawLine(x - 1, y, x + 1, y);
+            g.drawLine(x, y - 1, x, y + 1);
+        }
+    }
+
+    private static void fixCornerPoint(Graphics g, KarelWorldSnapshot snapshot, Point pt,
+                                       int x, int y, int dir, int sqSize) {
+        int left = KarelWorld.leftFrom(dir);
+        Point pUp = KarelWorld.adjacentPoint(pt, dir);
+        Point pLeft = KarelWorld.adjacentPoint(pt, left);
+        if (!snapshot.outOfBounds(pUp.x, pUp.y) && snapshot.checkWall(pUp.x, pUp.y, left)) {
+            drawWall(g, x + (pUp.x - pt.x) * sqSize, y - (pUp.y - pt.y) * sqSize, left, sqSize);
+        } else if (!snapshot.outOfBounds(pLeft.x, pLeft.y) && snapshot.checkWall(pLeft.x, pLeft.y, dir)) {
+            drawWall(g, x + (pLeft.x - pt.x) * sqSize, y - (pLeft.y - pt.y) * sqSize, dir, sqSize);
+        }
+    }
+
+/* Private constants */
+
+    private static final int NORTH = KarelWorld.NORTH;
+    private static final int EAST = KarelWorld.EAST;
+    private static final int SOUTH = KarelWorld.SOUTH;
+    private static final int WEST = KarelWorld.WEST;
+
+    private static final int NORTHEAST = KarelWorld.NORTHEAST;
+    private static final int NORTHWEST = KarelWorld.NORTHWEST;
+    private static final int SOUTHEAST = KarelWorld.SOUTHEAST;
+    private static final int SOUTHWEST = KarelWorld.SOUTHWEST;
+    private static final int CENTER = KarelWorld.CENTER;
+
+    private static final int INFINITE = KarelWorld.INFINITE;
+    private static final int PLUS1 = KarelWorld.PLUS1;
+    private static final int MINUS1 = KarelWorld.MINUS1;
+    private static final int BLANKB = KarelWorld.BLANKB;
+
+    private static final int SIMPLE = KarelWorld.SIMPLE;
+    private static final int FANCY = KarelWorld.FANCY;
+
+    private static final String INFINITY[] = {
+        "47494638396109000600F70000FFFFFF980098339999989800111111222222000054CBFFCB003298",
+        "0033660033CC0033FE00323266330066660000659800989800CC9900FE99329800659800CC0099FE",
+        "0098659898999999CC9900FE98009800329800659900CC9800FE3399CB3399FF9999339898659832",
+        "0098650099339998659833CB9833FF9999CC0099FE00336699656698CC9898FF9999323200336600",
+        "32003233006632009833339965009866339900663300983200666600986500CC3300FE3200CC6600",
+        "FE65CCCC98CCFF99FFCC99FFFF993300CC3200FE6600CC6500FECC0033CC0066FE0032FE00653399",
+        "33339966669933669865CC00CCCB00FEFE00CBFE00FE6699CC6598FF9898CC9999FFCB9833CC9966",
+        "FF9933FF9865333333326532323265326565660033653232660066653265CC3300CC6600FE3200FE",
+        "65000066CC0099CC0066FE0098FE00CCCC00FECB00CCFE00FEFE33CC0033FE0066CC0066FE00CB33",
+        "98CC6699FF3399FF659866CC9965FF9898CC9899FF99CCCC00CCFE00FECB00FEFE00993333996633",
+        "9933669865659833CB9966CC9933FF9865FF33CBCB33FFCC33CCFF33FFFF99CB3399FF3399CC6698",
+        "FF65CC98CCCCCCCCCC99FFCBCBFFFF99CCFFCBCBFF99FFFFCBFF3333CB3366CB3333FF3366FF6533",
+        "CB6666CC6633FF6565FFCB3333CB6533CB3365CC6666FF3333FF6633FF3366FF656533CB3333FF33",
+        "33CB6633FF6666CB3366FF3366CC6665FF65CB33CBCC66CCCC33FFCC65FFFF33CCFF65CCFF33FFFF",
+        "65FF66CCCC65FFCC65CCFF65FFFF98CCCC99FFCC99CCFF99FFFFCBCB33CCFF33CCCC66CCFF65FFCC",
+        "33FFFF33FFCC65FFFF65444444656532DDDDDDCBFFFFFFFFCBEEEEEE100000980000001000660000",
+        "000098000066777777888888AAAAAABBBBBB5555556666660000100000224400005400000000CC00",
+        "00DC0000EE0000FE00003200004400880000980000AA0000BA0000CC0000DC0000EE0000FE00CC00",
+        "00DC0000EE0000FE0000004400005400006600007600220000320000AA0000BA0000002200003200",
+        "7600008800000000AA0000BA00007600008800000021F90401000090002C0000000009000600C7FF",
+        "FFFF980098339999989800111111222222000054CBFFCB0032980033660033CC0033FE0032326633",
+        "0066660000659800989800CC9900FE99329800659800CC0099FE0098659898999999CC9900FE9800",
+        "9800329800659900CC9800FE3399CB3399FF99993398986598320098650099339998659833CB9833",
+        "FF9999CC0099FE00336699656698CC9898FF99993232003366003200323300663200983333996500",
+        "9866339900663300983200666600986500CC3300FE3200CC6600FE65CCCC98CCFF99FFCC99FFFF99",
+        "3300CC3200FE6600CC6500FECC0033CC0066FE0032FE0065339933339966669933669865CC00CCCB",
+        "00FEFE00CBFE00FE6699CC6598FF9898CC9999FFCB9833CC9966FF9933FF98653333333265323232",
+        "65326565660033653232660066653265CC3300CC6600FE3200FE65000066CC0099CC0066FE0098FE",
+        "00CCCC00FECB00CCFE00FEFE33CC0033FE0066CC0066FE00CB3398CC6699FF3399FF659866CC9965",
+        "FF9898CC9899FF99CCCC00CCFE00FECB00FEFE009933339966339933669865659833CB9966CC9933",
+        "FF9865FF33CBCB33FFCC33CCFF33FFFF99CB3399FF3399CC6698FF65CC98CCCCCCCCCC99FFCBCBFF",
+        "FF99CCFFCBCBFF99FFFFCBFF3333CB3366CB3333FF3366FF6533CB6666CC6633FF6565FFCB3333CB",
+        "6533CB3365CC6666FF3333FF6633FF3366FF656533CB3333FF3333CB6633FF6666CB3366FF3366CC",
+        "6665FF65CB33CBCC66CCCC33FFCC65FFFF33CCFF65CCFF33FFFF65FF66CCCC65FFCC65CCFF65FFFF",
+        "98CCCC99FFCC99CCFF99FFFFCBCB33CCFF33CCCC66CCFF65FFCC33FFFF33FFCC65FFFF6544444465",
+        "6532DDDDDDCBFFFFFFFFCBEEEEEE100000980000001000660000000098000066777777888888AAAA",
+        "AABBBBBB5555556666660000100000224400005400000000CC0000DC0000EE0000FE000032000044",
+        "00880000980000AA0000BA0000CC0000DC0000EE0000FE00CC0000DC0000EE0000FE000000440000",
+        "5400006600007600220000320000AA0000BA00000022000032007600008800000000AA0000BA0000",
+        "7600008800000008190021091C4810D2BF7F06110A54C870E0C1840E174A2C4830200021FF0B4D41",
+        "4347436F6E2004031039000000015772697474656E20627920474946436F6E76657274657220322E",
+        "342E33206F66204D6F6E6461792C204D61792032352C2031393938003B"
+    };
+
+    private static final int SPRITE_MARGIN = 4;
+    private static final int MAX_CORNER_REPAINTS = 64;
+    private static final int MAX_BEEPER_SPRITES = 256;
+
+    private static final int KAREL_INSET = 6;
+    private static final double BODY_OFFSET_X = -0.20;
+    private static final double BODY_OFFSET_Y = -0.33;
+    private static final double BODY_WIDTH = 0.60;
+    private static final double BODY_HEIGHT = 0.80;
+    private static final double UPPER_NOTCH = 0.15;
+    private static final double LOWER_NOTCH = 0.10;
+    private static final double SCREEN_OFFSET_X = -0.07;
+    private static final double SCREEN_OFFSET_Y = -0.05;
+    private static final double SCREEN_WIDTH = 0.30;
+    private static final double SCREEN_HEIGHT = 0.40;
+    private static final double SLOT_WIDTH = 0.15;
+    private static final double FOOT_WIDTH = 0.08;
+    private static final double FOOT_LENGTH = 0.20;
+    private static final double UPPER_ANKLE = 0.08;
+    private static final double LOWER_ANKLE = 0.08;
+
+
+    private static Image infinityImage;
+
+/* Private state */
+
+    private KarelWorld world;
+    private KarelWorldSnapshot snapshot;
+    private int generation;
+    private Object viewLock = new Object();
+    private Karel activeKarel;
+    private boolean displayFlag, editMode, numberSquaresFlag;
+    private int cols, rows, sqSize, forcedSize, alignment;
+    private int width, height, leftMargin, bottomMargin;
+    private String lastClick;
+    private int look;
+    private Image offscreen;
+    private KarelWorldListener listener;
+    private SwingTimer frameTimer;
+    private int frameRate;
+    private Object dirtyLock = new Object();
+    private boolean[] dirtyFlags;
+    private int[] dirtyCorners;
+    private int[] pendingCorners;
+    private int dirtyCount;
+    private boolean rebuildFlag, staticFlag;
+    private Image staticLayer;
+    private double zoom, scale, centerX, centerY;
+    private boolean densityMode;
+    private int vx0, vy0, vx1, vy1, vcols;
+    private Karel followedKarel;
+    private int dragX, dragY;
+    private int[] wallDensity, beeperDensity;
+    private BufferedImage densityImage;
+    private Image[] karelSprites;
+    private HashMap<Integer, Image> beeperSprites;
+    private int spriteSize, spriteLook;
+    private boolean spriteDisplayOne;
+
+/* Serial version UID */
+/**
+ * The serialization code for this class.  This value should be incremented
+ * whenever you change the structure of this class in an incompatible way,
+ * typically by adding a new instance variable.
+ */
+    static final long serialVersionUID = 1L;
+}
+
+class KarelWorldListener implements MouseListener, MouseMotionListener, MouseWheelListener,
+                                    ComponentListener, ActionListener {
+
+    public KarelWorldListener(KarelWorldView world) {
+        this.world = world;
+    }
+
+    public void mousePressed(MouseEvent e) { world.mousePressedHook(e); }
+    public void mouseClicked(MouseEvent e) { }
+    public void mouseReleased(MouseEvent e) { }
+    public void mouseEntered(MouseEvent e) { }
+    public void mouseExited(MouseEvent e) { }
+
+    public void mouseDragged(MouseEvent e) { world.mouseDraggedHook(e); }
+    public void mouseMoved(MouseEvent e) { }
+
+    public void mouseWheelMoved(MouseWheelEvent e) { world.mouseWheelHook(e); }
+
+    public void componentResized(ComponentEvent e) { world.componentResizedHook();  }
+    public void componentMoved(ComponentEvent e) { }
+    public void componentShown(ComponentEvent e) { }
+    public void componentHidden(ComponentEvent e) { }
+
+    public void actionPerformed(ActionEvent e) { world.frameTimerHook(); }
+
+    private KarelWorldView world;
+
+}
+
+class KarelRegion {
+    public static final double EPSILON = 0.00000000001;
+
+    public KarelRegion() {
+        p = new Polygon();
+        x = y = 0;
+    }
+
+    public Polygon getPolygon() {
+        return p;
+    }
+
+    public void setOrigin(int x, int y, double dx, double dy, int dir) {
+        if (p.npoints != 0) {
+            throw new ErrorException("setOrigin called on nonempty region");
+        }
+        this.x = x;
+        this.y = y;
+        addVector(dx, dy, dir);
+    }
+
+    public void addVector(double dx, double dy, int dir) {
+        switch (dir) {
+          case KarelWorld.EAST:  x += dx; y -= dy; break;
+          case KarelWorld.NORTH: x -= dy; y -= dx; break;
+          case KarelWorld.WEST:  x -= dx; y += dy; break;
+          case KarelWorld.SOUTH: x += dy; y += dx; break;
+        }
+        p.addPoint((int) Math.round(x + EPSILON), (int) Math.round(y + EPSILON));
+    }
+
+    public int getCurrentX() {
+        return p.xpoints[p.npoints - 1];
+    }
+
+    public int getCurrentY() {
+        return p.ypoints[p.npoints - 1];
+    }
+
+/* Private state */
+
+    private Polygon p;
+    private double x, y;
+
+}
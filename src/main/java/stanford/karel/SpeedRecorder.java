@@ -0,0 +1,36 @@
+/*
+ * File: SpeedRecorder.java
+ * ------------------------
+ * This file contains the monitor that KarelWorldTemplate uses to record
+ * the speed set by a world file.
+ */
+
+package stanford.karel;
+
+import java.awt.*;
+
+/* Class: SpeedRecorder */
+/**
+ * This monitor records the speed set by a world file while it is being
+ * parsed into a template and ignores all other actions.
+ */
+class SpeedRecorder implements KarelWorldMonitor {
+
+    public void startWorldEdit() { }
+    public void endWorldEdit() { }
+    public void wallAction(Point pt, int dir) { }
+    public void cornerAction(Point pt) { }
+    public void trace() { }
+
+    public void setSpeed(double speed) {
+        this.speed = speed;
+        hasSpeed = true;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    boolean hasSpeed;
+    double speed;
+}
@@ -78,6 +78,7 @@ public class SuperKarel extends Karel {
     public void turnRight() {
         checkWorld("turnRight");
         setDirection(KarelWorld.rightFrom(getDirection()));
+        getWorld().recordAction(this, KarelTraceRecorder.TURN_RIGHT);
         getWorld().trace();
     }
 
@@ -90,6 +91,7 @@ public class SuperKarel extends Karel {
     public void turnAround() {
         checkWorld("turnAround");
         setDirection(KarelWorld.oppositeDirection(getDirection()));
+        getWorld().recordAction(this, KarelTraceRecorder.TURN_AROUND);
         getWorld().trace();
     }
 
@@ -106,9 +108,9 @@ public class SuperKarel extends Karel {
  */
     public void paintCorner(Color color) {
         KarelWorld world = getWorld();
-        Point pt = getLocation();
         checkWorld("paintCorner");
-        world.setCornerColor(pt.x, pt.y, color);
+        world.setCornerColor(getAvenue(), getStreet(), color);
+        world.recordAction(this, KarelTraceRecorder.PAINT_CORNER, color);
         world.trace();
     }
 
@@ -121,13 +123,10 @@ public class SuperKarel extends Karel {
  */
     public boolean cornerColorIs(Color color) {
         KarelWorld world = getWorld();
-        Point pt = getLocation();
         checkWorld("cornerColorIs");
-        if (color == null) {
-            return world.getCornerColor(pt.x, pt.y) == null;
-        } else {
-            return (color.equals(world.getCornerColor(pt.x, pt.y)));
-        }
+        Color cornerColor = world.getCornerColor(getAvenue(), getStreet());
+        boolean result = (color == null) ? cornerColor == null : color.equals(cornerColor);
+        return world.recordSense(this, KarelTraceRecorder.CORNER_COLOR_IS, color, result);
     }
 
 /**
@@ -151,7 +150,7 @@ public class SuperKarel extends Karel {
  */
     public boolean random(double p) {
         checkWorld("random");
-        return Math.random() < p;
+        return getWorld().recordSense(this, KarelTraceRecorder.RANDOM, Math.random() < p);
     }
 
 /**